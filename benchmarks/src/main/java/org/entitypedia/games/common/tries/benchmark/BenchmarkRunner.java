@@ -0,0 +1,39 @@
+package org.entitypedia.games.common.tries.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Runs the benchmarks with the GC profiler attached and saves JSON results into the results folder, named by date,
+ * so that they can be checked in and compared across changes. Accepts the usual JMH command line options.
+ *
+ * @author <a href="http://autayeu.com/">Aliaksandr Autayeu</a>
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .parent(cmd)
+                .addProfiler(GCProfiler.class);
+
+        if (!cmd.getResult().hasValue()) {
+            File results = new File("results");
+            if (!results.isDirectory() && !results.mkdirs()) {
+                throw new IllegalStateException("Cannot create results folder " + results.getAbsolutePath());
+            }
+            String name = "packed-trie-" + new SimpleDateFormat("yyyy-MM-dd-HHmm").format(new Date()) + ".json";
+            options.resultFormat(ResultFormatType.JSON).result(new File(results, name).getPath());
+        }
+
+        new Runner(options.build()).run();
+    }
+}
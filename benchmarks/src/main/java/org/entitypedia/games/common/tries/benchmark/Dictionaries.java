@@ -0,0 +1,150 @@
+package org.entitypedia.games.common.tries.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Dictionaries for the benchmarks: either a word list read from a file or a synthetic one.
+ * <p>
+ * Synthetic words follow English letter frequencies and a length distribution peaking at 7-9 letters,
+ * generated from a fixed seed, so that the runs are reproducible without shipping a word list.
+ *
+ * @author <a href="http://autayeu.com/">Aliaksandr Autayeu</a>
+ */
+public final class Dictionaries {
+
+    public static final long SEED = 20150301L;
+
+    // English letter frequencies, per 1000
+    private static final char[] LETTERS = "etaoinshrdlcumwfgypbvkjxqz".toCharArray();
+    private static final int[] FREQUENCIES = {127, 91, 82, 75, 70, 67, 63, 61, 60, 43, 40, 28, 28, 24, 24, 22, 20, 20, 19, 15, 10, 8, 2, 2, 1, 1};
+    // word length distribution, per 1000, lengths from 2
+    private static final int[] LENGTHS = {10, 30, 60, 100, 130, 145, 140, 120, 90, 65, 45, 30, 20, 10, 5};
+
+    private Dictionaries() {
+    }
+
+    /**
+     * Returns {@code size} distinct words sorted lexicographically. If {@code path} is empty, the words are
+     * synthetic, otherwise the first {@code size} distinct non-empty lines of the file are used.
+     *
+     * @param path path to a word list, one word per line, UTF-8
+     * @param size number of words
+     * @return sorted words
+     * @throws IOException IOException
+     */
+    public static String[] load(String path, int size) throws IOException {
+        Set<String> words = new HashSet<>(size * 2);
+        if (null == path || path.isEmpty()) {
+            Random r = new Random(SEED);
+            char[] buf = new char[LENGTHS.length + 1];
+            while (words.size() < size) {
+                int length = 2 + pick(r, LENGTHS);
+                for (int i = 0; i < length; i++) {
+                    buf[i] = LETTERS[pick(r, FREQUENCIES)];
+                }
+                words.add(new String(buf, 0, length));
+            }
+        } else {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(new File(path)), StandardCharsets.UTF_8))) {
+                String line;
+                while (words.size() < size && null != (line = in.readLine())) {
+                    line = line.trim();
+                    if (!line.isEmpty()) {
+                        words.add(line);
+                    }
+                }
+            }
+        }
+
+        String[] result = words.toArray(new String[words.size()]);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Returns {@code count} words picked at random from {@code words}.
+     *
+     * @param words dictionary
+     * @param count how many words to pick
+     * @param r     random
+     * @return sample
+     */
+    public static String[] sample(String[] words, int count, Random r) {
+        String[] result = new String[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = words[r.nextInt(words.length)];
+        }
+        return result;
+    }
+
+    /**
+     * Returns crossword-like patterns made from random words, keeping the first letter and one more letter and
+     * masking the rest with _ (underscore).
+     *
+     * @param words dictionary
+     * @param count how many patterns to make
+     * @param r     random
+     * @return patterns
+     */
+    public static String[] patterns(String[] words, int count, Random r) {
+        String[] result = new String[count];
+        for (int i = 0; i < count; i++) {
+            char[] word = words[r.nextInt(words.length)].toCharArray();
+            if (1 < word.length) {
+                int keep = 1 + r.nextInt(word.length - 1);
+                for (int j = 1; j < word.length; j++) {
+                    if (j != keep) {
+                        word[j] = '_';
+                    }
+                }
+            }
+            result[i] = new String(word);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the distinct chars of the {@code words}, in order.
+     *
+     * @param words dictionary
+     * @return chars
+     */
+    public static String alphabet(String[] words) {
+        boolean[] seen = new boolean[Character.MAX_VALUE + 1];
+        for (String word : words) {
+            for (int i = 0; i < word.length(); i++) {
+                seen[word.charAt(i)] = true;
+            }
+        }
+        StringBuilder result = new StringBuilder();
+        for (int c = 0; c < seen.length; c++) {
+            if (seen[c]) {
+                result.append((char) c);
+            }
+        }
+        return result.toString();
+    }
+
+    private static int pick(Random r, int[] weights) {
+        int total = 0;
+        for (int w : weights) {
+            total = total + w;
+        }
+        int x = r.nextInt(total);
+        int i = 0;
+        while (x >= weights[i]) {
+            x = x - weights[i];
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,387 @@
+package org.entitypedia.games.common.tries.benchmark;
+
+import org.entitypedia.games.common.buffer.BufferFacade;
+import org.entitypedia.games.common.buffer.BufferFacadeFactory;
+import org.entitypedia.games.common.buffer.MappedFileBuffer;
+import org.entitypedia.games.common.tries.LetterHistogram;
+import org.entitypedia.games.common.tries.PackOptions;
+import org.entitypedia.games.common.tries.PackedTrie;
+import org.entitypedia.games.common.tries.PackedTrieWriter;
+import org.entitypedia.games.common.tries.TriePattern;
+import org.entitypedia.games.common.tries.TrieVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link PackedTrie} lookups and pattern iteration over dictionaries of different sizes, backed by a heap
+ * {@link ByteBuffer} and by a {@link MappedFileBuffer}.
+ * <p>
+ * Throughput mode gives ops/s, sample time mode gives latency percentiles (p0.99 and others).
+ * Run through {@link BenchmarkRunner} to get the allocation rate from the GC profiler as well.
+ *
+ * @author <a href="http://autayeu.com/">Aliaksandr Autayeu</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+public class PackedTrieBenchmark {
+
+    public enum Storage {
+        BYTE_BUFFER, MAPPED_FILE
+    }
+
+    // how many keys and patterns to cycle through
+    private static final int SAMPLE_SIZE = 4096;
+    // how many patterns to query together, as the slots of a crossword grid
+    private static final int BATCH_SIZE = 32;
+    // how many keys to look up together, as in validating a board, half of them misses
+    private static final int KEY_BATCH_SIZE = 256;
+    // crossword-like constraints: a vowel, any letter, neither s nor t, then any two letters
+    private static final TriePattern CHAR_CLASSES = TriePattern.compile("[aeiou]_[^st]__");
+    // a prefix and a length range, and a run between the first and the last letter
+    private static final TriePattern PREFIX_RANGE = TriePattern.compile("st*{5,9}");
+    private static final TriePattern RUN = TriePattern.compile("c*t");
+
+    /**
+     * What to pack and how to read it: the defaults, and then one option on top of them each, to compare with
+     * the defaults. The id index and suffix sharing need word counts, so they come with them, to compare with
+     * word counts alone.
+     */
+    public enum Config {
+        DEFAULT, WORD_COUNTS, WORD_DEPTHS, CHILD_TABLES, PAGE_CLUSTERING, PATH_COMPRESSION, ALPHABET, ROOT_TABLE,
+        ID_INDEX, SUFFIX_SHARING, CACHED_LEVELS
+    }
+
+    @Param({"100000", "1000000", "5000000"})
+    public int words;
+
+    @Param({"BYTE_BUFFER", "MAPPED_FILE"})
+    public Storage storage;
+
+    @Param({"DEFAULT", "WORD_COUNTS", "WORD_DEPTHS", "CHILD_TABLES", "PAGE_CLUSTERING", "PATH_COMPRESSION", "ALPHABET",
+            "ROOT_TABLE", "ID_INDEX", "SUFFIX_SHARING", "CACHED_LEVELS"})
+    public Config config;
+
+    // path to a word list, one word per line; empty means synthetic dictionary
+    @Param({""})
+    public String dictionary;
+
+    private byte[] packed;
+    private File file;
+
+    private String[] hits;
+    private String[] misses;
+    private long[] hitIds;
+    private String[] patterns;
+    private String[][] batches;
+    private String[][] keyBatches;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String[] dict = Dictionaries.load(dictionary, words);
+
+        if (Storage.BYTE_BUFFER == storage) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(dict.length * 8);
+            pack(dict, out, config);
+            packed = out.toByteArray();
+        } else {
+            file = File.createTempFile("packed-trie-", ".bin");
+            file.deleteOnExit();
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024)) {
+                pack(dict, out, config);
+            }
+        }
+        // every word has an id of its own, so the size shows what sharing saves in spite of them
+        System.out.println("packed " + config + ": " + (null == packed ? file.length() : packed.length) + " bytes");
+
+        Random r = new Random(Dictionaries.SEED);
+        hits = Dictionaries.sample(dict, SAMPLE_SIZE, r);
+        misses = new String[SAMPLE_SIZE];
+        hitIds = new long[SAMPLE_SIZE];
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            // uppercase letters are not in the dictionary, the lookup fails in the middle of the word
+            char[] word = hits[i].toCharArray();
+            word[word.length / 2] = Character.toUpperCase(word[word.length / 2]);
+            misses[i] = new String(word);
+            hitIds[i] = Arrays.binarySearch(dict, hits[i]);
+        }
+        patterns = Dictionaries.patterns(dict, SAMPLE_SIZE, r);
+        batches = new String[SAMPLE_SIZE / BATCH_SIZE][];
+        for (int i = 0; i < batches.length; i++) {
+            batches[i] = Arrays.copyOfRange(patterns, i * BATCH_SIZE, (i + 1) * BATCH_SIZE);
+        }
+        keyBatches = new String[SAMPLE_SIZE / KEY_BATCH_SIZE][];
+        for (int i = 0; i < keyBatches.length; i++) {
+            keyBatches[i] = new String[KEY_BATCH_SIZE];
+            System.arraycopy(hits, i * KEY_BATCH_SIZE / 2, keyBatches[i], 0, KEY_BATCH_SIZE / 2);
+            System.arraycopy(misses, i * KEY_BATCH_SIZE / 2, keyBatches[i], KEY_BATCH_SIZE / 2, KEY_BATCH_SIZE / 2);
+            Arrays.sort(keyBatches[i]);
+        }
+    }
+
+    private static void pack(String[] dict, OutputStream out, Config config) throws IOException {
+        // the dictionary is sorted, ids are positions
+        PackedTrieWriter w = new PackedTrieWriter(out, getOptions(dict, config));
+        for (int i = 0; i < dict.length; i++) {
+            w.add(dict[i], i);
+        }
+        w.finish();
+    }
+
+    private static PackOptions getOptions(String[] dict, Config config) {
+        PackOptions result = new PackOptions();
+        switch (config) {
+            case WORD_COUNTS:
+                return result.setWordCounts(true);
+            case WORD_DEPTHS:
+                return result.setWordDepths(true);
+            case CHILD_TABLES:
+                return result.setChildTables(16);
+            case PAGE_CLUSTERING:
+                return result.setPageClustering(4096);
+            case PATH_COMPRESSION:
+                return result.setPathCompression(true);
+            case ALPHABET:
+                return result.setAlphabet(Dictionaries.alphabet(dict));
+            case ROOT_TABLE:
+                return result.setRootTable(true);
+            case ID_INDEX:
+                return result.setWordCounts(true).setIdIndex(true);
+            case SUFFIX_SHARING:
+                return result.setWordCounts(true).setSuffixSharing(true);
+            default:
+                return result;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (null != file) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /**
+     * Per-thread reader, because {@link MappedFileBuffer} is not thread-safe.
+     */
+    @State(Scope.Thread)
+    public static class Reader {
+
+        BufferFacade buffer;
+        PackedTrie trie;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(PackedTrieBenchmark b) throws IOException {
+            if (Storage.BYTE_BUFFER == b.storage) {
+                buffer = BufferFacadeFactory.create(ByteBuffer.wrap(b.packed));
+            } else {
+                buffer = new MappedFileBuffer(b.file);
+            }
+            // the top levels, 1 MB of them, or the root children only
+            trie = new PackedTrie(buffer, Config.CACHED_LEVELS == b.config ? 1024 * 1024 : 0);
+        }
+
+        int next() {
+            next = (next + 1) & (SAMPLE_SIZE - 1);
+            return next;
+        }
+    }
+
+    @Benchmark
+    public long open(Reader r) throws IOException {
+        return new PackedTrie(r.buffer).wordCount();
+    }
+
+    @Benchmark
+    public String getKey(Reader r) throws IOException {
+        // without the id index there is nothing to measure
+        return Config.ID_INDEX == config ? r.trie.getKey(hitIds[r.next()]) : null;
+    }
+
+    @Benchmark
+    public Long getHit(Reader r) throws IOException {
+        return r.trie.get(hits[r.next()]);
+    }
+
+    @Benchmark
+    public Long getMiss(Reader r) throws IOException {
+        return r.trie.get(misses[r.next()]);
+    }
+
+    @Benchmark
+    public long getLongHit(Reader r) throws IOException {
+        return r.trie.getLong(hits[r.next()], -1);
+    }
+
+    @Benchmark
+    public boolean containsMiss(Reader r) throws IOException {
+        return r.trie.contains(misses[r.next()]);
+    }
+
+    @Benchmark
+    public long[] getAll(Reader r) throws IOException {
+        return r.trie.getAll(keyBatches[r.next() & (keyBatches.length - 1)], -1);
+    }
+
+    @Benchmark
+    public long[] getLongBatch(Reader r) throws IOException {
+        String[] keys = keyBatches[r.next() & (keyBatches.length - 1)];
+        long[] result = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            result[i] = r.trie.getLong(keys[i], -1);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public long iteratePatterns(Reader r, Blackhole bh) {
+        long count = 0;
+        Iterator<Map.Entry<String, Long>> i = r.trie.iteratePatterns(patterns[r.next()]);
+        while (i.hasNext()) {
+            bh.consume(i.next());
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public long iteratePatternsPage(Reader r, Blackhole bh) {
+        long count = 0;
+        Iterator<Map.Entry<String, Long>> i = r.trie.iteratePatterns(patterns[r.next()], 5, 20);
+        while (i.hasNext()) {
+            bh.consume(i.next());
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public long iterateValues(Reader r, Blackhole bh) {
+        long count = 0;
+        PackedTrie.LongIterator i = r.trie.iterateValues(patterns[r.next()]);
+        while (i.hasNext()) {
+            bh.consume(i.nextLong());
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public boolean visitPatterns(Reader r, final Blackhole bh) throws IOException {
+        return r.trie.visitPatterns(patterns[r.next()], new TrieVisitor() {
+            @Override
+            public Action visit(CharSequence key, long value) {
+                bh.consume(value);
+                return Action.CONTINUE;
+            }
+        });
+    }
+
+    @Benchmark
+    public long iteratePatternsDeepPage(Reader r, Blackhole bh) {
+        long count = 0;
+        Iterator<Map.Entry<String, Long>> i = r.trie.iteratePatterns("_____", 500, 20);
+        while (i.hasNext()) {
+            bh.consume(i.next());
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public long iterateCharClasses(Reader r, Blackhole bh) {
+        long count = 0;
+        PackedTrie.LongIterator i = r.trie.iterateValues(CHAR_CLASSES);
+        while (i.hasNext()) {
+            bh.consume(i.nextLong());
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public long iteratePrefixRange(Reader r, Blackhole bh) {
+        long count = 0;
+        PackedTrie.LongIterator i = r.trie.iterateValues(PREFIX_RANGE);
+        while (i.hasNext()) {
+            bh.consume(i.nextLong());
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public long iterateRun(Reader r, Blackhole bh) {
+        long count = 0;
+        PackedTrie.LongIterator i = r.trie.iterateValues(RUN);
+        while (i.hasNext()) {
+            bh.consume(i.nextLong());
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public long countPrefixRange(Reader r) throws IOException {
+        return r.trie.countPatterns(PREFIX_RANGE);
+    }
+
+    @Benchmark
+    public LetterHistogram countLetters(Reader r) throws IOException {
+        return r.trie.countLetters(patterns[r.next()]);
+    }
+
+    @Benchmark
+    public long countPatterns(Reader r) throws IOException {
+        return r.trie.countPatterns(patterns[r.next()]);
+    }
+
+    @Benchmark
+    public List<List<Map.Entry<String, Long>>> findPatterns(Reader r) throws IOException {
+        return r.trie.findPatterns(batches[r.next() & (batches.length - 1)]);
+    }
+
+    @Benchmark
+    public long iteratePatternsBatch(Reader r, Blackhole bh) {
+        long count = 0;
+        for (String pattern : batches[r.next() & (batches.length - 1)]) {
+            Iterator<Map.Entry<String, Long>> i = r.trie.iteratePatterns(pattern);
+            while (i.hasNext()) {
+                bh.consume(i.next());
+                count++;
+            }
+        }
+        return count;
+    }
+}
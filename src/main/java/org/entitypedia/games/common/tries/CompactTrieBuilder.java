@@ -0,0 +1,260 @@
+package org.entitypedia.games.common.tries;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A memory-compact trie for bootstrapping packed trie, an alternative to {@link BasicTrie}.
+ * <p>
+ * Nodes live in parallel primitive arrays and are referred to by their index, the root being 0.
+ * Children form a linked list, kept sorted by char on insert, so the trie packs as is, see
+ * {@link PackedTrie#pack(CompactTrieBuilder, OutputStream)}. A node takes about 19 bytes,
+ * several times less than a {@link BasicTrieNode} with its map entry.
+ *
+ * @author <a href="http://autayeu.com/">Aliaksandr Autayeu</a>
+ */
+public class CompactTrieBuilder {
+
+    public static final int ROOT = 0;
+
+    private static final int NONE = -1;
+
+    // node char
+    private char[] labels;
+    // first (smallest) child, NONE if no children
+    private int[] firstChild;
+    // next (bigger) sibling, NONE if the last one
+    private int[] nextSibling;
+    // word id
+    private long[] ids;
+    // word flags, bit per node
+    private long[] words;
+
+    private int size = 0;
+    private int wordCount = 0;
+
+    public CompactTrieBuilder() {
+        this(1024);
+    }
+
+    /**
+     * Creates a builder with room for {@code capacity} nodes before it grows.
+     *
+     * @param capacity initial capacity in nodes
+     */
+    public CompactTrieBuilder(int capacity) {
+        capacity = Math.max(capacity, 16);
+        labels = new char[capacity];
+        firstChild = new int[capacity];
+        nextSibling = new int[capacity];
+        ids = new long[capacity];
+        words = new long[(capacity + 63) >>> 6];
+        newNode(' ');
+    }
+
+    /**
+     * Adds the word and returns its node.
+     *
+     * @param word word to add
+     * @return node of the word
+     */
+    public int addWord(CharSequence word) {
+        int node = ROOT;
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+
+            // sorted insert among children
+            int prev = NONE;
+            int cur = firstChild[node];
+            while (NONE != cur && labels[cur] < c) {
+                prev = cur;
+                cur = nextSibling[cur];
+            }
+            if (NONE == cur || labels[cur] != c) {
+                int child = newNode(c);
+                nextSibling[child] = cur;
+                if (NONE == prev) {
+                    firstChild[node] = child;
+                } else {
+                    nextSibling[prev] = child;
+                }
+                cur = child;
+            }
+            node = cur;
+        }
+
+        if (!isWord(node)) {
+            words[node >>> 6] |= 1L << node;
+            wordCount++;
+        }
+        return node;
+    }
+
+    /**
+     * Adds the word with the id and returns its node.
+     *
+     * @param word word to add
+     * @param id   word id
+     * @return node of the word
+     */
+    public int addWord(CharSequence word, long id) {
+        int node = addWord(word);
+        ids[node] = id;
+        return node;
+    }
+
+    /**
+     * Returns the node of the prefix or -1 if there is no such prefix.
+     *
+     * @param prefix prefix to look for
+     * @return node of the prefix or -1
+     */
+    public int getNode(CharSequence prefix) {
+        int node = ROOT;
+        for (int i = 0; i < prefix.length() && NONE != node; i++) {
+            node = getChild(node, prefix.charAt(i));
+        }
+        return node;
+    }
+
+    public boolean containsPrefix(CharSequence prefix) {
+        return NONE != getNode(prefix);
+    }
+
+    public boolean containsWord(CharSequence word) {
+        int node = getNode(word);
+        return NONE != node && isWord(node);
+    }
+
+    /**
+     * Returns the child of the {@code node} with char {@code c} or -1 if there is no such child.
+     *
+     * @param node node
+     * @param c    char
+     * @return child or -1
+     */
+    public int getChild(int node, char c) {
+        int cur = firstChild[node];
+        while (NONE != cur && labels[cur] < c) {
+            cur = nextSibling[cur];
+        }
+        return NONE != cur && labels[cur] == c ? cur : NONE;
+    }
+
+    public char getChar(int node) {
+        return labels[node];
+    }
+
+    public boolean isWord(int node) {
+        return 0 != (words[node >>> 6] & (1L << node));
+    }
+
+    public long getId(int node) {
+        return ids[node];
+    }
+
+    public void setId(int node, long id) {
+        ids[node] = id;
+    }
+
+    /**
+     * Returns the number of nodes, including the root.
+     *
+     * @return the number of nodes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of words.
+     *
+     * @return the number of words
+     */
+    public int wordCount() {
+        return wordCount;
+    }
+
+    int firstChild(int node) {
+        return firstChild[node];
+    }
+
+    int nextSibling(int node) {
+        return nextSibling[node];
+    }
+
+    /**
+     * Writes the subtree of {@code top} as the next child of the current writer node.
+     *
+     * @return offset of the {@code top} node
+     */
+    long writeSubtree(int top, PackedTrieWriter writer) throws IOException {
+        int[] path = new int[16];
+        int depth = 0;
+
+        // iterative post-order, children are sorted
+        path[depth] = top;
+        writer.enter(labels[top]);
+        writer.setValue(isWord(top), ids[top]);
+        int cur = top;
+        while (true) {
+            if (NONE != firstChild[cur]) {
+                // going down
+                cur = firstChild[cur];
+            } else {
+                // going up until there is a sibling to go to
+                long offset = writer.leave();
+                while (NONE == nextSibling[cur]) {
+                    if (cur == top) {
+                        return offset;
+                    }
+                    depth--;
+                    cur = path[depth];
+                    offset = writer.leave();
+                }
+                if (cur == top) {
+                    return offset;
+                }
+                cur = nextSibling[cur];
+                depth--;
+            }
+
+            depth++;
+            if (path.length == depth) {
+                int[] tmp = new int[2 * path.length];
+                System.arraycopy(path, 0, tmp, 0, path.length);
+                path = tmp;
+            }
+            path[depth] = cur;
+            writer.enter(labels[cur]);
+            writer.setValue(isWord(cur), ids[cur]);
+        }
+    }
+
+    private int newNode(char c) {
+        if (labels.length == size) {
+            int capacity = size + (size >> 1);
+            char[] tmpLabels = new char[capacity];
+            System.arraycopy(labels, 0, tmpLabels, 0, size);
+            labels = tmpLabels;
+            int[] tmpFirstChild = new int[capacity];
+            System.arraycopy(firstChild, 0, tmpFirstChild, 0, size);
+            firstChild = tmpFirstChild;
+            int[] tmpNextSibling = new int[capacity];
+            System.arraycopy(nextSibling, 0, tmpNextSibling, 0, size);
+            nextSibling = tmpNextSibling;
+            long[] tmpIds = new long[capacity];
+            System.arraycopy(ids, 0, tmpIds, 0, size);
+            ids = tmpIds;
+            long[] tmpWords = new long[(capacity + 63) >>> 6];
+            System.arraycopy(words, 0, tmpWords, 0, words.length);
+            words = tmpWords;
+        }
+        int node = size;
+        labels[node] = c;
+        firstChild[node] = NONE;
+        nextSibling[node] = NONE;
+        size++;
+        return node;
+    }
+}
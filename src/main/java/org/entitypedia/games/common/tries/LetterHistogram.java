@@ -0,0 +1,158 @@
+package org.entitypedia.games.common.tries;
+
+import java.util.Arrays;
+
+/**
+ * Letters possible at every position of a pattern, with the number of keys fitting the pattern that have
+ * each of them there, see {@link PackedTrie#countLetters(TriePattern)}.
+ * <p>
+ * Per position, it keeps the letters present, sorted, and their counts, so its size follows the letters
+ * actually found rather than the alphabet.
+ *
+ * @author <a href="http://autayeu.com/">Aliaksandr Autayeu</a>
+ */
+public final class LetterHistogram {
+
+    private static final char[] NO_LETTERS = new char[0];
+    private static final long[] NO_COUNTS = new long[0];
+
+    private final char[][] letters;
+    private final long[][] counts;
+    private final long keyCount;
+
+    /**
+     * Creates a histogram from counts per position indexed by letter.
+     *
+     * @param counts   counts per position, indexed by letter, null for no letters
+     * @param keyCount the number of keys
+     */
+    LetterHistogram(long[][] counts, long keyCount) {
+        this.letters = new char[counts.length][];
+        this.counts = new long[counts.length][];
+        this.keyCount = keyCount;
+        for (int i = 0; i < counts.length; i++) {
+            long[] byLetter = counts[i];
+            int size = 0;
+            if (null != byLetter) {
+                for (long count : byLetter) {
+                    if (0 < count) {
+                        size++;
+                    }
+                }
+            }
+            if (0 == size) {
+                letters[i] = NO_LETTERS;
+                this.counts[i] = NO_COUNTS;
+            } else {
+                letters[i] = new char[size];
+                this.counts[i] = new long[size];
+                int j = 0;
+                for (int c = 0; c < byLetter.length; c++) {
+                    if (0 < byLetter[c]) {
+                        letters[i][j] = (char) c;
+                        this.counts[i][j] = byLetter[c];
+                        j++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of positions, which is the pattern length.
+     *
+     * @return the number of positions
+     */
+    public int length() {
+        return letters.length;
+    }
+
+    /**
+     * Returns the number of keys fitting the pattern.
+     *
+     * @return the number of keys
+     */
+    public long getKeyCount() {
+        return keyCount;
+    }
+
+    /**
+     * Returns the number of different letters at the {@code position}.
+     *
+     * @param position position
+     * @return the number of letters
+     */
+    public int size(int position) {
+        return letters[position].length;
+    }
+
+    /**
+     * Returns the {@code i}-th letter at the {@code position}, in char order.
+     *
+     * @param position position
+     * @param i        letter index, less than {@link #size(int)}
+     * @return the letter
+     */
+    public char getLetter(int position, int i) {
+        return letters[position][i];
+    }
+
+    /**
+     * Returns the number of keys with the {@code i}-th letter at the {@code position}.
+     *
+     * @param position position
+     * @param i        letter index, less than {@link #size(int)}
+     * @return the number of keys
+     */
+    public long getLetterCount(int position, int i) {
+        return counts[position][i];
+    }
+
+    /**
+     * Returns the number of keys with the letter {@code c} at the {@code position}.
+     *
+     * @param position position
+     * @param c        letter
+     * @return the number of keys, 0 if the letter is not there
+     */
+    public long getCount(int position, char c) {
+        int i = Arrays.binarySearch(letters[position], c);
+        return i < 0 ? 0 : counts[position][i];
+    }
+
+    /**
+     * Returns the letters at the {@code position}, in char order.
+     *
+     * @param position position
+     * @return the letters
+     */
+    public char[] getLetters(int position) {
+        return letters[position].clone();
+    }
+
+    /**
+     * Returns the counts of the letters at the {@code position}, in the order of {@link #getLetters(int)}.
+     *
+     * @param position position
+     * @return the counts
+     */
+    public long[] getCounts(int position) {
+        return counts[position].clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("LetterHistogram{keys=").append(keyCount);
+        for (int i = 0; i < letters.length; i++) {
+            result.append(", ").append(i).append("=[");
+            for (int j = 0; j < letters[i].length; j++) {
+                if (0 < j) {
+                    result.append(' ');
+                }
+                result.append(letters[i][j]).append(':').append(counts[i][j]);
+            }
+            result.append(']');
+        }
+        return result.append('}').toString();
+    }
+}
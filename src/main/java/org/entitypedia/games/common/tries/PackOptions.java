@@ -0,0 +1,227 @@
+package org.entitypedia.games.common.tries;
+
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Options for packing tries, see {@link PackedTrie#pack(BasicTrie, OutputStream, PackOptions)}.
+ *
+ * @author <a href="http://autayeu.com/">Aliaksandr Autayeu</a>
+ */
+public class PackOptions {
+
+    private ForkJoinPool pool;
+    private boolean wordCounts;
+    private boolean wordDepths;
+    private int childTables;
+    private int pageClustering;
+    private boolean suffixSharing;
+    private boolean pathCompression;
+    private String alphabet;
+    private boolean rootTable;
+    private boolean idIndex;
+
+    public PackOptions() {
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Packs the subtrees of the root children in parallel in the {@code pool}, each into its own buffer,
+     * and then writes them one after another. The result is the same as packing sequentially.
+     * Null, the default, packs in the calling thread.
+     *
+     * @param pool pool to pack in
+     * @return this
+     */
+    public PackOptions setPool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    public boolean isWordCounts() {
+        return wordCounts;
+    }
+
+    /**
+     * Stores in every node the number of words below it, by length, so that
+     * {@link PackedTrie#countPatterns(String)} and paged iteration skip whole subtrees instead of walking them.
+     * Every node with children gets the total and how deep its words go, and, unless they are all that deep,
+     * a count per depth: about 45% more bytes for the million synthetic words of the benchmarks, 18.2 MB to 26.2 MB,
+     * more for longer words. Off by default, for the format readable by the earlier versions.
+     *
+     * @param wordCounts whether to store word counts
+     * @return this
+     */
+    public PackOptions setWordCounts(boolean wordCounts) {
+        this.wordCounts = wordCounts;
+        return this;
+    }
+
+    public boolean isWordDepths() {
+        return wordDepths;
+    }
+
+    /**
+     * Stores in every node how many levels below it the nearest and the farthest words are, so that pattern
+     * queries do not go into subtrees without words of the pattern length. Makes the packed trie a bit bigger.
+     * Off by default, for the format readable by the earlier versions.
+     *
+     * @param wordDepths whether to store word depths
+     * @return this
+     */
+    public PackOptions setWordDepths(boolean wordDepths) {
+        this.wordDepths = wordDepths;
+        return this;
+    }
+
+    public int getChildTables() {
+        return childTables;
+    }
+
+    /**
+     * Adds to every node with at least {@code minChildren} children a table of child offsets indexed by char,
+     * so that looking up a child there takes one read instead of a binary search. The index stays for
+     * traversals in char order. Nodes with children too spread over the chars for a table do not get one.
+     * Makes the packed trie bigger. 0, the default, adds no tables, for the format readable by the earlier versions.
+     *
+     * @param minChildren the least number of children for a table, 0 for none
+     * @return this
+     */
+    public PackOptions setChildTables(int minChildren) {
+        if (minChildren < 0) {
+            throw new IllegalArgumentException("minChildren should not be negative");
+        }
+        this.childTables = minChildren;
+        return this;
+    }
+
+    public int getPageClustering() {
+        return pageClustering;
+    }
+
+    /**
+     * Lays the packed trie out for fewer pages touched per lookup. The nodes whose subtrees do not fit in a
+     * {@code pageSize} page go together right before the root, level by level, the top levels nearest to it,
+     * while the rest of the subtrees stay in one piece each and start a new page rather than cross into the next
+     * one, so that a lookup reads one page below the top levels. The pages are filled with the subtrees that fit
+     * in what is left of them before the rest goes to padding, some 1% of the size with 4096 byte pages, more
+     * with smaller ones. The format stays the same. The writer keeps the nodes put off and the subtrees of their
+     * children in memory until it writes them. With suffix sharing, the subtrees are not moved to start a page.
+     * 0, the default, keeps every node right after its subtree.
+     *
+     * @param pageSize page size in bytes, such as 4096, 0 for none
+     * @return this
+     */
+    public PackOptions setPageClustering(int pageSize) {
+        if (pageSize < 0) {
+            throw new IllegalArgumentException("pageSize should not be negative");
+        }
+        this.pageClustering = pageSize;
+        return this;
+    }
+
+    public boolean isSuffixSharing() {
+        return suffixSharing;
+    }
+
+    /**
+     * Writes the same subtrees, such as common endings, only once and points all their parents there, which
+     * turns the trie into a directed acyclic word graph. Node values keep no ids then, so that subtrees are
+     * the same whatever the ids of their words are: the ids go to a table after the root, by the rank of the
+     * word in key order. Word counts are needed, and every node also stores the ranks of its children, so that
+     * lookups sum the rank on their way down and read one more entry per level. The shared nodes are apart, and
+     * lookups are the slower for it: for the million synthetic words of the benchmarks, a hit takes about 2.5 times
+     * as long as without sharing, and the ranks are about 6% of the file.
+     * <p>
+     * Packs in the calling thread, the pool is not used, and keeps a table of the distinct nodes written, up to
+     * 2^18 of them, the most recently shared ones, so that the rarest subtrees of big dictionaries are not
+     * shared. Makes the packed trie unreadable by the earlier versions. Off by default.
+     *
+     * @param suffixSharing whether to write the same subtrees once
+     * @return this
+     */
+    public PackOptions setSuffixSharing(boolean suffixSharing) {
+        this.suffixSharing = suffixSharing;
+        return this;
+    }
+
+    public boolean isPathCompression() {
+        return pathCompression;
+    }
+
+    /**
+     * Packs chains of nodes that are not words and have one child each, such as the endings of long words,
+     * in about 2 bytes per node instead of 4 or more: such a node keeps the offset of its child in place of
+     * the id and the child char in place of the index, and no word counts or depths. Lookups and iteration
+     * go down a chain comparing a char per node, with no index to search.
+     * Makes the packed trie unreadable by the earlier versions. Off by default.
+     *
+     * @param pathCompression whether to pack single child chains
+     * @return this
+     */
+    public PackOptions setPathCompression(boolean pathCompression) {
+        this.pathCompression = pathCompression;
+        return this;
+    }
+
+    public String getAlphabet() {
+        return alphabet;
+    }
+
+    /**
+     * Writes the chars of the index as codes, their ranks in the {@code alphabet}, which is stored in the header.
+     * With up to 128 chars, every code takes a byte, whatever the chars are, so the index of a dictionary
+     * in a non-Latin script, such as Cyrillic, takes a byte per child less, or two for the chars from 0x4000 up.
+     * Codes keep the char order, so the keys come in the same order.
+     * Keys with chars not in the alphabet cannot be packed. Null, the default, writes the chars as they are.
+     *
+     * @param alphabet all the chars of the keys, in any order
+     * @return this
+     */
+    public PackOptions setAlphabet(String alphabet) {
+        if (null != alphabet && alphabet.isEmpty()) {
+            throw new IllegalArgumentException("alphabet should not be empty");
+        }
+        this.alphabet = alphabet;
+        return this;
+    }
+
+    public boolean isRootTable() {
+        return rootTable;
+    }
+
+    /**
+     * Writes a table of the root children, with their node values, and the number of words right after the root,
+     * where the end of the packed trie points to. Opening the packed trie then reads these few bytes in one place,
+     * instead of the root children scattered all over it, a page each, see {@link PackedTrie#wordCount()}.
+     * Makes the packed trie unreadable by the earlier versions. Off by default.
+     *
+     * @param rootTable whether to write the root table
+     * @return this
+     */
+    public PackOptions setRootTable(boolean rootTable) {
+        this.rootTable = rootTable;
+        return this;
+    }
+
+    public boolean isIdIndex() {
+        return idIndex;
+    }
+
+    /**
+     * Writes after the root an index of the ids, sorted, with the ranks of their keys in key order, so that
+     * {@link PackedTrie#getKey(long)} finds the key by its id: a binary search in the index and then a walk
+     * down from the root, by the word counts, which are needed. The writer keeps all the ids in memory until
+     * it finishes. Makes the packed trie unreadable by the earlier versions. Off by default.
+     *
+     * @param idIndex whether to write the id index
+     * @return this
+     */
+    public PackOptions setIdIndex(boolean idIndex) {
+        this.idIndex = idIndex;
+        return this;
+    }
+}
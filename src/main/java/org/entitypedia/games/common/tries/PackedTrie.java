@@ -4,9 +4,19 @@ import org.entitypedia.games.common.buffer.BufferFacade;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InvalidObjectException;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Packed Trie implementation inspired by
@@ -21,8 +31,6 @@ import java.util.*;
  */
 public class PackedTrie {
 
-    private static final int MAX_CHILDREN = 256;
-
     // for reading
     private BufferFacade buffer;
     private char[] rootChars = new char[0];
@@ -30,12 +38,92 @@ public class PackedTrie {
     private boolean[] rootIsWord = new boolean[0];
     private boolean[] rootHasChildren = new boolean[0];
     private long[] rootValues = new long[0];
+    private long rootOffset;
+    // top levels in breadth-first order, node 0 is the root: chars, offsets, node values with flags and,
+    // for the nodes above the deepest level, where their children start, null if not cached
+    private char[] cacheChars;
+    private long[] cacheOffsets;
+    private long[] cacheValues;
+    private int[] cacheChildren;
+    // the number of words before each cached node, for the id table, null if not cached or there is no id table
+    private long[] cacheRanks;
+    // format flags from the header, see PackedTrieWriter
+    private long flags = 0;
+    // the number of words, -1 if not known yet
+    private long wordCount = -1;
+    // where the records of the id index start, their number and the id and rank widths, -1 if there is no index
+    private long idIndexOffset = -1;
+    private long idCount;
+    private int idWidth;
+    private int rankWidth;
+    // where the ids by rank of the id table start and their width, -1 if node values keep the ids
+    private long idTableOffset = -1;
+    private int idTableWidth;
+    // the number of words before each root child, for the id table, null until needed
+    private long[] rootRanks;
+    // chars by code and codes by char, -1 for the chars not there, from the header, null if index chars are chars
+    private char[] alphabet;
+    private int[] codes;
+    // buffer limit, read once, because MappedFileBuffer asks the file system for it on every call
+    private long bufferLimit;
+
+    // heap bytes per cached node: char, offset, value and where its children start
+    private static final int CACHED_NODE_BYTES = 2 + 8 + 8 + 4;
 
     public PackedTrie(BufferFacade b) throws IOException {
         this.buffer = b;
+        this.bufferLimit = b.limit();
+
+        // optional header
+        byte[] magic = PackedTrieWriter.MAGIC;
+        if (magic.length + 1 < bufferLimit && magic[0] == buffer.get(0) && magic[1] == buffer.get(1) && magic[2] == buffer.get(2)) {
+            int version = buffer.get(magic.length) & 0xFF;
+            if (PackedTrieWriter.VERSION < version) {
+                throw new InvalidObjectException("Unsupported packed trie version " + version);
+            }
+            flags = readVarLenLong01(buffer, magic.length + 1);
+            if (0 != (flags & ~PackedTrieWriter.KNOWN_FLAGS)) {
+                throw new InvalidObjectException("Unsupported packed trie flags " + Long.toHexString(flags));
+            }
+            if (0 != (flags & PackedTrieWriter.FLAG_ALPHABET)) {
+                long offset = magic.length + 1 + getVarLenLongSize(flags);
+                long size = readVarLenLong01(buffer, offset);
+                offset = offset + getVarLenLongSize(size);
+                alphabet = new char[(int) size];
+                char previous = 0;
+                for (int i = 0; i < alphabet.length; i++) {
+                    long delta = readVarLenLong01(buffer, offset);
+                    offset = offset + getVarLenLongSize(delta);
+                    alphabet[i] = (char) (previous + delta);
+                    previous = alphabet[i];
+                }
+                codes = PackedTrieWriter.getCodes(alphabet);
+            }
+        }
 
-        // load root offset from the end of the buffer
-        long rootOffset = readVarLenLong1Back(buffer, buffer.limit() - 1, -1);
+        // load root offset, or root table offset, from the end of the buffer
+        long tailOffset = readVarLenLong1Back(buffer, bufferLimit - 1, -1);
+        if (0 != (flags & PackedTrieWriter.FLAG_ID_TABLE)) {
+            long offset = readVarLenLong01(buffer, tailOffset);
+            tailOffset = tailOffset + getVarLenLongSize(offset);
+            idTableWidth = buffer.get(offset);
+            idTableOffset = offset + 1;
+        }
+        if (0 != (flags & PackedTrieWriter.FLAG_ID_INDEX)) {
+            long offset = readVarLenLong01(buffer, tailOffset);
+            tailOffset = tailOffset + getVarLenLongSize(offset);
+            idCount = readVarLenLong01(buffer, offset);
+            offset = offset + getVarLenLongSize(idCount);
+            idWidth = buffer.get(offset);
+            rankWidth = buffer.get(offset + 1);
+            idIndexOffset = offset + 2;
+        }
+        if (0 != (flags & PackedTrieWriter.FLAG_ROOT_TABLE)) {
+            readRootTable(tailOffset);
+            return;
+        }
+        rootOffset = 0 == (flags & (PackedTrieWriter.FLAG_ID_INDEX | PackedTrieWriter.FLAG_ID_TABLE))
+                ? tailOffset : readVarLenLong01(buffer, tailOffset);
 
         // read root index and init arrays.
         long nodeValue = readVarLenLong01(buffer, rootOffset);
@@ -44,38 +132,191 @@ public class PackedTrie {
         //boolean isWord = 0 < (nodeValue & 0x1L);
         //nodeValue = nodeValue >> 2;
 
-        Map<Character, Long> rootsMap = new TreeMap<>();
-
         if (hasChildren) {
             long sizeOfIndex = readVarLenLong01(buffer, offset);
             offset = offset + getVarLenLongSize(sizeOfIndex);
 
-            long endOfIndex = offset + sizeOfIndex;
+            // pairs come in char order
+            char[] chars = new char[16];
+            long[] offsets = new long[16];
+            int size = 0;
+            long endOfIndex = offset + pairsSize(sizeOfIndex);
             while (offset < endOfIndex) {
                 long indexKey = readVarLenLong1(buffer, offset, endOfIndex);
                 offset = offset + getVarLenLongSize(indexKey);
                 long relOffset = readVarLenLong0(buffer, offset, endOfIndex);
                 offset = offset + getVarLenLongSize(relOffset);
-                rootsMap.put((char) indexKey, rootOffset - relOffset);
+                if (chars.length == size) {
+                    chars = Arrays.copyOf(chars, 2 * size);
+                    offsets = Arrays.copyOf(offsets, 2 * size);
+                }
+                chars[size] = toChar(indexKey);
+                offsets[size] = rootOffset - relOffset;
+                size++;
+            }
+
+            // read flags and values
+            long[] values = new long[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = readVarLenLong01(buffer, offsets[i]);
             }
+            setRoots(Arrays.copyOf(chars, size), Arrays.copyOf(offsets, size), values);
+        }
+    }
+
+    /**
+     * Reads the root offset, the number of words and the root children from the root table,
+     * see {@link PackOptions#setRootTable(boolean)}.
+     */
+    private void readRootTable(long offset) throws IOException {
+        rootOffset = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(rootOffset);
+        wordCount = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(wordCount);
+        long size = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(size);
+        char[] chars = new char[(int) size];
+        long[] offsets = new long[(int) size];
+        long[] values = new long[(int) size];
+        for (int i = 0; i < size; i++) {
+            long code = readVarLenLong01(buffer, offset);
+            offset = offset + getVarLenLongSize(code);
+            chars[i] = toChar(code);
+            offsets[i] = readVarLenLong01(buffer, offset);
+            offset = offset + getVarLenLongSize(offsets[i]);
+            values[i] = readVarLenLong01(buffer, offset);
+            offset = offset + getVarLenLongSize(values[i]);
+        }
+        setRoots(chars, offsets, values);
+    }
+
+    /**
+     * Sets the root children: their chars, in order, offsets and node values.
+     */
+    private void setRoots(char[] chars, long[] offsets, long[] values) {
+        rootChars = chars;
+        rootOffsets = offsets;
+        rootIsWord = new boolean[chars.length];
+        rootHasChildren = new boolean[chars.length];
+        rootValues = new long[chars.length];
+        for (int i = 0; i < chars.length; i++) {
+            rootHasChildren[i] = 0 < (values[i] & 0x2L);
+            rootIsWord[i] = 0 < (values[i] & 0x1L);
+            rootValues[i] = values[i] >> 2;
+        }
+    }
+
+    /**
+     * Creates a trie that keeps the nodes of its top levels in the heap, as many whole levels as fit in
+     * {@code cacheBytes}, so that lookups and pattern iteration go down these levels without decoding
+     * the buffer. The root children are always there.
+     *
+     * @param b          buffer with the packed trie
+     * @param cacheBytes heap bytes for the top levels
+     * @throws IOException IOException
+     */
+    public PackedTrie(BufferFacade b, long cacheBytes) throws IOException {
+        this(b);
+        if (cacheBytes < 0) {
+            throw new IllegalArgumentException("cacheBytes should not be negative");
+        }
+        cacheLevels(cacheBytes);
+    }
 
-            rootChars = new char[rootsMap.size()];
-            rootOffsets = new long[rootsMap.size()];
-            rootIsWord = new boolean[rootsMap.size()];
-            rootHasChildren = new boolean[rootsMap.size()];
-            rootValues = new long[rootsMap.size()];
-            int i = 0;
-            for (Map.Entry<Character, Long> entry : rootsMap.entrySet()) {
-                rootChars[i] = entry.getKey();
-                rootOffsets[i] = entry.getValue();
+    /**
+     * Reads the top levels of the trie, level by level, while they fit in {@code cacheBytes}.
+     */
+    private void cacheLevels(long cacheBytes) throws IOException {
+        // the root and its children
+        int size = 1 + rootChars.length;
+        char[] chars = new char[2 * size];
+        long[] offsets = new long[2 * size];
+        long[] values = new long[2 * size];
+        int[] children = new int[2 * size];
+        offsets[0] = rootOffset;
+        values[0] = readVarLenLong01(buffer, rootOffset);
+        for (int i = 0; i < rootChars.length; i++) {
+            chars[i + 1] = rootChars[i];
+            offsets[i + 1] = rootOffsets[i];
+            values[i + 1] = (rootValues[i] << 2) | (rootHasChildren[i] ? 0x2L : 0x0L) | (rootIsWord[i] ? 0x1L : 0x0L);
+        }
+        children[0] = 1;
+        // the deepest level is [levelStart, size)
+        int levelStart = 1;
 
-                // read flags and values
-                nodeValue = readVarLenLong01(buffer, rootOffsets[i]);
-                rootHasChildren[i] = 0 < (nodeValue & 0x2L);
-                rootIsWord[i] = 0 < (nodeValue & 0x1L);
-                rootValues[i] = nodeValue >> 2;
+        while (true) {
+            int count = size;
+            boolean fits = true;
+            for (int i = levelStart; i < size && fits; i++) {
+                if (children.length <= i + 1) {
+                    children = Arrays.copyOf(children, 2 * (i + 1));
+                }
+                children[i] = count;
+                if (0 == (values[i] & 0x2L)) {
+                    continue;
+                }
+                long offset = offsets[i] + getVarLenLongSize(values[i]);
+                // a link of a chain is one pair: the char after the value, the offset in it
+                boolean chain = isChain(values[i]);
+                long high = offset;
+                if (!chain) {
+                    long sizeOfIndex = readVarLenLong01(buffer, offset);
+                    offset = offset + getVarLenLongSize(sizeOfIndex);
+                    high = offset + pairsSize(sizeOfIndex);
+                }
+                while (chain || offset < high) {
+                    long indexKey;
+                    long relOffset;
+                    if (chain) {
+                        indexKey = readVarLenLong01(buffer, offset);
+                        relOffset = values[i] >>> 2;
+                        chain = false;
+                    } else {
+                        indexKey = readVarLenLong1(buffer, offset, high);
+                        offset = offset + getVarLenLongSize(indexKey);
+                        relOffset = readVarLenLong0(buffer, offset, high);
+                        offset = offset + getVarLenLongSize(relOffset);
+                    }
+                    if (cacheBytes < (long) (count + 1) * CACHED_NODE_BYTES) {
+                        fits = false;
+                        break;
+                    }
+                    if (chars.length == count) {
+                        chars = Arrays.copyOf(chars, 2 * count);
+                        offsets = Arrays.copyOf(offsets, 2 * count);
+                        values = Arrays.copyOf(values, 2 * count);
+                    }
+                    chars[count] = toChar(indexKey);
+                    offsets[count] = offsets[i] - relOffset;
+                    values[count] = readVarLenLong01(buffer, offsets[count]);
+                    count++;
+                }
+            }
+            if (!fits || count == size) {
+                break;
+            }
+            children[size] = count;
+            levelStart = size;
+            size = count;
+        }
 
-                i++;
+        // the root children alone are there already
+        if (1 < levelStart) {
+            children[levelStart] = size;
+            cacheChars = Arrays.copyOf(chars, size);
+            cacheOffsets = Arrays.copyOf(offsets, size);
+            cacheValues = Arrays.copyOf(values, size);
+            cacheChildren = Arrays.copyOf(children, levelStart + 1);
+            if (0 <= idTableOffset) {
+                long[] ranks = new long[size];
+                for (int i = 0; i < levelStart; i++) {
+                    long rank = ranks[i] + (values[i] & 0x1L);
+                    for (int j = children[i]; j < children[i + 1]; j++) {
+                        ranks[j] = rank;
+                        rank = rank + countWords(offsets[j], 0, Integer.MAX_VALUE);
+                    }
+                }
+                cacheRanks = ranks;
             }
         }
     }
@@ -88,136 +329,294 @@ public class PackedTrie {
      * @throws IOException IOException
      */
     public static void pack(BasicTrie trie, OutputStream out) throws IOException {
-        // max 20 bytes per child = two variable length longs, max 10 bytes each
-        ByteArrayOutputStream childrenStream = new ByteArrayOutputStream(20 * MAX_CHILDREN);
+        pack(trie, out, new PackOptions());
+    }
+
+    /**
+     * Packs the {@code trie} into writable {@code out} stream.
+     *
+     * @param trie    input trie
+     * @param out     output stream
+     * @param options pack options
+     * @throws IOException IOException
+     */
+    public static void pack(BasicTrie trie, OutputStream out, PackOptions options) throws IOException {
+        PackedTrieWriter writer = new PackedTrieWriter(out, options);
 
         BasicTrieNode root = trie.getRoot();
-        long rootOffset = 0;
-        long offset = 0;
+        writer.setValue(root.isWord(), root.getId());
 
-        Deque<BasicTrieNode> q = new ArrayDeque<>();
-        BasicTrieNode prevNode = null;
+        final BasicTrieNode[] children = root.getChildren().toArray(new BasicTrieNode[root.getChildren().size()]);
+        char[] chars = new char[children.length];
+        for (int i = 0; i < children.length; i++) {
+            chars[i] = children[i].getChar();
+        }
+        long[] bases = writeSubtrees(chars, new SubtreeWriter() {
+            @Override
+            public long write(int i, PackedTrieWriter writer) throws IOException {
+                return writeSubtree(children[i], writer);
+            }
+        }, writer, options.getPool());
+
+        if (null != options.getPool()) {
+            // offsets in the subtrees were counted from the start of their own buffers
+            List<ForkJoinTask<?>> shifts = new ArrayList<>();
+            for (int i = 0; i < children.length; i++) {
+                final BasicTrieNode child = children[i];
+                final long base = bases[i];
+                shifts.add(options.getPool().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        shiftOffsets(child, base);
+                    }
+                }));
+            }
+            for (ForkJoinTask<?> shift : shifts) {
+                getResult(shift);
+            }
+        }
+        root.setOffset(writer.finish());
+        if (0 < options.getPageClustering()) {
+            moveOffsets(root, writer);
+        }
+        long[] deferred = writer.getDeferredOffsets();
+        if (0 < deferred.length) {
+            setDeferredOffsets(root, deferred, 0);
+        }
+    }
 
-        // iterative post-order
-        q.addFirst(trie.getRoot());
+    /**
+     * Sets the offsets of the nodes below the {@code root} to where the writer moved them, see
+     * {@link PackedTrieWriter#getOffset(long)}.
+     */
+    private static void moveOffsets(BasicTrieNode root, PackedTrieWriter writer) {
+        Deque<BasicTrieNode> q = new ArrayDeque<>(root.getChildren());
         while (!q.isEmpty()) {
-            BasicTrieNode curNode = q.peekFirst();
-
-            if (null == prevNode || prevNode.getChildren().contains(curNode)) {// going down
-                if (0 < curNode.getChildren().size()) {
-                    q.addFirst(curNode.getChildren().iterator().next());
-                }
-            } else { // going up
-                // curNode == prevNode => we hit the bottom, nothing to add => visit
-                // if truly up, iterate and find prevNode among children.
-                // if there any other children left unvisited => add them to the queue
-                Iterator<BasicTrieNode> i = curNode.getChildren().iterator();
-                //noinspection StatementWithEmptyBody
-                while (i.hasNext() && i.next() != prevNode) {
-                }
-                if (i.hasNext()) {
-                    q.addFirst(i.next());
-                } else {
-                    // visit node
-                    curNode.setOffset(offset);
-                    if (curNode == root) {
-                        rootOffset = offset;
-                    }
-                    offset = offset + writeNode(childrenStream, curNode, out);
+            BasicTrieNode node = q.removeFirst();
+            if (0 <= node.getOffset()) {
+                node.setOffset(writer.getOffset(node.getOffset()));
+            }
+            q.addAll(node.getChildren());
+        }
+    }
 
-                    q.removeFirst();
-                }
+    /**
+     * Sets the offsets of the nodes below the {@code node} that the writer put off to the cluster before the root.
+     * They are the ones with negative offsets and come in post-order.
+     *
+     * @return the number of offsets used
+     */
+    private static int setDeferredOffsets(BasicTrieNode node, long[] offsets, int next) {
+        for (BasicTrieNode child : node.getChildren()) {
+            if (child.getOffset() < 0) {
+                next = setDeferredOffsets(child, offsets, next);
+                child.setOffset(offsets[next]);
+                next++;
             }
-            prevNode = curNode;
         }
+        return next;
+    }
 
-        writeVarLenLong1(rootOffset, out);
+    /**
+     * Packs the {@code trie} into writable {@code out} stream.
+     *
+     * @param trie input trie
+     * @param out  output stream
+     * @throws IOException IOException
+     */
+    public static void pack(CompactTrieBuilder trie, OutputStream out) throws IOException {
+        pack(trie, out, new PackOptions());
     }
 
     /**
-     * Writes the {@code node} into {@code out} stream and returns the number of bytes written.
+     * Packs the {@code trie} into writable {@code out} stream.
      *
-     * @param node node to write
-     * @param out  stream to write to
-     * @return number of bytes written
+     * @param trie    input trie
+     * @param out     output stream
+     * @param options pack options
      * @throws IOException IOException
      */
-    private static long writeNode(ByteArrayOutputStream childrenStream, BasicTrieNode node, OutputStream out) throws IOException {
-//        0  13 offset of root node                             // save root offset at the end in MSB 1 bytes (root should have children and the last has offset in MSB 0 bytes
-//    ____
-//        1  10 node value of ‘aa’                               // word id, variable length long, MSB 01 bytes + 2 LSB bits=hasChildren+isWord flags. max id 2^61-1
-//        2  0 size of index to child nodes of ‘aa’ in bytes     // index size, variable length long, MSB 01 bytes, absent if !hasChildren
-//    ____
-//        3  3 node value of ‘ab’
-//        4  0 size of index to child nodes of ‘ab’ in bytes
-//    ____
-//        5  13 node value of ‘a’
-//        6  4 size of index to child nodes of ‘a’ in bytes
-//        7  a index key for ‘aa’ coming from ‘a’                // char -> variable length long, MSB 1 bytes. ASCII wins, for the rest an encoding to fit most chars in 0-127 (or frequency-based one) would be better.
-//        8  4 relative offset of node ‘aa’ (5 − 4 = 1)         // long -> variable length long, MSB 0 bytes
-//        9  b index key for ‘ab’ coming from ‘a’
-//        10 2 relative offset of node ‘ab’ (5 − 2 = 3)
-//    ____
-//        11 7 node value of ‘b’
-//        12 0 size of index to child nodes of ‘b’ in bytes
-//    ____
-//        13 20 root node value
-//        14 4 size of index to child nodes of root in bytes
-//        15 a index key for ‘a’ coming from root
-//        16 8 relative offset of node ‘a’ (13 − 8 = 5)
-//        17 b index key for ‘b’ coming from root
-//        18 2 relative offset of node ‘b’ (13 − 2 = 11)
+    public static void pack(final CompactTrieBuilder trie, OutputStream out, PackOptions options) throws IOException {
+        PackedTrieWriter writer = new PackedTrieWriter(out, options);
+        writer.setValue(trie.isWord(CompactTrieBuilder.ROOT), trie.getId(CompactTrieBuilder.ROOT));
 
-        long result = 0;
+        int count = 0;
+        for (int child = trie.firstChild(CompactTrieBuilder.ROOT); -1 != child; child = trie.nextSibling(child)) {
+            count++;
+        }
+        final int[] children = new int[count];
+        char[] chars = new char[count];
+        count = 0;
+        for (int child = trie.firstChild(CompactTrieBuilder.ROOT); -1 != child; child = trie.nextSibling(child)) {
+            children[count] = child;
+            chars[count] = trie.getChar(child);
+            count++;
+        }
 
-        // node value = word id + flags
+        writeSubtrees(chars, new SubtreeWriter() {
+            @Override
+            public long write(int i, PackedTrieWriter writer) throws IOException {
+                return trie.writeSubtree(children[i], writer);
+            }
+        }, writer, options.getPool());
+        writer.finish();
+    }
 
-        long nodeValue = node.getId();
-        // bounds check -> max id 2^61-1 - need two bits for flags
-        if ((0x3FFFFFFFFFFFFFFFL - 1) < nodeValue) {
-            throw new IndexOutOfBoundsException();
+    /**
+     * Writes the subtree of {@code top} as the next child of the current writer node.
+     *
+     * @return offset of the {@code top} node
+     */
+    private static long writeSubtree(BasicTrieNode top, PackedTrieWriter writer) throws IOException {
+        Deque<BasicTrieNode> path = new ArrayDeque<>();
+        Deque<Iterator<BasicTrieNode>> q = new ArrayDeque<>();
+
+        // iterative post-order, children come sorted
+        writer.enter(top.getChar());
+        writer.setValue(top.isWord(), top.getId());
+        path.addFirst(top);
+        q.addFirst(top.getChildren().iterator());
+        while (!q.isEmpty()) {
+            Iterator<BasicTrieNode> i = q.peekFirst();
+            if (i.hasNext()) {
+                // going down
+                BasicTrieNode child = i.next();
+                writer.enter(child.getChar());
+                writer.setValue(child.isWord(), child.getId());
+                path.addFirst(child);
+                q.addFirst(child.getChildren().iterator());
+            } else {
+                // going up, all children visited => visit node
+                q.removeFirst();
+                path.removeFirst().setOffset(writer.leave());
+            }
         }
+        return top.getOffset();
+    }
 
-        // add flags
-        // 2 LSB bits=hasChildren+isWord flags.
-        nodeValue = nodeValue << 2;
-        if (!node.getChildren().isEmpty()) {
-            nodeValue = nodeValue | 0x2L;
-        }
-        if (node.isWord()) {
-            nodeValue = nodeValue | 0x1L;
-        }
+    /**
+     * Writes subtrees of a trie being packed.
+     */
+    interface SubtreeWriter {
 
-        result = result + getVarLenLongSize(nodeValue);
-        writeVarLenLong01(out, nodeValue);
+        /**
+         * Writes the {@code i}-th subtree as the next child of the current writer node.
+         *
+         * @param i      subtree number
+         * @param writer writer
+         * @return offset of the subtree root
+         * @throws IOException IOException
+         */
+        long write(int i, PackedTrieWriter writer) throws IOException;
+    }
 
-        if (!node.getChildren().isEmpty()) {
-            ByteArrayOutputStream cStream = childrenStream;
-            if (MAX_CHILDREN < node.getChildren().size()) {
-                cStream = new ByteArrayOutputStream(20 * node.getChildren().size());
-            } else {
-                cStream.reset();
+    /**
+     * Writes the root children subtrees, in parallel in the {@code pool} if there is one.
+     * Subtrees packed in parallel go to separate buffers first and then follow each other in the output.
+     *
+     * @param chars   chars of the subtree roots
+     * @param subtree writes subtrees
+     * @param writer  writer, positioned at the root
+     * @param pool    pool to pack in, null to pack in the calling thread
+     * @return offsets where the subtrees start, all 0 if packed in the calling thread
+     * @throws IOException IOException
+     */
+    private static long[] writeSubtrees(char[] chars, final SubtreeWriter subtree, final PackedTrieWriter writer, ForkJoinPool pool) throws IOException {
+        long[] bases = new long[chars.length];
+        // subtrees packed apart would not share their nodes
+        if (null == pool || writer.isSharing()) {
+            for (int i = 0; i < chars.length; i++) {
+                subtree.write(i, writer);
+            }
+        } else {
+            List<ForkJoinTask<ByteArrayOutputStream>> tasks = new ArrayList<>();
+            final long[] offsets = new long[chars.length];
+            final PackedTrieWriter[] writers = new PackedTrieWriter[chars.length];
+            for (int i = 0; i < chars.length; i++) {
+                final int n = i;
+                tasks.add(pool.submit(new Callable<ByteArrayOutputStream>() {
+                    @Override
+                    public ByteArrayOutputStream call() throws IOException {
+                        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+                        writers[n] = writer.newSubtreeWriter(packed);
+                        offsets[n] = subtree.write(n, writers[n]);
+                        return packed;
+                    }
+                }));
             }
-            // children should be sorted!
-            for (BasicTrieNode child : node.getChildren()) {
-                // index key
-                long indexKey = child.getChar();
-                writeVarLenLong1(indexKey, cStream);
 
-                // relative offset
-                long relOffset = node.getOffset() - child.getOffset();
-                writeVarLenLong0(relOffset, cStream);
+            // write in order, as subtrees get ready
+            for (int i = 0; i < chars.length; i++) {
+                ByteArrayOutputStream packed = getResult(tasks.get(i));
+                tasks.set(i, null);
+                bases[i] = writer.append(chars[i], packed, offsets[i], writers[i]);
+                writers[i] = null;
             }
+        }
+        return bases;
+    }
 
-            long sizeOfIndex = cStream.size();
-            result = result + getVarLenLongSize(sizeOfIndex);
-            writeVarLenLong01(out, sizeOfIndex);
+    private static <T> T getResult(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
 
-            result = result + cStream.size();
-            cStream.writeTo(out);
+    private static void shiftOffsets(BasicTrieNode top, long base) {
+        Deque<BasicTrieNode> q = new ArrayDeque<>();
+        q.addFirst(top);
+        while (!q.isEmpty()) {
+            BasicTrieNode node = q.removeFirst();
+            // the nodes put off to the cluster before the root get their offsets at the end
+            if (0 <= node.getOffset()) {
+                node.setOffset(base + node.getOffset());
+            }
+            for (BasicTrieNode child : node.getChildren()) {
+                q.addFirst(child);
+            }
         }
+    }
 
-        return result;
+    /**
+     * Packs the entries into writable {@code out} stream without building a trie in memory.
+     * Entries should come sorted by key, as in {@link TreeMap}, see {@link PackedTrieWriter}.
+     *
+     * @param entries key and id pairs, sorted by key
+     * @param out     output stream
+     * @throws IOException IOException
+     */
+    public static void pack(Iterator<? extends Map.Entry<String, Long>> entries, OutputStream out) throws IOException {
+        pack(entries, out, new PackOptions());
+    }
+
+    /**
+     * Packs the entries into writable {@code out} stream without building a trie in memory.
+     * Entries should come sorted by key, as in {@link TreeMap}, see {@link PackedTrieWriter}.
+     * Packs in the calling thread, the pool of the {@code options} is not used.
+     *
+     * @param entries key and id pairs, sorted by key
+     * @param out     output stream
+     * @param options pack options
+     * @throws IOException IOException
+     */
+    public static void pack(Iterator<? extends Map.Entry<String, Long>> entries, OutputStream out, PackOptions options) throws IOException {
+        PackedTrieWriter writer = new PackedTrieWriter(out, options);
+        while (entries.hasNext()) {
+            Map.Entry<String, Long> e = entries.next();
+            writer.add(e.getKey(), e.getValue());
+        }
+        writer.finish();
     }
 
     /**
@@ -226,7 +625,7 @@ public class PackedTrie {
      * @param value 64-bit integer to encode
      * @return size in bytes of the variable length encoded 64-bit integer
      */
-    private static int getVarLenLongSize(final long value) {
+    static int getVarLenLongSize(final long value) {
         if ((value & (0xFFFFFFFFFFFFFFFFL << 7)) == 0) return 1;
         if ((value & (0xFFFFFFFFFFFFFFFFL << 14)) == 0) return 2;
         if ((value & (0xFFFFFFFFFFFFFFFFL << 21)) == 0) return 3;
@@ -239,24 +638,6 @@ public class PackedTrie {
         return 10;
     }
 
-    /**
-     * Encodes 64-bit integer as series of MSB0 bytes with last MSB1 byte.
-     *
-     * @param value 64-bit integer to encode
-     * @throws IOException
-     */
-    private static void writeVarLenLong01(OutputStream out, long value) throws IOException {
-        while (true) {
-            if ((value & ~0x7FL) == 0) {
-                out.write(((int) value & 0x7F) | 0x80);
-                return;
-            } else {
-                out.write((int) value & 0x7F);
-                value = value >>> 7;
-            }
-        }
-    }
-
     /**
      * Reads 64-bit integer encoded as series of MSB0 bytes with the last MSB1 byte.
      *
@@ -268,7 +649,7 @@ public class PackedTrie {
     private long readVarLenLong01(BufferFacade buffer, long offset) throws IOException {
         int shift = 0;
         long result = 0;
-        while (shift <= 70 && offset < buffer.limit()) {
+        while (shift <= 70 && offset < bufferLimit) {
             final byte b = buffer.get(offset);
             if ((b & 0x80) == 0x80) {
                 result = result | ((long) (b & 0x7F) << shift);
@@ -278,31 +659,13 @@ public class PackedTrie {
             shift = shift + 7;
             offset = offset + 1;
         }
-        if (offset != buffer.limit() || shift == 77) {
+        if (offset != bufferLimit || shift == 77) {
             throw new InvalidObjectException("Malformed variable length long");
         } else {
             return result;
         }
     }
 
-    /**
-     * Writes 64-bit integer encoded as series of MSB0 bytes with the last MSB1 byte.
-     *
-     * @param out stream to write to
-     * @throws IOException IOException
-     */
-    private static void writeVarLenLong1(long value, OutputStream out) throws IOException {
-        while (true) {
-            if ((value & ~0x7FL) == 0) {
-                out.write(((int) value & 0x7F) | 0x80);
-                return;
-            } else {
-                out.write(((int) value & 0x7F) | 0x80);
-                value = value >>> 7;
-            }
-        }
-    }
-
     /**
      * Reads 64-bit integer encoded as series of MSB1 bytes.
      *
@@ -362,24 +725,6 @@ public class PackedTrie {
         }
     }
 
-    /**
-     * Writes 64-bit integer encoded as a series of MSB0 bytes.
-     *
-     * @param out stream to write to
-     * @throws IOException IOException
-     */
-    private static void writeVarLenLong0(long value, OutputStream out) throws IOException {
-        while (true) {
-            if ((value & ~0x7FL) == 0) {
-                out.write((int) value & 0x7F);
-                return;
-            } else {
-                out.write((int) value & 0x7F);
-                value = value >>> 7;
-            }
-        }
-    }
-
     /**
      * Reads 64-bit integer encoded as a series of MSB0 bytes.
      *
@@ -440,6 +785,137 @@ public class PackedTrie {
         }
     }
 
+    /**
+     * Returns the char of the index {@code code}, see {@link PackOptions#setAlphabet(String)}.
+     *
+     * @param code index char, as stored
+     * @return char
+     */
+    private char toChar(long code) {
+        return null == alphabet ? (char) code : alphabet[(int) code];
+    }
+
+    /**
+     * Returns the index code of the char {@code c}, see {@link PackOptions#setAlphabet(String)}.
+     *
+     * @param c char
+     * @return index char, as stored, or -1 if the char is not in the alphabet
+     */
+    private int toCode(char c) {
+        if (null == codes) {
+            return c;
+        }
+        return c < codes.length ? codes[c] : -1;
+    }
+
+    /**
+     * Returns whether the node is a link of a chain: not a word, with one child, whose relative offset it keeps
+     * in place of the id, and whose char it keeps in place of the index, see {@link PackOptions#setPathCompression(boolean)}.
+     *
+     * @param nodeValue node value, with flags
+     * @return whether the node is a link of a chain
+     */
+    private boolean isChain(long nodeValue) {
+        return 0 != (flags & PackedTrieWriter.FLAG_CHAINS) && 0x2L == (nodeValue & 0x3L) && 0 != (nodeValue >>> 2);
+    }
+
+    /**
+     * Returns the relative offset of the child by the char {@code c}, for any node with children.
+     *
+     * @param c         char
+     * @param offset    offset right after the node value
+     * @param nodeValue node value, with flags
+     * @return relative offset of the child or -1 if there is none
+     * @throws IOException IOException
+     */
+    private long searchChild(char c, long offset, long nodeValue) throws IOException {
+        if (isChain(nodeValue)) {
+            return toCode(c) == readVarLenLong01(buffer, offset) ? nodeValue >>> 2 : -1;
+        }
+        long sizeOfIndex = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(sizeOfIndex);
+        return searchChildren(c, offset, offset + pairsSize(sizeOfIndex), sizeOfIndex);
+    }
+
+    /**
+     * Returns whether the node has a table of child offsets by char after the index pairs,
+     * see {@link PackOptions#setChildTables(int)}.
+     *
+     * @param sizeOfIndex index size, as stored
+     * @return whether the node has a table
+     */
+    private boolean hasTable(long sizeOfIndex) {
+        return 0 != (flags & PackedTrieWriter.FLAG_TABLES) && 0 < (sizeOfIndex & 0x1L);
+    }
+
+    /**
+     * Returns the size of the index pairs, in bytes.
+     *
+     * @param sizeOfIndex index size, as stored
+     * @return the size of the index pairs
+     */
+    private long pairsSize(long sizeOfIndex) {
+        return 0 == (flags & PackedTrieWriter.FLAG_TABLES) ? sizeOfIndex : sizeOfIndex >>> 1;
+    }
+
+    /**
+     * Returns where the index ends: past the pairs and the table, if any.
+     *
+     * @param offset      where the index pairs start
+     * @param sizeOfIndex index size, as stored
+     * @return offset right after the index
+     * @throws IOException IOException
+     */
+    private long skipIndex(long offset, long sizeOfIndex) throws IOException {
+        offset = offset + pairsSize(sizeOfIndex);
+        if (!hasTable(sizeOfIndex)) {
+            return offset;
+        }
+        offset = offset + getVarLenLongSize(readVarLenLong01(buffer, offset));
+        long span = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(span);
+        return offset + 1 + span * buffer.get(offset);
+    }
+
+    /**
+     * Searches for char {@code c} among the children of a node: in its table, if it has one,
+     * or in the index pairs in buffer[low, high).
+     *
+     * @param c           char to search for
+     * @param low         lower boundary of the pairs, inclusive
+     * @param high        end of the pairs, exclusive
+     * @param sizeOfIndex index size, as stored
+     * @return relative offset of the child or -1 if there is no such child
+     * @throws IOException IOException
+     */
+    private long searchChildren(char c, long low, long high, long sizeOfIndex) throws IOException {
+        if (null != codes) {
+            int code = toCode(c);
+            if (code < 0) {
+                return -1;
+            }
+            c = (char) code;
+        }
+        if (!hasTable(sizeOfIndex)) {
+            return binarySearchChildren(buffer, c, low, high);
+        }
+        // the table follows the pairs
+        long first = readVarLenLong01(buffer, high);
+        long offset = high + getVarLenLongSize(first);
+        long span = readVarLenLong01(buffer, offset);
+        if (c < first || first + span <= c) {
+            return -1;
+        }
+        offset = offset + getVarLenLongSize(span);
+        int width = buffer.get(offset);
+        offset = offset + 1 + (c - first) * width;
+        long relOffset = 0;
+        for (int i = 0; i < width; i++) {
+            relOffset = (relOffset << 8) | (buffer.get(offset + i) & 0xFFL);
+        }
+        return 0 == relOffset ? -1 : relOffset;
+    }
+
     /**
      * Searches for char {@code c} in the buffer[low, high) of pairs [char, offset] encoded as [MSB1, MSB0]
      *
@@ -450,7 +926,7 @@ public class PackedTrie {
      * @return offset
      * @throws IOException IOException
      */
-    private static long binarySearchChildren(BufferFacade buffer, char c, long low, long high) throws IOException {
+    private long binarySearchChildren(BufferFacade buffer, char c, long low, long high) throws IOException {
         while (low < high) {
             long midRange = low + ((high - low) / 2);
 
@@ -482,73 +958,514 @@ public class PackedTrie {
     }
 
     /**
-     * Returns value corresponding to key <code>k</code>.
+     * Returns the number of words, as the root table or the word counts have it, see
+     * {@link PackOptions#setRootTable(boolean)} and {@link PackOptions#setWordCounts(boolean)}.
      *
-     * @param k key
-     * @return value corresponding to key <code>k</code>
+     * @return the number of words or -1 if the packed trie has neither
      * @throws IOException IOException
      */
-    public Long get(String k) throws IOException {
-        if (null == k) {
-            throw new NullPointerException();
-        }
-        if ("".equals(k)) {
-            throw new IllegalArgumentException();
-        }
-
-        Long result = null;
-
-        int curLetter = 0;
-        int idx = Arrays.binarySearch(rootChars, k.charAt(curLetter));
-        if (0 <= idx) {
-            long currentOffset = rootOffsets[idx];
-            long nodeValue = rootValues[idx];
-            boolean hasChildren = rootHasChildren[idx];
-            boolean isWord = rootIsWord[idx];
-            long offset = currentOffset + getVarLenLongSize(nodeValue << 2);
-
-            curLetter = curLetter + 1;
-            while (curLetter < k.length() && hasChildren) {
-                long sizeOfIndex = readVarLenLong01(buffer, offset);
-                offset = offset + getVarLenLongSize(sizeOfIndex);
-
-                // binary search among children
-                long relOffset = binarySearchChildren(buffer, k.charAt(curLetter), offset, offset + sizeOfIndex);
-
-                if (-1 < relOffset) {
-                    curLetter = curLetter + 1;
-                    currentOffset = currentOffset - relOffset;
-                    // read record at currentOffset
-                    nodeValue = readVarLenLong01(buffer, currentOffset);
-                    offset = currentOffset + getVarLenLongSize(nodeValue);
-                    hasChildren = 0 < (nodeValue & 0x2L);
-                    isWord = 0 < (nodeValue & 0x1L);
-                    nodeValue = nodeValue >> 2;
-                } else {
-                    break;
-                }
-            }
-
-            if (curLetter == k.length() && isWord) {
-                result = nodeValue;
-            }
+    public long wordCount() throws IOException {
+        if (wordCount < 0 && 0 != (flags & PackedTrieWriter.FLAG_COUNTS)) {
+            wordCount = countWords(rootOffset, 0, Integer.MAX_VALUE);
         }
-        return result;
+        return wordCount;
     }
 
     /**
-     * Iterates over all entries where key fits the <code>pattern</code>.
-     * The _ (underscore) is a mask character in the pattern.
+     * Returns the key with the {@code id}, the first one in key order if there are several, from the id index,
+     * see {@link PackOptions#setIdIndex(boolean)}. Finds the rank of the key in the index and then goes down
+     * from the root to it, summing the word counts of the children before, so it reads about as many nodes as
+     * the key has chars, times the number of their children.
      *
-     * @param pattern pattern
-     * @return iterator
+     * @param id id
+     * @return the key with the {@code id} or null if there is no such key
+     * @throws IOException IOException
      */
-    public PatternIterator iteratePatterns(String pattern) {
-        return new PatternIterator(pattern, -1, -1);
-    }
+    public String getKey(long id) throws IOException {
+        if (idIndexOffset < 0) {
+            throw new UnsupportedOperationException("the packed trie has no id index");
+        }
 
-    /**
-     * Iterates over all entries where key fits the <code>pattern</code>, respecting page boundaries.
+        // the first record with the id
+        int recordWidth = idWidth + rankWidth;
+        long low = 0;
+        long high = idCount;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (readFixed(idIndexOffset + mid * recordWidth, idWidth) < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (idCount == low || id != readFixed(idIndexOffset + low * recordWidth, idWidth)) {
+            return null;
+        }
+        long rank = readFixed(idIndexOffset + low * recordWidth + idWidth, rankWidth);
+
+        // the key is the rank-th word in key order: a node before its children, children in char order
+        StringBuilder key = new StringBuilder();
+        long nodeOffset = rootOffset;
+        long nodeValue = readVarLenLong01(buffer, nodeOffset);
+        while (true) {
+            long offset = nodeOffset + getVarLenLongSize(nodeValue);
+            if (isChain(nodeValue)) {
+                key.append(toChar(readVarLenLong01(buffer, offset)));
+                nodeOffset = nodeOffset - (nodeValue >>> 2);
+                nodeValue = readVarLenLong01(buffer, nodeOffset);
+                continue;
+            }
+            if (0 < (nodeValue & 0x1L)) {
+                if (0 == rank) {
+                    return key.toString();
+                }
+                rank--;
+            }
+            if (0 == (nodeValue & 0x2L)) {
+                throw new InvalidObjectException("Malformed id index");
+            }
+            long sizeOfIndex = readVarLenLong01(buffer, offset);
+            offset = offset + getVarLenLongSize(sizeOfIndex);
+            long endOfIndex = offset + pairsSize(sizeOfIndex);
+            long childOffset = -1;
+            while (offset < endOfIndex) {
+                long indexKey = readVarLenLong1(buffer, offset, endOfIndex);
+                offset = offset + getVarLenLongSize(indexKey);
+                long relOffset = readVarLenLong0(buffer, offset, endOfIndex);
+                offset = offset + getVarLenLongSize(relOffset);
+                long count = countWords(nodeOffset - relOffset, 0, Integer.MAX_VALUE);
+                if (rank < count) {
+                    key.append(toChar(indexKey));
+                    childOffset = nodeOffset - relOffset;
+                    break;
+                }
+                rank = rank - count;
+            }
+            if (childOffset < 0) {
+                throw new InvalidObjectException("Malformed id index");
+            }
+            nodeOffset = childOffset;
+            nodeValue = readVarLenLong01(buffer, nodeOffset);
+        }
+    }
+
+    /**
+     * Reads a big-endian number of {@code width} bytes.
+     */
+    private long readFixed(long offset, int width) {
+        long result = 0;
+        for (int i = 0; i < width; i++) {
+            result = (result << 8) | (buffer.get(offset + i) & 0xFFL);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the id of the word with the node value and the key, which comes either as <code>k</code> or, if it is
+     * null, as <code>buf[off, off + len)</code>: the id in the node value or, with the id table, the one of the rank
+     * of the word.
+     */
+    private long getId(long nodeValue, CharSequence k, char[] buf, int off, int len) throws IOException {
+        if (idTableOffset < 0) {
+            return nodeValue >> 2;
+        }
+        return getIdByRank(0 == len ? 0 : getRank(k, buf, off, len));
+    }
+
+    /**
+     * Returns the id of the word of the rank from the id table.
+     */
+    private long getIdByRank(long rank) {
+        return readFixed(idTableOffset + rank * idTableWidth, idTableWidth);
+    }
+
+    /**
+     * Returns the rank of the key in key order, which is the number of words before it: the words on the path
+     * from the root to it and below the children before the path, or -1 if the key is not a word.
+     * <p>
+     * Goes down once, as {@link #lookup} does, from the deepest cached node on the path, whose rank is in the heap.
+     * Below it, every level costs the child search plus the rank of the child, which the node stores after the
+     * counts and which is found by the index pairs before it. Needs word counts.
+     */
+    private long getRank(CharSequence k, char[] buf, int off, int len) throws IOException {
+        if (0 == len) {
+            throw new IllegalArgumentException();
+        }
+        if (null == k && (off < 0 || len < 0 || buf.length - len < off)) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        int curLetter = 0;
+        long nodeOffset;
+        long nodeValue;
+        long rank;
+        if (null == cacheChildren) {
+            int idx = Arrays.binarySearch(rootChars, null == k ? buf[off] : k.charAt(curLetter));
+            if (idx < 0) {
+                return -1;
+            }
+            rank = getRootRanks()[idx];
+            nodeOffset = rootOffsets[idx];
+            nodeValue = (rootValues[idx] << 2) | (rootHasChildren[idx] ? 0x2L : 0x0L) | (rootIsWord[idx] ? 0x1L : 0x0L);
+            curLetter = curLetter + 1;
+        } else {
+            int node = 0;
+            while (curLetter < len && node < cacheChildren.length - 1) {
+                char c = null == k ? buf[off + curLetter] : k.charAt(curLetter);
+                node = Arrays.binarySearch(cacheChars, cacheChildren[node], cacheChildren[node + 1], c);
+                if (node < 0) {
+                    return -1;
+                }
+                curLetter = curLetter + 1;
+            }
+            rank = cacheRanks[node];
+            nodeOffset = cacheOffsets[node];
+            nodeValue = cacheValues[node];
+        }
+
+        while (curLetter < len) {
+            if (0 == (nodeValue & 0x2L)) {
+                return -1;
+            }
+            char c = null == k ? buf[off + curLetter] : k.charAt(curLetter);
+            long relOffset = searchChild(c, nodeOffset + getVarLenLongSize(nodeValue), nodeValue);
+            if (relOffset < 0) {
+                return -1;
+            }
+            rank = rank + (nodeValue & 0x1L) + wordsBefore(nodeOffset, nodeValue, c);
+            curLetter = curLetter + 1;
+            nodeOffset = nodeOffset - relOffset;
+            nodeValue = readVarLenLong01(buffer, nodeOffset);
+        }
+        return 0 < (nodeValue & 0x1L) ? rank : -1;
+    }
+
+    /**
+     * Returns the number of words before each root child, counting them once.
+     */
+    private long[] getRootRanks() throws IOException {
+        if (null == rootRanks) {
+            long[] ranks = new long[rootChars.length];
+            long rank = readVarLenLong01(buffer, rootOffset) & 0x1L;
+            for (int i = 0; i < ranks.length; i++) {
+                ranks[i] = rank;
+                rank = rank + countWords(rootOffsets[i], 0, Integer.MAX_VALUE);
+            }
+            rootRanks = ranks;
+        }
+        return rootRanks;
+    }
+
+    /**
+     * Returns the number of words below the children of the node before its child by the char {@code c}, which
+     * should be there: the rank of the child the node stores after the counts. Needs word counts.
+     */
+    private long wordsBefore(long nodeOffset, long nodeValue, char c) throws IOException {
+        if (isChain(nodeValue)) {
+            return 0;
+        }
+        long offset = nodeOffset + getVarLenLongSize(nodeValue);
+        long sizeOfIndex = readVarLenLong01(buffer, offset);
+        long pairs = offset + getVarLenLongSize(sizeOfIndex);
+        long endOfIndex = pairs + pairsSize(sizeOfIndex);
+        offset = pairs;
+        int child = 0;
+        while (true) {
+            if (endOfIndex <= offset) {
+                throw new InvalidObjectException("Malformed id table");
+            }
+            long indexKey = readVarLenLong1(buffer, offset, endOfIndex);
+            if (c == toChar(indexKey)) {
+                break;
+            }
+            offset = offset + getVarLenLongSize(indexKey);
+            offset = offset + getVarLenLongSize(readVarLenLong0(buffer, offset, endOfIndex));
+            child++;
+        }
+        if (0 == child) {
+            return 0;
+        }
+
+        // the ranks follow the counts, the first child has none
+        offset = skipDepths(skipIndex(pairs, sizeOfIndex));
+        long total = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(total);
+        long height = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(height);
+        for (long i = 1; i < (height >>> 1) && 0 == (height & 0x1L); i++) {
+            offset = offset + getVarLenLongSize(readVarLenLong01(buffer, offset));
+        }
+        int width = (64 - Long.numberOfLeadingZeros(total) + 7) >>> 3;
+        offset = offset + (child - 1) * width;
+        long result = 0;
+        for (int i = 0; i < width; i++) {
+            result = (result << 8) | (buffer.get(offset + i) & 0xFFL);
+        }
+        return result;
+    }
+
+    /**
+     * Returns value corresponding to key <code>k</code>.
+     *
+     * @param k key
+     * @return value corresponding to key <code>k</code>
+     * @throws IOException IOException
+     */
+    public Long get(String k) throws IOException {
+        if (null == k) {
+            throw new NullPointerException();
+        }
+        if (0 <= idTableOffset) {
+            long rank = getRank(k, null, 0, k.length());
+            return rank < 0 ? null : getIdByRank(rank);
+        }
+        long nodeValue = lookup(k, null, 0, k.length());
+        return 0 < (nodeValue & 0x1L) ? nodeValue >> 2 : null;
+    }
+
+    /**
+     * Returns value corresponding to key <code>k</code> or <code>missingValue</code> if there is no such key.
+     * Does not allocate.
+     *
+     * @param k            key
+     * @param missingValue value to return if there is no such key
+     * @return value corresponding to key <code>k</code> or <code>missingValue</code>
+     * @throws IOException IOException
+     */
+    public long getLong(CharSequence k, long missingValue) throws IOException {
+        if (null == k) {
+            throw new NullPointerException();
+        }
+        if (0 <= idTableOffset) {
+            long rank = getRank(k, null, 0, k.length());
+            return rank < 0 ? missingValue : getIdByRank(rank);
+        }
+        long nodeValue = lookup(k, null, 0, k.length());
+        return 0 < (nodeValue & 0x1L) ? nodeValue >> 2 : missingValue;
+    }
+
+    /**
+     * Returns value corresponding to the key in <code>buf[off, off + len)</code> or <code>missingValue</code>
+     * if there is no such key. Does not allocate.
+     *
+     * @param buf          buffer with the key
+     * @param off          where the key starts
+     * @param len          key length
+     * @param missingValue value to return if there is no such key
+     * @return value corresponding to the key or <code>missingValue</code>
+     * @throws IOException IOException
+     */
+    public long getLong(char[] buf, int off, int len, long missingValue) throws IOException {
+        if (null == buf) {
+            throw new NullPointerException();
+        }
+        if (0 <= idTableOffset) {
+            long rank = getRank(null, buf, off, len);
+            return rank < 0 ? missingValue : getIdByRank(rank);
+        }
+        long nodeValue = lookup(null, buf, off, len);
+        return 0 < (nodeValue & 0x1L) ? nodeValue >> 2 : missingValue;
+    }
+
+    /**
+     * Returns whether there is key <code>k</code>. Does not allocate.
+     *
+     * @param k key
+     * @return whether there is key <code>k</code>
+     * @throws IOException IOException
+     */
+    public boolean contains(CharSequence k) throws IOException {
+        if (null == k) {
+            throw new NullPointerException();
+        }
+        long nodeValue = lookup(k, null, 0, k.length());
+        return 0 < (nodeValue & 0x1L);
+    }
+
+    /**
+     * Returns whether there is the key in <code>buf[off, off + len)</code>. Does not allocate.
+     *
+     * @param buf buffer with the key
+     * @param off where the key starts
+     * @param len key length
+     * @return whether there is the key
+     * @throws IOException IOException
+     */
+    public boolean contains(char[] buf, int off, int len) throws IOException {
+        if (null == buf) {
+            throw new NullPointerException();
+        }
+        long nodeValue = lookup(null, buf, off, len);
+        return 0 < (nodeValue & 0x1L);
+    }
+
+    /**
+     * Returns the values corresponding to the <code>keys</code>, with <code>missingValue</code> for the keys
+     * that are not there.
+     * <p>
+     * Goes down from the nodes it reached for the previous key, as far as the keys share a prefix, rather than
+     * from the root. With the keys sorted, it reads roughly the union of their paths once.
+     *
+     * @param keys         keys, sorted for the best speed
+     * @param missingValue value to return for the keys that are not there
+     * @return values corresponding to the keys, in the order of the keys
+     * @throws IOException IOException
+     */
+    public long[] getAll(CharSequence[] keys, long missingValue) throws IOException {
+        if (null == keys) {
+            throw new NullPointerException();
+        }
+        long[] result = new long[keys.length];
+        // nodes of the prefixes of the previous key: i-th is of the prefix i + 1 chars long
+        long[] offsets = new long[16];
+        long[] values = new long[16];
+        // with the id table, the ranks of these nodes
+        long[] ranks = idTableOffset < 0 ? null : new long[16];
+        int depth = 0;
+        CharSequence previous = null;
+        for (int i = 0; i < keys.length; i++) {
+            CharSequence k = keys[i];
+            if (null == k) {
+                throw new NullPointerException();
+            }
+            int len = k.length();
+            if (0 == len) {
+                throw new IllegalArgumentException();
+            }
+
+            int common = 0;
+            while (common < depth && common < len && previous.charAt(common) == k.charAt(common)) {
+                common++;
+            }
+            depth = common;
+            if (0 == depth) {
+                int idx = Arrays.binarySearch(rootChars, k.charAt(0));
+                if (-1 < idx) {
+                    offsets[0] = rootOffsets[idx];
+                    values[0] = (rootValues[idx] << 2) | (rootHasChildren[idx] ? 0x2L : 0x0L) | (rootIsWord[idx] ? 0x1L : 0x0L);
+                    if (null != ranks) {
+                        ranks[0] = getRootRanks()[idx];
+                    }
+                    depth = 1;
+                }
+            }
+            while (0 < depth && depth < len && 0 < (values[depth - 1] & 0x2L)) {
+                long nodeOffset = offsets[depth - 1];
+                long offset = nodeOffset + getVarLenLongSize(values[depth - 1]);
+                long relOffset = searchChild(k.charAt(depth), offset, values[depth - 1]);
+                if (relOffset < 0) {
+                    break;
+                }
+                if (offsets.length == depth) {
+                    offsets = Arrays.copyOf(offsets, 2 * depth);
+                    values = Arrays.copyOf(values, 2 * depth);
+                    if (null != ranks) {
+                        ranks = Arrays.copyOf(ranks, 2 * depth);
+                    }
+                }
+                if (null != ranks) {
+                    ranks[depth] = ranks[depth - 1] + (values[depth - 1] & 0x1L) + wordsBefore(nodeOffset, values[depth - 1], k.charAt(depth));
+                }
+                offsets[depth] = nodeOffset - relOffset;
+                values[depth] = readVarLenLong01(buffer, offsets[depth]);
+                depth++;
+            }
+
+            if (len <= depth && 0 < (values[len - 1] & 0x1L)) {
+                result[i] = null == ranks ? values[len - 1] >> 2 : getIdByRank(ranks[len - 1]);
+            } else {
+                result[i] = missingValue;
+            }
+            previous = k;
+        }
+        return result;
+    }
+
+    /**
+     * Looks up the node of the key, which comes either as <code>k</code> or, if it is null,
+     * as <code>buf[off, off + len)</code>.
+     *
+     * @return node value with flags or 0, which is not a word, if there is no such node
+     */
+    private long lookup(CharSequence k, char[] buf, int off, int len) throws IOException {
+        if (0 == len) {
+            throw new IllegalArgumentException();
+        }
+        if (null == k && (off < 0 || len < 0 || buf.length - len < off)) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        int curLetter = 0;
+        long currentOffset;
+        long nodeValue;
+        if (null == cacheChildren) {
+            int idx = Arrays.binarySearch(rootChars, null == k ? buf[off] : k.charAt(curLetter));
+            if (idx < 0) {
+                return 0;
+            }
+            currentOffset = rootOffsets[idx];
+            nodeValue = (rootValues[idx] << 2) | (rootHasChildren[idx] ? 0x2L : 0x0L) | (rootIsWord[idx] ? 0x1L : 0x0L);
+            curLetter = curLetter + 1;
+        } else {
+            // down the cached levels
+            int node = 0;
+            while (curLetter < len && node < cacheChildren.length - 1) {
+                char c = null == k ? buf[off + curLetter] : k.charAt(curLetter);
+                node = Arrays.binarySearch(cacheChars, cacheChildren[node], cacheChildren[node + 1], c);
+                if (node < 0) {
+                    return 0;
+                }
+                curLetter = curLetter + 1;
+            }
+            currentOffset = cacheOffsets[node];
+            nodeValue = cacheValues[node];
+        }
+        long offset = currentOffset + getVarLenLongSize(nodeValue);
+
+        while (curLetter < len) {
+            if (0 == (nodeValue & 0x2L)) {
+                return 0;
+            }
+
+            // binary search among children, or a char to compare for a link of a chain
+            char c = null == k ? buf[off + curLetter] : k.charAt(curLetter);
+            long relOffset = searchChild(c, offset, nodeValue);
+            if (relOffset < 0) {
+                return 0;
+            }
+
+            curLetter = curLetter + 1;
+            currentOffset = currentOffset - relOffset;
+            // read record at currentOffset
+            nodeValue = readVarLenLong01(buffer, currentOffset);
+            offset = currentOffset + getVarLenLongSize(nodeValue);
+        }
+        return nodeValue;
+    }
+
+    /**
+     * Iterates over all entries where key fits the <code>pattern</code>.
+     * The _ (underscore) is a mask character in the pattern.
+     *
+     * @param pattern pattern
+     * @return iterator
+     */
+    public PatternIterator iteratePatterns(String pattern) {
+        return new PatternIterator(pattern, -1, -1);
+    }
+
+    /**
+     * Iterates over all entries where key fits the <code>pattern</code>.
+     *
+     * @param pattern pattern
+     * @return iterator
+     */
+    public PatternIterator iteratePatterns(TriePattern pattern) {
+        return new PatternIterator(pattern, -1, -1);
+    }
+
+    /**
+     * Iterates over all entries where key fits the <code>pattern</code>, respecting page boundaries.
      * The _ (underscore) is a mask character in the pattern.
      *
      * @param pattern  pattern
@@ -560,6 +1477,18 @@ public class PackedTrie {
         return new PatternIterator(pattern, pageNo, pageSize);
     }
 
+    /**
+     * Iterates over all entries where key fits the <code>pattern</code>, respecting page boundaries.
+     *
+     * @param pattern  pattern
+     * @param pageNo   page number, 0-based
+     * @param pageSize page size
+     * @return iterator
+     */
+    public PatternIterator iteratePatterns(TriePattern pattern, long pageNo, long pageSize) {
+        return new PatternIterator(pattern, pageNo, pageSize);
+    }
+
     /**
      * Iterates over all values where key fits the <code>pattern</code>.
      * The _ (underscore) is a mask character in the pattern.
@@ -571,6 +1500,16 @@ public class PackedTrie {
         return new LongIterator(pattern, -1, -1);
     }
 
+    /**
+     * Iterates over all values where key fits the <code>pattern</code>.
+     *
+     * @param pattern pattern
+     * @return iterator
+     */
+    public LongIterator iterateValues(TriePattern pattern) {
+        return new LongIterator(pattern, -1, -1);
+    }
+
     /**
      * Iterates over all values where key fits the <code>pattern</code>, respecting page boundaries.
      * The _ (underscore) is a mask character in the pattern.
@@ -584,114 +1523,1556 @@ public class PackedTrie {
         return new LongIterator(pattern, pageNo, pageSize);
     }
 
-    private static class PackedTrieEntry implements Map.Entry<String, Long> {
-        private final String k;
-        private Long v;
+    /**
+     * Iterates over all values where key fits the <code>pattern</code>, respecting page boundaries.
+     *
+     * @param pattern  pattern
+     * @param pageNo   page number, 0-based
+     * @param pageSize page size
+     * @return iterator
+     */
+    public LongIterator iterateValues(TriePattern pattern, long pageNo, long pageSize) {
+        return new LongIterator(pattern, pageNo, pageSize);
+    }
+
+    /**
+     * Iterates over the entries where key fits the cursor pattern, from the cursor on, up to {@code pageSize} entries.
+     * Resumes right after the cursor key without iterating over the keys before, see
+     * {@link PatternIterator#cursor()}.
+     *
+     * @param cursor   where to resume from
+     * @param pageSize page size, 0 or less for no limit
+     * @return iterator
+     */
+    public PatternIterator iteratePatterns(PatternCursor cursor, long pageSize) {
+        return new PatternIterator(cursor, pageSize);
+    }
+
+    /**
+     * Iterates over the values where key fits the cursor pattern, from the cursor on, up to {@code pageSize} values.
+     * Resumes right after the cursor key without iterating over the keys before, see
+     * {@link LongIterator#cursor()}.
+     *
+     * @param cursor   where to resume from
+     * @param pageSize page size, 0 or less for no limit
+     * @return iterator
+     */
+    public LongIterator iterateValues(PatternCursor cursor, long pageSize) {
+        return new LongIterator(cursor, pageSize);
+    }
+
+    /**
+     * Streams the entries where key fits the <code>pattern</code>, in key order.
+     * The _ (underscore) is a mask character in the pattern.
+     * <p>
+     * The stream splits by subtrees that fit the pattern, so as a parallel stream it runs in several threads.
+     * Parallel streams need a thread-safe buffer, see {@link org.entitypedia.games.common.buffer.BufferFacadeFactory#createThreadsafe(java.nio.ByteBuffer)}.
+     * With word counts, see {@link PackOptions#setWordCounts(boolean)}, the stream size is known.
+     *
+     * @param pattern pattern
+     * @return stream of entries
+     */
+    public Stream<Map.Entry<String, Long>> streamPatterns(String pattern) {
+        return streamPatterns(TriePattern.mask(pattern));
+    }
+
+    /**
+     * Streams the entries where key fits the <code>pattern</code>, in key order.
+     * Splits as {@link #streamPatterns(String)} does.
+     *
+     * @param pattern pattern
+     * @return stream of entries
+     */
+    public Stream<Map.Entry<String, Long>> streamPatterns(TriePattern pattern) {
+        return StreamSupport.stream(new PatternSpliterator(pattern), false);
+    }
+
+    /**
+     * Streams the values where key fits the <code>pattern</code>, in key order.
+     * The _ (underscore) is a mask character in the pattern. Splits as {@link #streamPatterns(String)} does.
+     *
+     * @param pattern pattern
+     * @return stream of values
+     */
+    public LongStream streamValues(String pattern) {
+        return streamValues(TriePattern.mask(pattern));
+    }
+
+    /**
+     * Streams the values where key fits the <code>pattern</code>, in key order.
+     * Splits as {@link #streamPatterns(String)} does.
+     *
+     * @param pattern pattern
+     * @return stream of values
+     */
+    public LongStream streamValues(TriePattern pattern) {
+        return StreamSupport.longStream(new ValueSpliterator(pattern), false);
+    }
+
+    /**
+     * Visits the keys that fit the <code>pattern</code>, in key order, and the prefixes on the way to them.
+     * The _ (underscore) is a mask character in the pattern.
+     * <p>
+     * Unlike iterators, does not create a string or an entry per key: the visitor gets a view of the traversal
+     * buffer and the value as is. The visitor can skip the subtrees of prefixes and stop at any time.
+     *
+     * @param pattern pattern
+     * @param visitor visitor
+     * @return false if the visitor stopped the traversal, true otherwise
+     * @throws IOException IOException
+     */
+    public boolean visitPatterns(String pattern, TrieVisitor visitor) throws IOException {
+        return visitPatterns(TriePattern.mask(pattern), visitor);
+    }
+
+    /**
+     * Visits the keys that fit the <code>pattern</code>, in key order, and the prefixes on the way to them.
+     * See {@link #visitPatterns(String, TrieVisitor)}.
+     *
+     * @param pattern pattern
+     * @param visitor visitor
+     * @return false if the visitor stopped the traversal, true otherwise
+     * @throws IOException IOException
+     */
+    public boolean visitPatterns(TriePattern pattern, TrieVisitor visitor) throws IOException {
+        if (null == pattern) {
+            throw new IllegalArgumentException("pattern should not be null");
+        }
+        if (null == visitor) {
+            throw new NullPointerException();
+        }
+        if (0 == pattern.length()) {
+            return true;
+        }
+        long nodeValue = readVarLenLong01(buffer, rootOffset);
+        if (!pattern.isFixed()) {
+            return visitChildren(rootOffset, nodeValue, 0, pattern.start(), pattern, new KeyView(16), visitor);
+        }
+        return visitChildren(rootOffset, nodeValue, 0, pattern, new KeyView(pattern.length()), visitor);
+    }
+
+    /**
+     * Visits the children of the node that fit the pattern at {@code level}.
+     *
+     * @return false if the visitor stopped the traversal
+     */
+    private boolean visitChildren(long nodeOffset, long nodeValue, int level, TriePattern pattern, KeyView key, TrieVisitor visitor) throws IOException {
+        if (0 == (nodeValue & 0x2L)) {
+            return true;
+        }
+        long offset = nodeOffset + getVarLenLongSize(nodeValue);
+        if (isChain(nodeValue)) {
+            char c = toChar(readVarLenLong01(buffer, offset));
+            return !pattern.matches(level, c) || visitNode(nodeOffset - (nodeValue >>> 2), c, level, pattern, key, visitor);
+        }
+        long sizeOfIndex = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(sizeOfIndex);
+        long high = offset + pairsSize(sizeOfIndex);
+
+        char[] set = pattern.getChars(level);
+        if (isSearchable(set, sizeOfIndex)) {
+            for (char c : set) {
+                long relOffset = searchChildren(c, offset, high, sizeOfIndex);
+                if (-1 < relOffset && !visitNode(nodeOffset - relOffset, c, level, pattern, key, visitor)) {
+                    return false;
+                }
+            }
+        } else {
+            while (offset < high) {
+                long indexKey = readVarLenLong1(buffer, offset, high);
+                offset = offset + getVarLenLongSize(indexKey);
+                long relOffset = readVarLenLong0(buffer, offset, high);
+                offset = offset + getVarLenLongSize(relOffset);
+                if (pattern.matches(level, toChar(indexKey))
+                        && !visitNode(nodeOffset - relOffset, toChar(indexKey), level, pattern, key, visitor)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visits the node, which fits the pattern up to {@code level}, and its subtree.
+     *
+     * @return false if the visitor stopped the traversal
+     */
+    private boolean visitNode(long nodeOffset, char c, int level, TriePattern pattern, KeyView key, TrieVisitor visitor) throws IOException {
+        key.chars[level] = c;
+        key.length = level + 1;
+        long nodeValue = readVarLenLong01(buffer, nodeOffset);
+        if (level == pattern.length() - 1) {
+            return 0 == (nodeValue & 0x1L) || TrieVisitor.Action.STOP != visitor.visit(key, getId(nodeValue, key, null, 0, key.length));
+        }
+        int below = pattern.length() - key.length;
+        if (0 == (nodeValue & 0x2L) || !hasWords(nodeOffset, nodeValue, below, below)) {
+            return true;
+        }
+
+        TrieVisitor.Action action = visitor.enter(key);
+        if (TrieVisitor.Action.STOP == action) {
+            return false;
+        }
+        return TrieVisitor.Action.SKIP_SUBTREE == action || visitChildren(nodeOffset, nodeValue, level + 1, pattern, key, visitor);
+    }
+
+    /**
+     * Visits the children of the node at {@code depth}, after which a variable pattern is at the {@code states}.
+     *
+     * @return false if the visitor stopped the traversal
+     */
+    private boolean visitChildren(long nodeOffset, long nodeValue, int depth, long states, TriePattern pattern, KeyView key, TrieVisitor visitor) throws IOException {
+        if (0 == (nodeValue & 0x2L)) {
+            return true;
+        }
+        long offset = nodeOffset + getVarLenLongSize(nodeValue);
+        if (isChain(nodeValue)) {
+            char c = toChar(readVarLenLong01(buffer, offset));
+            long next = pattern.step(states, c, depth + 1);
+            return 0 == next || visitNode(nodeOffset - (nodeValue >>> 2), c, depth + 1, next, pattern, key, visitor);
+        }
+        long sizeOfIndex = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(sizeOfIndex);
+        long high = offset + pairsSize(sizeOfIndex);
+
+        char[] set = getChars(pattern, states);
+        if (isSearchable(set, sizeOfIndex)) {
+            for (char c : set) {
+                long relOffset = searchChildren(c, offset, high, sizeOfIndex);
+                if (-1 < relOffset) {
+                    long next = pattern.step(states, c, depth + 1);
+                    if (0 != next && !visitNode(nodeOffset - relOffset, c, depth + 1, next, pattern, key, visitor)) {
+                        return false;
+                    }
+                }
+            }
+        } else {
+            while (offset < high) {
+                long indexKey = readVarLenLong1(buffer, offset, high);
+                offset = offset + getVarLenLongSize(indexKey);
+                long relOffset = readVarLenLong0(buffer, offset, high);
+                offset = offset + getVarLenLongSize(relOffset);
+                long next = pattern.step(states, toChar(indexKey), depth + 1);
+                if (0 != next && !visitNode(nodeOffset - relOffset, toChar(indexKey), depth + 1, next, pattern, key, visitor)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visits the node at {@code depth}, after which a variable pattern is at the {@code states}, and its subtree.
+     *
+     * @return false if the visitor stopped the traversal
+     */
+    private boolean visitNode(long nodeOffset, char c, int depth, long states, TriePattern pattern, KeyView key, TrieVisitor visitor) throws IOException {
+        if (key.chars.length < depth) {
+            key.chars = Arrays.copyOf(key.chars, 2 * depth);
+        }
+        key.chars[depth - 1] = c;
+        key.length = depth;
+        long nodeValue = readVarLenLong01(buffer, nodeOffset);
+        if (0 < (nodeValue & 0x1L) && pattern.accepts(states, depth)
+                && TrieVisitor.Action.STOP == visitor.visit(key, getId(nodeValue, key, null, 0, depth))) {
+            return false;
+        }
+        if (0 == (nodeValue & 0x2L) || pattern.getMaxLength() <= depth || !pattern.continues(states)
+                || !hasWords(nodeOffset, nodeValue, pattern.getMinLength() - depth, pattern.getMaxLength() - depth)) {
+            return true;
+        }
+
+        TrieVisitor.Action action = visitor.enter(key);
+        if (TrieVisitor.Action.STOP == action) {
+            return false;
+        }
+        return TrieVisitor.Action.SKIP_SUBTREE == action || visitChildren(nodeOffset, nodeValue, depth, states, pattern, key, visitor);
+    }
+
+    /**
+     * Key or prefix being visited, a view of the traversal buffer.
+     */
+    private static final class KeyView implements CharSequence {
+        private char[] chars;
+        private int length;
+
+        private KeyView(int capacity) {
+            this.chars = new char[capacity];
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || length <= index) {
+                throw new IndexOutOfBoundsException();
+            }
+            return chars[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end < start || length < end) {
+                throw new IndexOutOfBoundsException();
+            }
+            return new String(chars, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, 0, length);
+        }
+    }
+
+    /**
+     * Returns the keys that fit each of the <code>patterns</code>, in key order, in a single traversal.
+     * The _ (underscore) is a mask character in the patterns.
+     * <p>
+     * Goes into a branch while any of the patterns fits it, so the prefixes the patterns share, like those of the
+     * slots of a crossword grid, are read once, and so is every key string, whichever patterns it fits.
+     *
+     * @param patterns patterns
+     * @return the keys and the values that fit each pattern, in the order of the patterns
+     * @throws IOException IOException
+     */
+    public List<List<Map.Entry<String, Long>>> findPatterns(String... patterns) throws IOException {
+        if (null == patterns) {
+            throw new IllegalArgumentException("patterns should not be null");
+        }
+        TriePattern[] compiled = new TriePattern[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            compiled[i] = TriePattern.mask(patterns[i]);
+        }
+        return findPatterns(compiled);
+    }
+
+    /**
+     * Returns the keys that fit each of the <code>patterns</code>, in key order, in a single traversal.
+     * See {@link #findPatterns(String...)}.
+     *
+     * @param patterns patterns
+     * @return the keys and the values that fit each pattern, in the order of the patterns
+     * @throws IOException IOException
+     */
+    public List<List<Map.Entry<String, Long>>> findPatterns(TriePattern... patterns) throws IOException {
+        if (null == patterns) {
+            throw new IllegalArgumentException("patterns should not be null");
+        }
+        Batch batch = new Batch(patterns);
+        int size = 0;
+        for (int i = 0; i < patterns.length; i++) {
+            if (null == patterns[i]) {
+                throw new IllegalArgumentException("pattern should not be null");
+            }
+            batch.results.add(new ArrayList<Map.Entry<String, Long>>());
+            if (0 < patterns[i].length()) {
+                batch.active[0][size] = i;
+                batch.states[0][size] = patterns[i].isFixed() ? 0 : patterns[i].start();
+                size++;
+            }
+        }
+        if (0 < size) {
+            findChildren(rootOffset, readVarLenLong01(buffer, rootOffset), 0, size, batch);
+        }
+        return batch.results;
+    }
+
+    /**
+     * Goes into the children of the node at {@code depth} that fit any of the first {@code size} active
+     * patterns at that depth.
+     */
+    private void findChildren(long nodeOffset, long nodeValue, int depth, int size, Batch batch) throws IOException {
+        if (0 == (nodeValue & 0x2L)) {
+            return;
+        }
+        long offset = nodeOffset + getVarLenLongSize(nodeValue);
+
+        // leave out the patterns without words of their length below
+        int[] active = batch.active[depth];
+        long[] states = batch.states[depth];
+        int live = 0;
+        for (int i = 0; i < size; i++) {
+            TriePattern pattern = batch.patterns[active[i]];
+            boolean fits;
+            if (pattern.isFixed()) {
+                int below = pattern.length() - depth;
+                fits = 0 < below && hasWords(nodeOffset, nodeValue, below, below);
+            } else {
+                fits = depth < pattern.getMaxLength() && pattern.continues(states[i])
+                        && hasWords(nodeOffset, nodeValue, pattern.getMinLength() - depth, pattern.getMaxLength() - depth);
+            }
+            if (fits) {
+                active[live] = active[i];
+                states[live] = states[i];
+                live++;
+            }
+        }
+        if (0 == live) {
+            return;
+        }
+        batch.ensureDepth(depth + 1);
+        if (isChain(nodeValue)) {
+            findChild(nodeOffset - (nodeValue >>> 2), toChar(readVarLenLong01(buffer, offset)), depth, live, batch);
+            return;
+        }
+
+        long sizeOfIndex = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(sizeOfIndex);
+        long high = offset + pairsSize(sizeOfIndex);
+
+        char[] set = null;
+        if (1 == live) {
+            TriePattern pattern = batch.patterns[active[0]];
+            set = pattern.isFixed() ? pattern.getChars(depth) : getChars(pattern, states[0]);
+        }
+        if (isSearchable(set, sizeOfIndex)) {
+            for (char c : set) {
+                long relOffset = searchChildren(c, offset, high, sizeOfIndex);
+                if (-1 < relOffset) {
+                    findChild(nodeOffset - relOffset, c, depth, live, batch);
+                }
+            }
+        } else {
+            while (offset < high) {
+                long indexKey = readVarLenLong1(buffer, offset, high);
+                offset = offset + getVarLenLongSize(indexKey);
+                long relOffset = readVarLenLong0(buffer, offset, high);
+                offset = offset + getVarLenLongSize(relOffset);
+                findChild(nodeOffset - relOffset, toChar(indexKey), depth, live, batch);
+            }
+        }
+    }
+
+    /**
+     * Goes into the child {@code c} of a node at {@code depth}, if any of the first {@code size} active patterns
+     * at that depth fits it, and adds the child key to the results of the patterns it fits.
+     */
+    private void findChild(long childOffset, char c, int depth, int size, Batch batch) throws IOException {
+        int[] active = batch.active[depth];
+        long[] states = batch.states[depth];
+        int[] nextActive = batch.active[depth + 1];
+        long[] nextStates = batch.states[depth + 1];
+        int next = 0;
+        for (int i = 0; i < size; i++) {
+            TriePattern pattern = batch.patterns[active[i]];
+            if (pattern.isFixed()) {
+                if (pattern.matches(depth, c)) {
+                    nextActive[next] = active[i];
+                    next++;
+                }
+            } else {
+                long s = pattern.step(states[i], c, depth + 1);
+                if (0 != s) {
+                    nextActive[next] = active[i];
+                    nextStates[next] = s;
+                    next++;
+                }
+            }
+        }
+        if (0 == next) {
+            return;
+        }
+
+        batch.key[depth] = c;
+        long nodeValue = readVarLenLong01(buffer, childOffset);
+        if (0 < (nodeValue & 0x1L)) {
+            String key = null;
+            for (int i = 0; i < next; i++) {
+                TriePattern pattern = batch.patterns[nextActive[i]];
+                if (pattern.isFixed() ? depth + 1 == pattern.length() : pattern.accepts(nextStates[i], depth + 1)) {
+                    if (null == key) {
+                        key = new String(batch.key, 0, depth + 1);
+                    }
+                    batch.results.get(nextActive[i]).add(new PackedTrieEntry(key, getId(nodeValue, key, null, 0, depth + 1)));
+                }
+            }
+        }
+        findChildren(childOffset, nodeValue, depth + 1, next, batch);
+    }
+
+    /**
+     * State of a batch traversal: the patterns active at every depth, the positions of the variable ones and
+     * the key so far.
+     */
+    private static final class Batch {
+        private final TriePattern[] patterns;
+        private final List<List<Map.Entry<String, Long>>> results;
+        private int[][] active;
+        private long[][] states;
+        private char[] key;
+
+        private Batch(TriePattern[] patterns) {
+            this.patterns = patterns;
+            this.results = new ArrayList<>(patterns.length);
+            this.active = new int[16][];
+            this.states = new long[16][];
+            this.key = new char[16];
+            active[0] = new int[patterns.length];
+            states[0] = new long[patterns.length];
+        }
+
+        private void ensureDepth(int depth) {
+            if (active.length <= depth) {
+                active = Arrays.copyOf(active, 2 * depth);
+                states = Arrays.copyOf(states, 2 * depth);
+                key = Arrays.copyOf(key, 2 * depth);
+            }
+            if (null == active[depth]) {
+                active[depth] = new int[patterns.length];
+                states[depth] = new long[patterns.length];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of keys that fit the <code>pattern</code>.
+     * The _ (underscore) is a mask character in the pattern.
+     * <p>
+     * If the trie is packed with word counts, see {@link PackOptions#setWordCounts(boolean)}, it descends only
+     * until the rest of the pattern is masked, otherwise it iterates over all the keys.
+     *
+     * @param pattern pattern
+     * @return the number of keys that fit the pattern
+     * @throws IOException IOException
+     */
+    public long countPatterns(String pattern) throws IOException {
+        return countPatterns(TriePattern.mask(pattern));
+    }
+
+    /**
+     * Returns the number of keys that fit the <code>pattern</code>. See {@link #countPatterns(String)}.
+     *
+     * @param pattern pattern
+     * @return the number of keys that fit the pattern
+     * @throws IOException IOException
+     */
+    public long countPatterns(TriePattern pattern) throws IOException {
+        if (null == pattern) {
+            throw new IllegalArgumentException("pattern should not be null");
+        }
+        if (0 == pattern.length()) {
+            return 0;
+        }
+
+        if (0 == (flags & PackedTrieWriter.FLAG_COUNTS)) {
+            long result = 0;
+            LongIterator i = iterateValues(pattern);
+            while (i.hasNext()) {
+                i.next();
+                result++;
+            }
+            return result;
+        }
+        if (!pattern.isFixed()) {
+            long result = 0;
+            long start = pattern.start();
+            for (int i = 0; i < rootChars.length; i++) {
+                long states = pattern.step(start, rootChars[i], 1);
+                if (0 != states) {
+                    result = result + countMatches(rootOffsets[i], 1, states, pattern);
+                }
+            }
+            return result;
+        }
+        return countMatches(rootOffset, -1, pattern, pattern.getMaskedFrom());
+    }
+
+    /**
+     * Returns the letters at each position of the keys that fit the <code>pattern</code>, with the number of keys
+     * having each letter there. The _ (underscore) is a mask character in the pattern.
+     *
+     * @param pattern pattern
+     * @return letters per position
+     * @throws IOException IOException
+     */
+    public LetterHistogram countLetters(String pattern) throws IOException {
+        return countLetters(TriePattern.mask(pattern));
+    }
+
+    /**
+     * Returns the letters at each position of the keys that fit the <code>pattern</code>, with the number of keys
+     * having each letter there. Goes over the keys once, without making them, adding the number of keys below
+     * each node on the way back up.
+     *
+     * @param pattern pattern, fixed length
+     * @return letters per position
+     * @throws IOException IOException
+     */
+    public LetterHistogram countLetters(TriePattern pattern) throws IOException {
+        if (null == pattern) {
+            throw new IllegalArgumentException("pattern should not be null");
+        }
+        if (!pattern.isFixed()) {
+            throw new IllegalArgumentException("Letters are counted by position, the pattern should be fixed length: " + pattern);
+        }
+        long[][] counts = new long[pattern.length()][];
+        long keyCount = 0;
+        if (0 < pattern.length()) {
+            long nodeValue = readVarLenLong01(buffer, rootOffset);
+            keyCount = countLetters(rootOffset, nodeValue, 0, pattern, counts);
+        }
+        return new LetterHistogram(counts, keyCount);
+    }
+
+    /**
+     * Adds the letters of the keys fitting the pattern below the node, which fits the pattern up to
+     * {@code level - 1}, to the counts.
+     *
+     * @param nodeOffset node offset
+     * @param nodeValue  node value
+     * @param level      children level in the pattern
+     * @param pattern    pattern
+     * @param counts     counts per position, indexed by letter
+     * @return the number of keys below the node
+     * @throws IOException IOException
+     */
+    private long countLetters(long nodeOffset, long nodeValue, int level, TriePattern pattern, long[][] counts) throws IOException {
+        int below = pattern.length() - level;
+        if (0 == (nodeValue & 0x2L) || !hasWords(nodeOffset, nodeValue, below, below)) {
+            return 0;
+        }
+        long offset = nodeOffset + getVarLenLongSize(nodeValue);
+        if (isChain(nodeValue)) {
+            char c = toChar(readVarLenLong01(buffer, offset));
+            return pattern.matches(level, c) ? countChildLetters(nodeOffset - (nodeValue >>> 2), c, level, pattern, counts) : 0;
+        }
+        long sizeOfIndex = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(sizeOfIndex);
+        long high = offset + pairsSize(sizeOfIndex);
+
+        long result = 0;
+        char[] set = pattern.getChars(level);
+        if (isSearchable(set, sizeOfIndex)) {
+            for (char c : set) {
+                long relOffset = searchChildren(c, offset, high, sizeOfIndex);
+                if (-1 < relOffset) {
+                    result = result + countChildLetters(nodeOffset - relOffset, c, level, pattern, counts);
+                }
+            }
+        } else {
+            while (offset < high) {
+                long indexKey = readVarLenLong1(buffer, offset, high);
+                offset = offset + getVarLenLongSize(indexKey);
+                long relOffset = readVarLenLong0(buffer, offset, high);
+                offset = offset + getVarLenLongSize(relOffset);
+                if (pattern.matches(level, toChar(indexKey))) {
+                    result = result + countChildLetters(nodeOffset - relOffset, toChar(indexKey), level, pattern, counts);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Counts the keys fitting the pattern through the child {@code c} at {@code level} and adds them to the counts.
+     *
+     * @return the number of keys through the child
+     */
+    private long countChildLetters(long childOffset, char c, int level, TriePattern pattern, long[][] counts) throws IOException {
+        long childValue = readVarLenLong01(buffer, childOffset);
+        long keys;
+        if (level == pattern.length() - 1) {
+            keys = childValue & 0x1L;
+        } else {
+            keys = countLetters(childOffset, childValue, level + 1, pattern, counts);
+        }
+        if (0 < keys) {
+            long[] byLetter = counts[level];
+            if (null == byLetter) {
+                byLetter = new long[c + 1];
+                counts[level] = byLetter;
+            } else if (byLetter.length <= c) {
+                // grows up to the highest letter seen
+                byLetter = Arrays.copyOf(byLetter, Math.min(Math.max(c + 1, 2 * byLetter.length), Character.MAX_VALUE + 1));
+                counts[level] = byLetter;
+            }
+            byLetter[c] = byLetter[c] + keys;
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the chars to look up in the child index for a variable pattern at the {@code states}, or null if
+     * the index is to be scanned: the pattern is at several positions or at one without listed chars.
+     *
+     * @param pattern pattern
+     * @param states  pattern positions, a bit each
+     * @return chars to look up or null
+     */
+    private static char[] getChars(TriePattern pattern, long states) {
+        // the position after the last one takes no more chars
+        long positions = states & ~(1L << pattern.length());
+        if (1 != Long.bitCount(positions)) {
+            return null;
+        }
+        int position = Long.numberOfTrailingZeros(positions);
+        return pattern.isStar(position) ? null : pattern.getChars(position);
+    }
+
+    /**
+     * Returns whether to look the chars of a pattern position up in the child index one by one, rather than
+     * to scan the index. A lookup reads about log(index size) children, a scan reads all of them.
+     *
+     * @param set         chars of the pattern position, null if they are not listed
+     * @param sizeOfIndex index size, as stored
+     * @return whether to look the chars up
+     */
+    private boolean isSearchable(char[] set, long sizeOfIndex) {
+        if (null == set) {
+            return false;
+        }
+        long size = pairsSize(sizeOfIndex);
+        if (hasTable(sizeOfIndex)) {
+            // a lookup in the table reads a few bytes
+            return set.length * 4 < size;
+        }
+        return 1 == set.length || set.length * (64 - Long.numberOfLeadingZeros(size)) < size / 2;
+    }
+
+    /**
+     * Returns whether the node has words from {@code from} to {@code to} levels below it, inclusive, judging by
+     * the word depths stored after its index, see {@link PackOptions#setWordDepths(boolean)}. Without them,
+     * assumes it has. Links of chains have no depths, their words are those of the node the chain ends at.
+     *
+     * @param nodeOffset node offset
+     * @param nodeValue  node value, with flags, for a node with children
+     * @param from       the least depth
+     * @param to         the most depth
+     * @return false if there are no such words
+     * @throws IOException IOException
+     */
+    private boolean hasWords(long nodeOffset, long nodeValue, long from, long to) throws IOException {
+        if (0 == (flags & PackedTrieWriter.FLAG_DEPTHS)) {
+            return true;
+        }
+        while (isChain(nodeValue)) {
+            if (to < 1) {
+                return false;
+            }
+            nodeOffset = nodeOffset - (nodeValue >>> 2);
+            nodeValue = readVarLenLong01(buffer, nodeOffset);
+            from--;
+            to--;
+            if (0 < (nodeValue & 0x1L) && from <= 0) {
+                return true;
+            }
+        }
+        if (0 == (nodeValue & 0x2L)) {
+            return false;
+        }
+        long offset = nodeOffset + getVarLenLongSize(nodeValue);
+        long sizeOfIndex = readVarLenLong01(buffer, offset);
+        offset = skipIndex(offset + getVarLenLongSize(sizeOfIndex), sizeOfIndex);
+        long minDepth = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(minDepth);
+        minDepth = minDepth + 1;
+        return minDepth <= to && from <= minDepth + readVarLenLong01(buffer, offset);
+    }
+
+    /**
+     * Returns where the word counts start after the node index: past the word depths, if there are any.
+     *
+     * @param offset offset right after the index
+     * @return offset of the word counts
+     * @throws IOException IOException
+     */
+    private long skipDepths(long offset) throws IOException {
+        if (0 == (flags & PackedTrieWriter.FLAG_DEPTHS)) {
+            return offset;
+        }
+        offset = offset + getVarLenLongSize(readVarLenLong01(buffer, offset));
+        return offset + getVarLenLongSize(readVarLenLong01(buffer, offset));
+    }
+
+    /**
+     * Pushes the children of the node that fit the {@code pattern} at {@code level} to the stack, in char order.
+     *
+     * @param nodeOffset node offset
+     * @param level      children level in the pattern
+     * @param pattern    pattern
+     * @param children   where to push the children
+     * @throws IOException IOException
+     */
+    private void addChildren(long nodeOffset, int level, TriePattern pattern, NodeStack children) throws IOException {
+        long nodeValue = readVarLenLong01(buffer, nodeOffset);
+        if (0 == (nodeValue & 0x2L)) {
+            return;
+        }
+        long offset = nodeOffset + getVarLenLongSize(nodeValue);
+        if (isChain(nodeValue)) {
+            char c = toChar(readVarLenLong01(buffer, offset));
+            if (pattern.matches(level, c)) {
+                children.push(nodeOffset - (nodeValue >>> 2), c);
+            }
+            return;
+        }
+        long sizeOfIndex = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(sizeOfIndex);
+        long high = offset + pairsSize(sizeOfIndex);
+
+        char[] set = pattern.getChars(level);
+        if (isSearchable(set, sizeOfIndex)) {
+            for (char c : set) {
+                long relOffset = searchChildren(c, offset, high, sizeOfIndex);
+                if (-1 < relOffset) {
+                    children.push(nodeOffset - relOffset, c);
+                }
+            }
+        } else {
+            while (offset < high) {
+                long indexKey = readVarLenLong1(buffer, offset, high);
+                offset = offset + getVarLenLongSize(indexKey);
+                long relOffset = readVarLenLong0(buffer, offset, high);
+                offset = offset + getVarLenLongSize(relOffset);
+                if (pattern.matches(level, toChar(indexKey))) {
+                    children.push(nodeOffset - relOffset, toChar(indexKey));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of keys fitting the {@code pattern} below the node, which fits the pattern up to
+     * {@code level}, inclusive. Needs word counts.
+     *
+     * @param nodeOffset node offset
+     * @param level      node level in the pattern, -1 for the root
+     * @param pattern    pattern
+     * @param maskedFrom where the masked end of the pattern starts
+     * @return the number of keys
+     * @throws IOException IOException
+     */
+    private long countMatches(long nodeOffset, int level, TriePattern pattern, int maskedFrom) throws IOException {
+        if (maskedFrom <= level + 1) {
+            return countWords(nodeOffset, pattern.length() - 1 - level);
+        }
+
+        long nodeValue = readVarLenLong01(buffer, nodeOffset);
+        if (0 == (nodeValue & 0x2L)) {
+            return 0;
+        }
+        long offset = nodeOffset + getVarLenLongSize(nodeValue);
+        if (isChain(nodeValue)) {
+            char c = toChar(readVarLenLong01(buffer, offset));
+            return pattern.matches(level + 1, c) ? countMatches(nodeOffset - (nodeValue >>> 2), level + 1, pattern, maskedFrom) : 0;
+        }
+        long sizeOfIndex = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(sizeOfIndex);
+        long high = offset + pairsSize(sizeOfIndex);
+
+        long result = 0;
+        char[] set = pattern.getChars(level + 1);
+        if (isSearchable(set, sizeOfIndex)) {
+            for (char c : set) {
+                long relOffset = searchChildren(c, offset, high, sizeOfIndex);
+                if (-1 < relOffset) {
+                    result = result + countMatches(nodeOffset - relOffset, level + 1, pattern, maskedFrom);
+                }
+            }
+        } else {
+            while (offset < high) {
+                long indexKey = readVarLenLong1(buffer, offset, high);
+                offset = offset + getVarLenLongSize(indexKey);
+                long relOffset = readVarLenLong0(buffer, offset, high);
+                offset = offset + getVarLenLongSize(relOffset);
+                if (pattern.matches(level + 1, toChar(indexKey))) {
+                    result = result + countMatches(nodeOffset - relOffset, level + 1, pattern, maskedFrom);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of keys fitting the variable {@code pattern} in the subtree of the node at {@code depth},
+     * including the node itself, after which the pattern is at the {@code states}. Needs word counts.
+     *
+     * @param nodeOffset node offset
+     * @param depth      node depth, the length of its key
+     * @param states     pattern positions, a bit each
+     * @param pattern    pattern
+     * @return the number of keys
+     * @throws IOException IOException
+     */
+    private long countMatches(long nodeOffset, int depth, long states, TriePattern pattern) throws IOException {
+        if (pattern.acceptsAll(states)) {
+            // any continuation fits, as long as it is not too short or too long
+            return countWords(nodeOffset, Math.max(0, pattern.getMinLength() - depth), pattern.getMaxLength() - depth);
+        }
+
+        long nodeValue = readVarLenLong01(buffer, nodeOffset);
+        long result = 0 < (nodeValue & 0x1L) && pattern.accepts(states, depth) ? 1 : 0;
+        if (0 == (nodeValue & 0x2L) || pattern.getMaxLength() <= depth || !pattern.continues(states)) {
+            return result;
+        }
+        long offset = nodeOffset + getVarLenLongSize(nodeValue);
+        if (isChain(nodeValue)) {
+            char c = toChar(readVarLenLong01(buffer, offset));
+            long next = pattern.step(states, c, depth + 1);
+            return 0 == next ? result : result + countMatches(nodeOffset - (nodeValue >>> 2), depth + 1, next, pattern);
+        }
+        long sizeOfIndex = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(sizeOfIndex);
+        long high = offset + pairsSize(sizeOfIndex);
+
+        char[] set = getChars(pattern, states);
+        if (isSearchable(set, sizeOfIndex)) {
+            for (char c : set) {
+                long relOffset = searchChildren(c, offset, high, sizeOfIndex);
+                if (-1 < relOffset) {
+                    long next = pattern.step(states, c, depth + 1);
+                    if (0 != next) {
+                        result = result + countMatches(nodeOffset - relOffset, depth + 1, next, pattern);
+                    }
+                }
+            }
+        } else {
+            while (offset < high) {
+                long indexKey = readVarLenLong1(buffer, offset, high);
+                offset = offset + getVarLenLongSize(indexKey);
+                long relOffset = readVarLenLong0(buffer, offset, high);
+                offset = offset + getVarLenLongSize(relOffset);
+                long next = pattern.step(states, toChar(indexKey), depth + 1);
+                if (0 != next) {
+                    result = result + countMatches(nodeOffset - relOffset, depth + 1, next, pattern);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of words from {@code fromDepth} to {@code toDepth} levels below the node, inclusive.
+     * Needs word counts.
+     *
+     * @param nodeOffset node offset
+     * @param fromDepth  the least depth, 0 for the node itself
+     * @param toDepth    the most depth
+     * @return the number of words
+     * @throws IOException IOException
+     */
+    private long countWords(long nodeOffset, int fromDepth, int toDepth) throws IOException {
+        long nodeValue = readVarLenLong01(buffer, nodeOffset);
+        // links of chains have no counts, the words are those of the node the chain ends at
+        while (isChain(nodeValue) && 0 < toDepth) {
+            nodeOffset = nodeOffset - (nodeValue >>> 2);
+            nodeValue = readVarLenLong01(buffer, nodeOffset);
+            fromDepth--;
+            toDepth--;
+        }
+        long result = fromDepth <= 0 && 0 <= toDepth ? nodeValue & 0x1L : 0;
+        if (0 == (nodeValue & 0x2L) || toDepth < 1) {
+            return result;
+        }
+
+        // counts follow the index, the total first
+        long offset = nodeOffset + getVarLenLongSize(nodeValue);
+        long sizeOfIndex = readVarLenLong01(buffer, offset);
+        offset = skipDepths(skipIndex(offset + getVarLenLongSize(sizeOfIndex), sizeOfIndex));
+        long total = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(total);
+        long height = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(height);
+        if (0 < (height & 0x1L)) {
+            // all the words are that deep
+            height = height >>> 1;
+            return fromDepth <= height && height <= toDepth ? result + total : result;
+        }
+        height = height >>> 1;
+        if (fromDepth <= 1 && height <= toDepth) {
+            return result + total;
+        }
+        long to = Math.min(height, toDepth);
+        for (int depth = 1; depth <= to; depth++) {
+            // the deepest count is what the others leave of the total
+            long count = total;
+            if (depth < height) {
+                count = readVarLenLong01(buffer, offset);
+                offset = offset + getVarLenLongSize(count);
+                total = total - count;
+            }
+            if (fromDepth <= depth) {
+                result = result + count;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of words exactly {@code depth} levels below the node. Needs word counts.
+     *
+     * @param nodeOffset node offset
+     * @param depth      depth, 0 for the node itself
+     * @return the number of words
+     * @throws IOException IOException
+     */
+    private long countWords(long nodeOffset, int depth) throws IOException {
+        long nodeValue = readVarLenLong01(buffer, nodeOffset);
+        while (isChain(nodeValue) && 0 < depth) {
+            nodeOffset = nodeOffset - (nodeValue >>> 2);
+            nodeValue = readVarLenLong01(buffer, nodeOffset);
+            depth--;
+        }
+        if (0 == depth) {
+            return nodeValue & 0x1L;
+        }
+        if (0 == (nodeValue & 0x2L)) {
+            return 0;
+        }
+
+        // counts follow the index, the total first
+        long offset = nodeOffset + getVarLenLongSize(nodeValue);
+        long sizeOfIndex = readVarLenLong01(buffer, offset);
+        offset = skipDepths(skipIndex(offset + getVarLenLongSize(sizeOfIndex), sizeOfIndex));
+        long total = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(total);
+        long height = readVarLenLong01(buffer, offset);
+        offset = offset + getVarLenLongSize(height);
+        if (0 < (height & 0x1L)) {
+            // all the words are that deep
+            return depth == (height >>> 1) ? total : 0;
+        }
+        height = height >>> 1;
+        if (height < depth) {
+            return 0;
+        }
+        if (depth < height) {
+            for (int i = 1; i < depth; i++) {
+                offset = offset + getVarLenLongSize(readVarLenLong01(buffer, offset));
+            }
+            return readVarLenLong01(buffer, offset);
+        }
+        // the deepest count is what the others leave of the total
+        for (int i = 1; i < height; i++) {
+            long count = readVarLenLong01(buffer, offset);
+            offset = offset + getVarLenLongSize(count);
+            total = total - count;
+        }
+        return total;
+    }
+
+    private static class PackedTrieEntry implements Map.Entry<String, Long> {
+        private final String k;
+        private Long v;
+
+        private PackedTrieEntry(String k, Long v) {
+            this.k = k;
+            this.v = v;
+        }
+
+
+        @Override
+        public String getKey() {
+            return k;
+        }
+
+        @Override
+        public Long getValue() {
+            return v;
+        }
+
+        @Override
+        public Long setValue(Long value) {
+            Long old = v;
+            v = value;
+            return old;
+        }
+    }
+
+    public class PatternIterator extends TrieIterator implements Iterator<Map.Entry<String, Long>> {
+
+        public PatternIterator(String pattern, long pageNo, long pageSize) {
+            super(TriePattern.mask(pattern), pageNo, pageSize);
+        }
+
+        public PatternIterator(TriePattern pattern, long pageNo, long pageSize) {
+            super(pattern, pageNo, pageSize);
+        }
+
+        public PatternIterator(PatternCursor cursor, long pageSize) {
+            super(cursor, pageSize);
+        }
+
+        private PatternIterator(TriePattern pattern, Subtree subtree) {
+            super(pattern, subtree);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return super.hasNext();
+        }
+
+        @Override
+        public Map.Entry<String, Long> next() {
+            if (hasNext()) {
+                PackedTrieEntry result = new PackedTrieEntry(new String(key, 0, nextLength), nextId());
+                consume();
+                return result;
+            } else {
+                throw new NoSuchElementException();
+            }
+        }
+
+        @Override
+        public void remove() {
+            super.remove();
+        }
+    }
+
+    public class LongIterator extends TrieIterator implements PrimitiveIterator.OfLong {
+
+        public LongIterator(String pattern, long pageNo, long pageSize) {
+            super(TriePattern.mask(pattern), pageNo, pageSize);
+        }
+
+        public LongIterator(TriePattern pattern, long pageNo, long pageSize) {
+            super(pattern, pageNo, pageSize);
+        }
+
+        public LongIterator(PatternCursor cursor, long pageSize) {
+            super(cursor, pageSize);
+        }
+
+        private LongIterator(TriePattern pattern, Subtree subtree) {
+            super(pattern, subtree);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return super.hasNext();
+        }
+
+        @Override
+        public Long next() {
+            return nextLong();
+        }
+
+        /**
+         * Returns the next value without boxing it.
+         *
+         * @return the next value
+         */
+        @Override
+        public long nextLong() {
+            if (hasNext()) {
+                long result = nextId();
+                consume();
+                return result;
+            } else {
+                throw new NoSuchElementException();
+            }
+        }
+
+        @Override
+        public void remove() {
+            super.remove();
+        }
+    }
+
+    /**
+     * A subtree to iterate over: its root node, which fits the pattern up to its level, and the key prefix before it.
+     */
+    private static final class Subtree {
+        private final long offset;
+        private final char c;
+        private final String prefix;
+        // where a variable pattern is after the root, 0 for fixed ones
+        private final long states;
+        // the number of keys fitting the pattern, -1 if not counted yet
+        private long size = -1;
+
+        private Subtree(long offset, char c, String prefix, long states) {
+            this.offset = offset;
+            this.c = c;
+            this.prefix = prefix;
+            this.states = states;
+        }
+    }
+
+    /**
+     * Splits pattern iteration by subtrees: iterates over the subtrees one after another and gives away
+     * the first half of them on split. A single subtree left splits into its children.
+     */
+    private abstract class TrieSpliterator<I extends TrieIterator> {
+
+        protected final TriePattern pattern;
+        private final int maskedFrom;
+
+        // subtrees to iterate over, from next on
+        private List<Subtree> subtrees;
+        private int next = 0;
+
+        // children of the subtree being expanded
+        private final NodeStack found = new NodeStack();
+
+        // subtree being iterated over and how many keys were taken from it
+        private Subtree currentSubtree;
+        protected I current;
+        protected long consumed;
+
+        protected TrieSpliterator(TriePattern pattern) {
+            if (null == pattern) {
+                throw new IllegalArgumentException("pattern should not be null");
+            }
+            this.pattern = pattern;
+            this.maskedFrom = pattern.getMaskedFrom();
+
+            subtrees = new ArrayList<>();
+            if (!pattern.isFixed()) {
+                long start = pattern.start();
+                for (int i = 0; i < rootChars.length; i++) {
+                    long states = pattern.step(start, rootChars[i], 1);
+                    if (0 != states) {
+                        subtrees.add(new Subtree(rootOffsets[i], rootChars[i], "", states));
+                    }
+                }
+            } else if (0 < pattern.length()) {
+                for (int i = 0; i < rootChars.length; i++) {
+                    if (pattern.matches(0, rootChars[i])) {
+                        subtrees.add(new Subtree(rootOffsets[i], rootChars[i], "", 0));
+                    }
+                }
+            }
+        }
+
+        protected TrieSpliterator(TrieSpliterator<I> from) {
+            this.pattern = from.pattern;
+            this.maskedFrom = from.maskedFrom;
+        }
+
+        protected abstract I newIterator(Subtree subtree);
+
+        /**
+         * Moves on to the next subtree until there is a key to take.
+         *
+         * @return whether there is a key to take from the current iterator
+         */
+        protected boolean advance() {
+            while (null == current || !current.hasNext()) {
+                if (subtrees.size() <= next) {
+                    current = null;
+                    currentSubtree = null;
+                    return false;
+                }
+                currentSubtree = subtrees.get(next);
+                subtrees.set(next, null);
+                next++;
+                current = newIterator(currentSubtree);
+                consumed = 0;
+            }
+            return true;
+        }
+
+        /**
+         * Gives away the current subtree and the first half of the rest to the {@code prefix}.
+         *
+         * @param prefix empty spliterator to take the first half
+         * @return prefix or null, if there is nothing to split
+         */
+        protected <S extends TrieSpliterator<I>> S split(S prefix) {
+            try {
+                // a single subtree splits into its children, as long as they are not keys themselves
+                while (null == current && next + 1 == subtrees.size() && expand()) {
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            int pending = subtrees.size() - next;
+            if (null == current ? pending < 2 : pending < 1) {
+                return null;
+            }
+            int half = pending / 2;
+            TrieSpliterator<I> p = prefix;
+            p.subtrees = new ArrayList<>(subtrees.subList(next, next + half));
+            p.current = current;
+            p.currentSubtree = currentSubtree;
+            p.consumed = consumed;
+            subtrees = new ArrayList<>(subtrees.subList(next + half, subtrees.size()));
+            next = 0;
+            current = null;
+            currentSubtree = null;
+            return prefix;
+        }
+
+        /**
+         * Replaces the only subtree left by its children.
+         *
+         * @return false if the subtree root is at the last level of the pattern
+         * @throws IOException IOException
+         */
+        private boolean expand() throws IOException {
+            Subtree subtree = subtrees.get(next);
+            int level = subtree.prefix.length();
+            if (!pattern.isFixed()) {
+                return expandVariable(subtree);
+            }
+            if (pattern.length() - 1 <= level) {
+                return false;
+            }
+
+            found.top = 0;
+            addChildren(subtree.offset, level + 1, pattern, found);
+            List<Subtree> children = new ArrayList<>(found.top);
+            String prefix = subtree.prefix + subtree.c;
+            for (int i = 0; i < found.top; i++) {
+                children.add(new Subtree(found.offsets[i], found.chars[i], prefix, 0));
+            }
+            subtrees = children;
+            next = 0;
+            return true;
+        }
 
-        private PackedTrieEntry(String k, Long v) {
-            this.k = k;
-            this.v = v;
+        /**
+         * Replaces the only subtree left by its children, for variable patterns.
+         *
+         * @return false if the subtree root is a key fitting the pattern or has no children to go to
+         * @throws IOException IOException
+         */
+        private boolean expandVariable(Subtree subtree) throws IOException {
+            int depth = subtree.prefix.length() + 1;
+            long nodeValue = readVarLenLong01(buffer, subtree.offset);
+            if ((0 < (nodeValue & 0x1L) && pattern.accepts(subtree.states, depth)) || 0 == (nodeValue & 0x2L)
+                    || pattern.getMaxLength() <= depth || !pattern.continues(subtree.states)) {
+                return false;
+            }
+
+            List<Subtree> children = new ArrayList<>();
+            String prefix = subtree.prefix + subtree.c;
+            long offset = subtree.offset + getVarLenLongSize(nodeValue);
+            if (isChain(nodeValue)) {
+                char c = toChar(readVarLenLong01(buffer, offset));
+                long states = pattern.step(subtree.states, c, depth + 1);
+                if (0 != states) {
+                    children.add(new Subtree(subtree.offset - (nodeValue >>> 2), c, prefix, states));
+                }
+                subtrees = children;
+                next = 0;
+                return true;
+            }
+            long sizeOfIndex = readVarLenLong01(buffer, offset);
+            offset = offset + getVarLenLongSize(sizeOfIndex);
+            long high = offset + pairsSize(sizeOfIndex);
+            while (offset < high) {
+                long indexKey = readVarLenLong1(buffer, offset, high);
+                offset = offset + getVarLenLongSize(indexKey);
+                long relOffset = readVarLenLong0(buffer, offset, high);
+                offset = offset + getVarLenLongSize(relOffset);
+                long states = pattern.step(subtree.states, toChar(indexKey), depth + 1);
+                if (0 != states) {
+                    children.add(new Subtree(subtree.offset - relOffset, toChar(indexKey), prefix, states));
+                }
+            }
+            subtrees = children;
+            next = 0;
+            return true;
         }
 
+        public long estimateSize() {
+            if (!isSized()) {
+                return Long.MAX_VALUE;
+            }
+            try {
+                long result = 0;
+                if (null != currentSubtree) {
+                    result = size(currentSubtree) - consumed;
+                }
+                for (int i = next; i < subtrees.size(); i++) {
+                    result = result + size(subtrees.get(i));
+                }
+                return result;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
 
-        @Override
-        public String getKey() {
-            return k;
+        private long size(Subtree subtree) throws IOException {
+            if (subtree.size < 0) {
+                if (pattern.isFixed()) {
+                    subtree.size = countMatches(subtree.offset, subtree.prefix.length(), pattern, maskedFrom);
+                } else {
+                    subtree.size = countMatches(subtree.offset, subtree.prefix.length() + 1, subtree.states, pattern);
+                }
+            }
+            return subtree.size;
         }
 
-        @Override
-        public Long getValue() {
-            return v;
+        /**
+         * Sizes are known exactly with word counts.
+         */
+        protected boolean isSized() {
+            return 0 != (flags & PackedTrieWriter.FLAG_COUNTS);
         }
 
-        @Override
-        public Long setValue(Long value) {
-            Long old = v;
-            v = value;
-            return old;
+        protected int getCharacteristics() {
+            int result = Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+            if (isSized()) {
+                result = result | Spliterator.SIZED | Spliterator.SUBSIZED;
+            }
+            return result;
         }
     }
 
-    public class PatternIterator extends TrieIterator implements Iterator<Map.Entry<String, Long>> {
+    private class PatternSpliterator extends TrieSpliterator<PatternIterator> implements Spliterator<Map.Entry<String, Long>> {
 
-        public PatternIterator(String pattern, long pageNo, long pageSize) {
-            super(pattern, pageNo, pageSize);
+        private PatternSpliterator(TriePattern pattern) {
+            super(pattern);
+        }
+
+        private PatternSpliterator(PatternSpliterator from) {
+            super(from);
         }
 
         @Override
-        public boolean hasNext() {
-            return super.hasNext();
+        protected PatternIterator newIterator(Subtree subtree) {
+            return new PatternIterator(pattern, subtree);
         }
 
         @Override
-        public Map.Entry<String, Long> next() {
-            if (hasNext()) {
-                PackedTrieEntry result = new PackedTrieEntry(k, v);
-                k = null;
-                return result;
-            } else {
-                throw new NoSuchElementException();
+        public boolean tryAdvance(Consumer<? super Map.Entry<String, Long>> action) {
+            if (null == action) {
+                throw new NullPointerException();
+            }
+            if (advance()) {
+                consumed++;
+                action.accept(current.next());
+                return true;
             }
+            return false;
         }
 
         @Override
-        public void remove() {
-            super.remove();
+        public Spliterator<Map.Entry<String, Long>> trySplit() {
+            return split(new PatternSpliterator(this));
+        }
+
+        @Override
+        public int characteristics() {
+            // keys are unique
+            return getCharacteristics() | Spliterator.DISTINCT;
         }
     }
 
-    public class LongIterator extends TrieIterator implements Iterator<Long> {
+    private class ValueSpliterator extends TrieSpliterator<LongIterator> implements Spliterator.OfLong {
 
-        public LongIterator(String pattern, long pageNo, long pageSize) {
-            super(pattern, pageNo, pageSize);
+        private ValueSpliterator(TriePattern pattern) {
+            super(pattern);
+        }
+
+        private ValueSpliterator(ValueSpliterator from) {
+            super(from);
         }
 
         @Override
-        public boolean hasNext() {
-            return super.hasNext();
+        protected LongIterator newIterator(Subtree subtree) {
+            return new LongIterator(pattern, subtree);
         }
 
         @Override
-        public Long next() {
-            if (hasNext()) {
-                Long result = v;
-                k = null;
-                return result;
-            } else {
-                throw new NoSuchElementException();
+        public boolean tryAdvance(LongConsumer action) {
+            if (null == action) {
+                throw new NullPointerException();
             }
+            if (advance()) {
+                consumed++;
+                action.accept(current.nextLong());
+                return true;
+            }
+            return false;
         }
 
         @Override
-        public void remove() {
-            super.remove();
+        public Spliterator.OfLong trySplit() {
+            return split(new ValueSpliterator(this));
+        }
+
+        @Override
+        public int characteristics() {
+            return getCharacteristics();
+        }
+    }
+
+    /**
+     * Growable stack of node offsets and their chars, or a list of them, from the bottom.
+     */
+    private static class NodeStack {
+
+        protected long[] offsets = new long[16];
+        protected char[] chars = new char[16];
+        protected int top = 0;
+
+        protected void push(long offset, char c) {
+            if (offsets.length == top) {
+                offsets = Arrays.copyOf(offsets, 2 * top);
+                chars = Arrays.copyOf(chars, 2 * top);
+            }
+            offsets[top] = offset;
+            chars[top] = c;
+            top++;
         }
     }
 
-    private class TrieIterator {
+    private class TrieIterator extends NodeStack {
 
-        protected final String pattern;
+        protected final TriePattern pattern;
         protected final long pageNo;
         protected final long pageSize;
-
-        // node offsets and -1 as level marks
-        protected Deque<Long> q = new ArrayDeque<>();
-        // characters to process
-        protected Deque<Character> c = new ArrayDeque<>();
-        // current key
-        protected StringBuilder s = new StringBuilder();
+        // how many keys to iterate up to, -1 for no limit
+        protected final long limit;
+
+        // the stack holds node offsets, -1 as level marks, and their characters,
+        // and where a variable pattern is after them, null for fixed patterns
+        protected long[] states;
+        // current key, the next key when ready
+        protected char[] key;
+        protected int keyLength = 0;
         // current letter in pattern
         protected int curLetter = 0;
 
-        // next key
-        protected String k = null;
-        // next value
-        protected Long v = null;
+        // whether the next key is read, and its length
+        protected boolean ready = false;
+        protected int nextLength;
+        // node value of the next key
+        protected long v;
+        // last key returned, for cursors, null if none
+        protected char[] last = null;
+        protected int lastLength = 0;
 
         // key count, for paging
         protected long count = 0;
 
-        public TrieIterator(String pattern, long pageNo, long pageSize) {
+        public TrieIterator(TriePattern pattern, long pageNo, long pageSize) {
+            this(pattern, pageNo, pageSize, null);
+        }
+
+        public TrieIterator(PatternCursor cursor, long pageSize) {
+            this(cursor.getTriePattern(), 0 < pageSize ? cursor.getCount() / pageSize : 0, pageSize, cursor);
+        }
+
+        /**
+         * Iterates over the subtree of the node, which fits the pattern up to its level.
+         */
+        private TrieIterator(TriePattern pattern, Subtree subtree) {
+            this.pattern = pattern;
+            this.pageNo = -1;
+            this.pageSize = -1;
+            this.limit = -1;
+            if (pattern.isFixed()) {
+                this.key = new char[pattern.length()];
+            } else {
+                this.key = new char[Math.max(16, 2 * subtree.prefix.length() + 1)];
+                this.states = new long[offsets.length];
+            }
+            push(subtree.offset, subtree.c, subtree.states);
+            subtree.prefix.getChars(0, subtree.prefix.length(), key, 0);
+            keyLength = subtree.prefix.length();
+            curLetter = subtree.prefix.length();
+        }
+
+        private TrieIterator(TriePattern pattern, long pageNo, long pageSize, PatternCursor cursor) {
             this.pattern = pattern;
             this.pageNo = pageNo;
             this.pageSize = pageSize;
@@ -699,84 +3080,470 @@ public class PackedTrie {
             if (null == pattern) {
                 throw new IllegalArgumentException("pattern should not be null");
             }
+            if (pattern.isFixed()) {
+                this.key = new char[pattern.length()];
+            } else {
+                this.key = new char[16];
+                this.states = new long[offsets.length];
+            }
+
+            long skip = 0;
+            if (null != cursor) {
+                skip = cursor.getCount();
+                limit = 0 < pageSize ? skip + pageSize : -1;
+            } else {
+                if (0 < pageNo && 0 < pageSize) {
+                    skip = pageNo * pageSize;
+                }
+                limit = 0 < pageSize ? pageSize * (pageNo + 1) : -1;
+            }
+
+            try {
+                if (null != cursor && null != cursor.getKey()) {
+                    last = cursor.getKey().toCharArray();
+                    lastLength = last.length;
+                    // resume right after the key
+                    count = skip;
+                    if (pattern.isFixed()) {
+                        position(0, cursor.getKey());
+                    } else {
+                        positionVariable(0, cursor.getKey());
+                    }
+                    return;
+                }
+
+                if (pushCached()) {
+                    // started below the root children
+                } else if (!pattern.isFixed()) {
+                    long start = pattern.start();
+                    // backwards, because it is a stack
+                    for (int i = rootOffsets.length - 1; 0 <= i; i--) {
+                        long s = pattern.step(start, rootChars[i], 1);
+                        if (0 != s) {
+                            push(rootOffsets[i], rootChars[i], s);
+                        }
+                    }
+                } else if (0 < pattern.length()) {
+                    // backwards, because it is a stack
+                    for (int i = rootOffsets.length - 1; 0 <= i; i--) {
+                        if (pattern.matches(0, rootChars[i])) {
+                            push(rootOffsets[i], rootChars[i]);
+                        }
+                    }
+                }
+
+                if (0 < skip) {
+                    if (0 != (flags & PackedTrieWriter.FLAG_COUNTS) && 0 < top) {
+                        if (pattern.isFixed()) {
+                            skip = position(skip, null);
+                        } else {
+                            skip = positionVariable(skip, null);
+                        }
+                    }
+                    // what word counts do not skip goes one by one
+                    while (hasNext() && 0 < skip) {
+                        consume();
+                        skip--;
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Starts at the deepest cached node of the prefix the pattern spells out, one char per position,
+         * see {@link PackedTrie#PackedTrie(BufferFacade, long)}.
+         *
+         * @return false if it is not deeper than the root children, true otherwise, even if there are no keys
+         */
+        private boolean pushCached() {
+            if (null == cacheChildren) {
+                return false;
+            }
+            int node = 0;
+            int depth = 0;
+            long s = pattern.isFixed() ? 0 : pattern.start();
+            while (node < cacheChildren.length - 1) {
+                char[] set;
+                if (pattern.isFixed()) {
+                    if (pattern.length() <= depth) {
+                        break;
+                    }
+                    set = pattern.getChars(depth);
+                } else {
+                    // a shorter key might fit
+                    if (0 < depth && pattern.accepts(s, depth)) {
+                        break;
+                    }
+                    set = getChars(pattern, s);
+                }
+                if (null == set || 1 != set.length) {
+                    break;
+                }
+                node = Arrays.binarySearch(cacheChars, cacheChildren[node], cacheChildren[node + 1], set[0]);
+                if (node < 0) {
+                    return true;
+                }
+                if (!pattern.isFixed()) {
+                    s = pattern.step(s, set[0], depth + 1);
+                    if (0 == s) {
+                        return true;
+                    }
+                }
+                if (key.length == depth) {
+                    key = Arrays.copyOf(key, 2 * depth);
+                }
+                key[depth] = set[0];
+                depth++;
+            }
+            if (depth < 2) {
+                return false;
+            }
+            push(cacheOffsets[node], cacheChars[node], s);
+            keyLength = depth - 1;
+            curLetter = depth - 1;
+            return true;
+        }
+
+        /**
+         * Fills the queue as if the keys before the position were iterated over. The position is either
+         * right after the key {@code after}, or, if it is null, at the {@code skip}-th key, found by skipping
+         * whole subtrees by their word counts. The last child of a level is gone into without counting it,
+         * if it has fewer keys than there are left to skip, they are to be skipped one by one from there.
+         *
+         * @param skip  how many keys to skip, if there is no key to resume after
+         * @param after key to resume after, or null
+         * @return how many keys are left to skip
+         * @throws IOException IOException
+         */
+        private long position(long skip, String after) throws IOException {
+            top = 0;
+            keyLength = 0;
+            int maskedFrom = pattern.getMaskedFrom();
+            long left = skip;
+
+            long parentOffset = rootOffset;
+            for (int level = 0; level < pattern.length(); level++) {
+                // deeper levels go on top
+                if (0 < level) {
+                    push(-1L, '\0');
+                }
+
+                // the children in char order: the child on the path, the ones before it and the siblings after it
+                int first = top;
+                addChildren(parentOffset, level, pattern, this);
+                int path = -1;
+                int siblings = top;
+                for (int i = first; i < top; i++) {
+                    if (null != after) {
+                        if (after.charAt(level) == chars[i]) {
+                            path = i;
+                            siblings = i + 1;
+                            break;
+                        } else if (after.charAt(level) < chars[i]) {
+                            siblings = i;
+                            break;
+                        }
+                    } else if (i == top - 1) {
+                        // no siblings after it to skip to, the keys left to skip start here
+                        path = i;
+                        siblings = i + 1;
+                    } else {
+                        long matches = countMatches(offsets[i], level, pattern, maskedFrom);
+                        if (left < matches) {
+                            path = i;
+                            siblings = i + 1;
+                            break;
+                        }
+                        left = left - matches;
+                    }
+                }
+                long childOffset = -1 < path ? offsets[path] : -1;
+                char childChar = -1 < path ? chars[path] : '\0';
+
+                // only the siblings stay, backwards, because it is a stack
+                for (int i = siblings, j = top - 1; i < j; i++, j--) {
+                    long o = offsets[i];
+                    offsets[i] = offsets[j];
+                    offsets[j] = o;
+                    char c = chars[i];
+                    chars[i] = chars[j];
+                    chars[j] = c;
+                }
+                System.arraycopy(offsets, siblings, offsets, first, top - siblings);
+                System.arraycopy(chars, siblings, chars, first, top - siblings);
+                top = first + top - siblings;
 
-            if (0 < pattern.length()) {
-                if ('_' == pattern.charAt(0)) {
-                    for (int i = 0; i < rootOffsets.length; i++) {
-                        q.addLast(rootOffsets[i]);
-                        c.addLast(rootChars[i]);
+                if (childOffset < 0) {
+                    // the path is not there, what is left follows it
+                    curLetter = level;
+                    break;
+                }
+                if (level == pattern.length() - 1) {
+                    if (null == after) {
+                        push(childOffset, childChar);
                     }
+                    curLetter = level;
                 } else {
-                    int idx = Arrays.binarySearch(rootChars, pattern.charAt(0));
-                    if (-1 < idx) {
-                        q.addLast(rootOffsets[idx]);
-                        c.addLast(rootChars[idx]);
+                    key[keyLength] = childChar;
+                    keyLength++;
+                    parentOffset = childOffset;
+                }
+            }
+            if (null == after) {
+                count = skip - left;
+                return left;
+            }
+            return 0;
+        }
+
+        /**
+         * Fills the stack as {@link #position(long, String)} does, for variable patterns, whose keys end at any
+         * level: goes down the path to the position, one level at a time, and leaves on the stack the children
+         * after the path, with where the pattern is after them, as iterating up to there would.
+         * Skipping stops early at a subtree whose keys a count would go all over, see
+         * {@link TriePattern#isCountable(long)}, the keys left are to be skipped one by one from there.
+         *
+         * @param skip  how many keys to skip, if there is no key to resume after
+         * @param after key to resume after, or null
+         * @return how many keys are left to skip
+         * @throws IOException IOException
+         */
+        private long positionVariable(long skip, String after) throws IOException {
+            top = 0;
+            keyLength = 0;
+            curLetter = 0;
+            long start = pattern.start();
+            // backwards, because it is a stack
+            for (int i = rootOffsets.length - 1; 0 <= i; i--) {
+                long s = pattern.step(start, rootChars[i], 1);
+                if (0 != s) {
+                    push(rootOffsets[i], rootChars[i], s);
+                }
+            }
+
+            long left = skip;
+            while (null == after || keyLength < after.length()) {
+                // children of the level come from the top in char order, down to the level mark, the ones before the path go
+                while (0 < top && -1L != offsets[top - 1]) {
+                    if (null != after) {
+                        if (after.charAt(keyLength) <= chars[top - 1]) {
+                            break;
+                        }
+                    } else {
+                        if (!pattern.isCountable(states[top - 1])) {
+                            count = skip - left;
+                            return left;
+                        }
+                        long matches = countMatches(offsets[top - 1], keyLength + 1, states[top - 1], pattern);
+                        if (left < matches) {
+                            break;
+                        }
+                        left = left - matches;
+                    }
+                    top--;
+                }
+                if (0 == top || -1L == offsets[top - 1]) {
+                    // the level is over, what is left follows the position
+                    break;
+                }
+                if (null == after ? 0 == left : after.charAt(keyLength) != chars[top - 1]) {
+                    // the next key is in the subtree on top, or the path is not there and what is left follows it
+                    break;
+                }
+
+                // down the path, as readNext goes
+                top--;
+                long nodeOffset = offsets[top];
+                long s = states[top];
+                if (key.length == keyLength) {
+                    key = Arrays.copyOf(key, 2 * keyLength);
+                }
+                key[keyLength] = chars[top];
+                keyLength++;
+                long nodeValue = readVarLenLong01(buffer, nodeOffset);
+                if (null == after && 0 < (nodeValue & 0x1L) && pattern.accepts(s, keyLength)) {
+                    // the node key comes first in its subtree
+                    left--;
+                }
+                if (0 < (nodeValue & 0x2L) && keyLength < pattern.getMaxLength() && pattern.continues(s)
+                        && hasWords(nodeOffset, nodeValue, pattern.getMinLength() - keyLength, pattern.getMaxLength() - keyLength)) {
+                    int mark = top;
+                    pushChildren(nodeOffset, nodeValue, s);
+                    if (mark == top) {
+                        break;
                     }
+                } else {
+                    keyLength--;
+                    break;
                 }
             }
+            if (null == after) {
+                count = skip - left;
+                return left;
+            }
+            return 0;
+        }
+
+        /**
+         * Returns the cursor to resume the iteration from, right after the last key returned.
+         *
+         * @return cursor
+         */
+        public PatternCursor cursor() {
+            // the next key might be already read, but not returned
+            return new PatternCursor(pattern, null == last ? null : new String(last, 0, lastLength), ready ? count - 1 : count);
+        }
+
+        @Override
+        protected void push(long offset, char c) {
+            push(offset, c, 0);
+        }
 
-            if (0 < pageNo && 0 < pageSize) {
-                long skip = pageNo * pageSize;
-                while (hasNext() && 0 < skip) {
-                    k = null;
-                    skip--;
+        private void push(long offset, char c, long s) {
+            if (offsets.length == top) {
+                offsets = Arrays.copyOf(offsets, 2 * top);
+                chars = Arrays.copyOf(chars, 2 * top);
+                if (null != states) {
+                    states = Arrays.copyOf(states, 2 * top);
                 }
             }
+            offsets[top] = offset;
+            chars[top] = c;
+            if (null != states) {
+                states[top] = s;
+            }
+            top++;
+        }
+
+        /**
+         * Marks the next key as taken and remembers it for cursors.
+         */
+        protected void consume() {
+            ready = false;
+            if (null == last || last.length < nextLength) {
+                last = new char[key.length];
+            }
+            System.arraycopy(key, 0, last, 0, nextLength);
+            lastLength = nextLength;
         }
 
         public boolean hasNext() {
-            if (null == k && (pageSize <= 0 || (count < pageSize * (pageNo + 1)))) {
-                try {
-                    long nodeOffset;
-                    long nodeValue;
-                    boolean hasChildren;
-                    boolean isWord;
-
-                    long offset;
-                    while (!q.isEmpty()) {
-                        nodeOffset = q.removeFirst();
-
-                        // go back one level
-                        while (-1L == nodeOffset && !q.isEmpty()) {
-                            s.deleteCharAt(s.length() - 1);
-                            nodeOffset = q.removeFirst();
-                            curLetter--;
-                        }
+            if (!ready && (limit < 0 || count < limit)) {
+                readNext();
+            }
+            return ready;
+        }
 
-                        if (-1L != nodeOffset) {
-                            // root node has no character associated
-                            if (!c.isEmpty()) {
-                                s.append(c.removeFirst());
-                            }
+        /**
+         * Returns the id of the next key.
+         */
+        protected long nextId() {
+            try {
+                return getId(v, null, key, 0, nextLength);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
 
-                            offset = nodeOffset;
-                            nodeValue = readVarLenLong01(buffer, offset);
-                            offset = offset + getVarLenLongSize(nodeValue);
-                            hasChildren = 0 < (nodeValue & 0x2L);
-                            isWord = 0 < (nodeValue & 0x1L);
-                            nodeValue = nodeValue >> 2;
+        /**
+         * Reads the next key, if there is one.
+         */
+        private void readNext() {
+            try {
+                long nodeOffset;
+                long nodeValue;
+                boolean hasChildren;
+                boolean isWord;
+
+                long offset;
+                while (0 < top) {
+                    top--;
+                    nodeOffset = offsets[top];
+
+                    // go back one level
+                    while (-1L == nodeOffset && 0 < top) {
+                        keyLength--;
+                        top--;
+                        nodeOffset = offsets[top];
+                        curLetter--;
+                    }
 
-                            if (isWord && curLetter == (pattern.length() - 1)) {
-                                // visit
-                                k = s.toString();
+                    if (-1L != nodeOffset) {
+                        if (key.length == keyLength) {
+                            key = Arrays.copyOf(key, 2 * keyLength);
+                        }
+                        key[keyLength] = chars[top];
+                        keyLength++;
+
+                        offset = nodeOffset;
+                        nodeValue = readVarLenLong01(buffer, offset);
+                        offset = offset + getVarLenLongSize(nodeValue);
+                        hasChildren = 0 < (nodeValue & 0x2L);
+                        isWord = 0 < (nodeValue & 0x1L);
+
+                        if (null != states) {
+                            // variable pattern: keys at any level, as long as the pattern gets to its end there
+                            long s = states[top];
+                            if (isWord && pattern.accepts(s, keyLength)) {
+                                ready = true;
+                                nextLength = keyLength;
                                 v = nodeValue;
                                 count++;
                             }
 
-                            if (hasChildren && (curLetter + 1) < pattern.length()) {
-                                long sizeOfIndex = readVarLenLong01(buffer, offset);
-                                offset = offset + getVarLenLongSize(sizeOfIndex);
-
-                                long low = offset;
-                                long high = offset + sizeOfIndex;
+                            if (hasChildren && keyLength < pattern.getMaxLength() && pattern.continues(s)
+                                    && hasWords(nodeOffset, nodeValue, pattern.getMinLength() - keyLength, pattern.getMaxLength() - keyLength)) {
+                                pushChildren(nodeOffset, nodeValue, s);
+                            } else {
+                                keyLength--;
+                            }
+                        } else {
+                            if (isWord && curLetter == (pattern.length() - 1)) {
+                                // visit, the key stays in the array until the next node
+                                ready = true;
+                                nextLength = keyLength;
+                                v = nodeValue;
+                                count++;
+                            }
 
+                            if (hasChildren && (curLetter + 1) < pattern.length()
+                                    && hasWords(nodeOffset, nodeValue, pattern.length() - keyLength, pattern.length() - keyLength)) {
                                 // go one level down
                                 curLetter++;
-                                if ('_' == pattern.charAt(curLetter)) {
-                                    // mark going level down
-                                    q.addFirst(-1L);
+                                // mark going level down
+                                int mark = top;
+                                push(-1L, '\0');
+
+                                boolean chain = isChain(nodeValue);
+                                long sizeOfIndex = 0;
+                                long low = offset;
+                                long high = offset;
+                                if (!chain) {
+                                    sizeOfIndex = readVarLenLong01(buffer, offset);
+                                    offset = offset + getVarLenLongSize(sizeOfIndex);
+                                    low = offset;
+                                    high = offset + pairsSize(sizeOfIndex);
+                                }
 
-                                    // add all children backwards, because q is stack
+                                char[] set = pattern.getChars(curLetter);
+                                if (chain) {
+                                    // a link of a chain, the only child
+                                    char c = toChar(readVarLenLong01(buffer, offset));
+                                    if (pattern.matches(curLetter, c)) {
+                                        push(nodeOffset - (nodeValue >>> 2), c);
+                                    }
+                                } else if (isSearchable(set, sizeOfIndex)) {
+                                    // find the letters, backwards, because it is a stack
+                                    for (int i = set.length - 1; 0 <= i; i--) {
+                                        long relOffset = searchChildren(set[i], low, high, sizeOfIndex);
+                                        if (-1 < relOffset) {
+                                            push(nodeOffset - relOffset, set[i]);
+                                        }
+                                    }
+                                } else {
+                                    // add the children that fit backwards, because it is a stack
                                     offset = high - 1; // high is exclusive
                                     while (low < offset) {
                                         // read relOffset
@@ -786,38 +3553,104 @@ public class PackedTrie {
                                         long indexKey = readVarLenLong1Back(buffer, offset, low - 1);
                                         offset = offset - getVarLenLongSize(indexKey);
 
-                                        q.addFirst(nodeOffset - relOffset);
-                                        c.addFirst((char) indexKey);
-                                    }
-                                } else {
-                                    // find the letter
-                                    long relOffset = binarySearchChildren(buffer, pattern.charAt(curLetter), low, high);
-                                    if (-1 < relOffset) {
-                                        // mark going level down
-                                        q.addFirst(-1L);
-                                        q.addFirst(nodeOffset - relOffset);
-                                        c.addFirst(pattern.charAt(curLetter));
-                                    } else {
-                                        s.deleteCharAt(s.length() - 1);
-                                        curLetter--;
+                                        if (pattern.matches(curLetter, toChar(indexKey))) {
+                                            push(nodeOffset - relOffset, toChar(indexKey));
+                                        }
                                     }
                                 }
+
+                                if (mark + 1 == top) {
+                                    // nothing fits, take the mark back
+                                    top = mark;
+                                    keyLength--;
+                                    curLetter--;
+                                }
                             } else {
-                                s.deleteCharAt(s.length() - 1);
+                                keyLength--;
                             }
-                        } else {
-                            curLetter--;
                         }
+                    } else {
+                        curLetter--;
+                    }
 
-                        if (null != k) {
-                            break;
+                    if (ready) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Goes one level down from the node for a variable pattern: pushes the children where the pattern
+         * goes on after the node {@code states}.
+         *
+         * @param nodeOffset node offset
+         * @param nodeValue  node value, with flags
+         * @param s          where the pattern is after the node
+         * @throws IOException IOException
+         */
+        private void pushChildren(long nodeOffset, long nodeValue, long s) throws IOException {
+            long offset = nodeOffset + getVarLenLongSize(nodeValue);
+
+            curLetter++;
+            // mark going level down
+            int mark = top;
+            push(-1L, '\0');
+
+            boolean chain = isChain(nodeValue);
+            long sizeOfIndex = 0;
+            long low = offset;
+            long high = offset;
+            if (!chain) {
+                sizeOfIndex = readVarLenLong01(buffer, offset);
+                offset = offset + getVarLenLongSize(sizeOfIndex);
+                low = offset;
+                high = offset + pairsSize(sizeOfIndex);
+            }
+
+            char[] set = getChars(pattern, s);
+            if (chain) {
+                // a link of a chain, the only child
+                char c = toChar(readVarLenLong01(buffer, offset));
+                long next = pattern.step(s, c, keyLength + 1);
+                if (0 != next) {
+                    push(nodeOffset - (nodeValue >>> 2), c, next);
+                }
+            } else if (isSearchable(set, sizeOfIndex)) {
+                // find the letters, backwards, because it is a stack
+                for (int i = set.length - 1; 0 <= i; i--) {
+                    long relOffset = searchChildren(set[i], low, high, sizeOfIndex);
+                    if (-1 < relOffset) {
+                        long next = pattern.step(s, set[i], keyLength + 1);
+                        if (0 != next) {
+                            push(nodeOffset - relOffset, set[i], next);
                         }
                     }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
                 }
+            } else {
+                // add the children that fit backwards, because it is a stack
+                offset = high - 1; // high is exclusive
+                while (low < offset) {
+                    long relOffset = readVarLenLong0Back(buffer, offset, low - 1);
+                    offset = offset - getVarLenLongSize(relOffset);
+                    long indexKey = readVarLenLong1Back(buffer, offset, low - 1);
+                    offset = offset - getVarLenLongSize(indexKey);
+
+                    long next = pattern.step(s, toChar(indexKey), keyLength + 1);
+                    if (0 != next) {
+                        push(nodeOffset - relOffset, toChar(indexKey), next);
+                    }
+                }
+            }
+
+            if (mark + 1 == top) {
+                // nothing fits, take the mark back
+                top = mark;
+                keyLength--;
+                curLetter--;
             }
-            return null != k;
         }
 
         /**
@@ -834,7 +3667,7 @@ public class PackedTrie {
         }
 
         public String getPattern() {
-            return pattern;
+            return pattern.toText();
         }
 
         public long getPageNo() {
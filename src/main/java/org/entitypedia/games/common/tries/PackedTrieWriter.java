@@ -0,0 +1,1199 @@
+package org.entitypedia.games.common.tries;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes the packed trie format incrementally, keeping in memory only the path from the root to the current node.
+ * <p>
+ * Keys should be added in lexicographic order (as in {@link String#compareTo(String)}), without duplicates.
+ * Because the format is post-order, a node is written as soon as a key arrives that does not share the node's
+ * prefix, so the memory needed is proportional to the longest key and the fan-out along its path, not to the
+ * size of the dictionary. The output is the same as {@link PackedTrie#pack(BasicTrie, OutputStream)} produces
+ * for the same keys and ids.
+ * <pre>
+ * PackedTrieWriter w = new PackedTrieWriter(out);
+ * w.add("abc", 1);
+ * w.add("abd", 2);
+ * w.finish();
+ * </pre>
+ *
+ * @author <a href="http://autayeu.com/">Aliaksandr Autayeu</a>
+ */
+public class PackedTrieWriter {
+
+    private static final int MAX_CHILDREN = 256;
+
+    // header: magic, version, flags. Legacy files start with a leaf node and a leaf value never starts with 0xFE.
+    static final byte[] MAGIC = {(byte) 0xFE, 'P', 'T'};
+    static final int VERSION = 1;
+    // nodes with children store the number of words below them, after the index: the total, how deep they go,
+    // with the LSB set if they are all that deep, and if not, the words by depth but the deepest, which is what
+    // the total leaves
+    static final long FLAG_COUNTS = 0x1L;
+    // nodes with children store the depths of the nearest and the farthest words below them, after the index,
+    // before the counts
+    static final long FLAG_DEPTHS = 0x2L;
+    // nodes with children store whether they have a table of child offsets by char in the index size LSB,
+    // the table follows the index
+    static final long FLAG_TABLES = 0x4L;
+    // nodes that are not words and have one child, but the root, store the child relative offset in place of
+    // the id, which is 0 for the rest of the nodes that are not words, and the child char in place of the index
+    static final long FLAG_CHAINS = 0x8L;
+    // index chars are codes, ranks in the alphabet the header stores after the flags: the number of chars and
+    // the chars in order, as differences from the previous one
+    static final long FLAG_ALPHABET = 0x10L;
+    // the root offset at the end is the offset of the root table right after the root: the root offset, the number
+    // of words and the number of root children, then for each of them its char, offset and node value
+    static final long FLAG_ROOT_TABLE = 0x20L;
+    // the id index follows the root: the number of words, the id width and the rank width in bytes, then for each
+    // word, in id order, its id and its rank in key order, big-endian. The root offset at the end points to its
+    // offset, followed by the root offset or the root table. Needs word counts
+    static final long FLAG_ID_INDEX = 0x40L;
+    // node values keep id 0 and the id table follows the root, before the id index: the id width in bytes, 0 if all
+    // the ids are 0, then the ids of the words by rank in key order, big-endian. The root offset at the end points to
+    // its offset, followed by the rest. Nodes with children store after the counts, for each child but the first, the
+    // number of words below the children before it, big-endian, as wide as the total needs. Needs word counts
+    static final long FLAG_ID_TABLE = 0x80L;
+    static final long KNOWN_FLAGS = FLAG_COUNTS | FLAG_DEPTHS | FLAG_TABLES | FLAG_CHAINS | FLAG_ALPHABET | FLAG_ROOT_TABLE
+            | FLAG_ID_INDEX | FLAG_ID_TABLE;
+    // chars a table covers per child, at most
+    private static final int TABLE_SPREAD = 4;
+    // distinct nodes kept to share, the most recently shared ones
+    private static final int MAX_SHARED_NODES = 1 << 18;
+
+    private final OutputStream out;
+    private final long flags;
+    // the least number of children for a table
+    private final int childTables;
+    // nodes with subtrees bigger than that go to the cluster before the root, 0 for none
+    private final int pageSize;
+    // chars in order and their codes by char, -1 for the chars not there, null if chars are written as they are
+    private final char[] alphabet;
+    private final int[] codes;
+    // bytes written so far
+    private long offset = 0;
+    // words written so far
+    private long words = 0;
+    // word ids in key order, for the id table and the id index
+    private long[] ids;
+    private int idCount = 0;
+
+    // offsets of the distinct nodes written, the most recently shared ones, to share the same subtrees,
+    // null if not shared
+    private final Map<NodeKey, Long> nodes;
+
+    // nodes put off to the cluster before the root, in post-order, and their offsets once written
+    private final List<Frame> deferred = new ArrayList<>();
+    private long[] deferredOffsets = new long[0];
+    private long[] deferredValues = new long[0];
+
+    // with page clustering, the subtrees that fit in a page are kept here until their parents are put off or
+    // the root is written, and go out then in one piece each, so that they start a new page rather than cross
+    // into the next one, null if written right away. The offset counts the bytes kept as if they were written
+    private PendingStream pending;
+    // subtrees kept, in the order written, the children of the nodes on the path
+    private final List<Chunk> kept = new ArrayList<>();
+    // subtrees a subtree writer leaves to the writer it is appended to, the children of each node put off
+    // together, null if they go out right away
+    private List<List<Chunk>> held;
+    // bytes written to the stream so far, while subtrees are kept
+    private long position = 0;
+    // where the subtrees went, from where the offset put them, for the offsets returned before, see getOffset
+    private final TreeMap<Long, Long> moves = new TreeMap<>();
+    private byte[] padding;
+
+    // path from the root, frames[0] is the root
+    private Frame[] frames = new Frame[16];
+    private int depth = 0;
+
+    // last added key, for order checks
+    private char[] lastKey = new char[16];
+    private int lastKeyLength = -1;
+
+    private boolean finished = false;
+
+    // max 20 bytes per child = two variable length longs, max 10 bytes each
+    private final ByteArrayOutputStream childrenStream = new ByteArrayOutputStream(20 * MAX_CHILDREN);
+    private final ByteArrayOutputStream nodeStream = new ByteArrayOutputStream(20 + 20 * MAX_CHILDREN);
+
+    public PackedTrieWriter(OutputStream out) {
+        this(out, 0L, 0, 0, false, null);
+    }
+
+    /**
+     * Creates a writer for the format defined by the {@code options}. Options other than the default ones
+     * need a header, which is written right away.
+     *
+     * @param out     stream to write to
+     * @param options pack options
+     * @throws IOException IOException
+     */
+    public PackedTrieWriter(OutputStream out, PackOptions options) throws IOException {
+        this(out, getFlags(options), options.getChildTables(), options.getPageClustering(), options.isSuffixSharing(),
+                getAlphabet(options.getAlphabet()));
+        if (0 != flags) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            header.write(MAGIC);
+            header.write(VERSION);
+            writeVarLenLong01(header, flags);
+            if (null != alphabet) {
+                writeVarLenLong01(header, alphabet.length);
+                char previous = 0;
+                for (char c : alphabet) {
+                    writeVarLenLong01(header, c - previous);
+                    previous = c;
+                }
+            }
+            header.writeTo(out);
+            offset = header.size();
+            position = offset;
+        }
+    }
+
+    private PackedTrieWriter(OutputStream out, long flags, int childTables, int pageSize, boolean suffixSharing, char[] alphabet) {
+        this.out = out;
+        this.flags = flags;
+        this.childTables = childTables;
+        this.pageSize = pageSize;
+        // shared nodes are children of nodes anywhere, so subtrees stay where they are written
+        this.pending = 0 < pageSize && !suffixSharing ? new PendingStream() : null;
+        this.nodes = suffixSharing ? new LinkedHashMap<NodeKey, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<NodeKey, Long> eldest) {
+                return MAX_SHARED_NODES < size();
+            }
+        } : null;
+        this.alphabet = alphabet;
+        this.codes = null == alphabet ? null : getCodes(alphabet);
+        this.ids = 0 == (flags & (FLAG_ID_INDEX | FLAG_ID_TABLE)) ? null : new long[16];
+        frames[0] = new Frame();
+        frames[0].reset(' ');
+    }
+
+    private static long getFlags(PackOptions options) {
+        long result = 0;
+        if (options.isWordCounts()) {
+            result = result | FLAG_COUNTS;
+        }
+        if (options.isWordDepths()) {
+            result = result | FLAG_DEPTHS;
+        }
+        if (0 < options.getChildTables()) {
+            result = result | FLAG_TABLES;
+        }
+        if (options.isPathCompression()) {
+            result = result | FLAG_CHAINS;
+        }
+        if (null != options.getAlphabet()) {
+            result = result | FLAG_ALPHABET;
+        }
+        if (options.isRootTable()) {
+            result = result | FLAG_ROOT_TABLE;
+        }
+        if (options.isIdIndex()) {
+            if (!options.isWordCounts()) {
+                throw new IllegalArgumentException("id index needs word counts");
+            }
+            result = result | FLAG_ID_INDEX;
+        }
+        if (options.isSuffixSharing()) {
+            if (!options.isWordCounts()) {
+                throw new IllegalArgumentException("suffix sharing needs word counts");
+            }
+            result = result | FLAG_ID_TABLE;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the distinct chars of the {@code alphabet}, in order, null for none.
+     */
+    private static char[] getAlphabet(String alphabet) {
+        if (null == alphabet) {
+            return null;
+        }
+        char[] chars = alphabet.toCharArray();
+        Arrays.sort(chars);
+        int size = 0;
+        for (int i = 0; i < chars.length; i++) {
+            if (0 == size || chars[size - 1] != chars[i]) {
+                chars[size] = chars[i];
+                size++;
+            }
+        }
+        return Arrays.copyOf(chars, size);
+    }
+
+    /**
+     * Returns the codes of the chars, which are their ranks in the {@code alphabet}, by char, -1 for the chars
+     * not there.
+     *
+     * @param alphabet distinct chars, in order
+     * @return codes by char
+     */
+    static int[] getCodes(char[] alphabet) {
+        int[] result = new int[alphabet[alphabet.length - 1] + 1];
+        Arrays.fill(result, -1);
+        for (int i = 0; i < alphabet.length; i++) {
+            result[alphabet[i]] = i;
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the writer shares the same subtrees, which it can do only for the subtrees it writes itself.
+     *
+     * @return whether the writer shares the same subtrees
+     */
+    boolean isSharing() {
+        return null != nodes;
+    }
+
+    /**
+     * Creates a writer for subtrees to be {@link #append(char, ByteArrayOutputStream, long, PackedTrieWriter) appended}
+     * to this one: same format, no header.
+     *
+     * @param out stream to write to
+     * @return writer
+     */
+    PackedTrieWriter newSubtreeWriter(OutputStream out) {
+        PackedTrieWriter result = new PackedTrieWriter(out, flags, childTables, pageSize, null != nodes, alphabet);
+        if (null != result.pending) {
+            // the subtrees go out when appended, where they would go if written there
+            result.held = new ArrayList<>();
+        }
+        return result;
+    }
+
+    /**
+     * Adds the {@code key} with the {@code id}. Keys should come in lexicographic order.
+     *
+     * @param key key
+     * @param id  id, max 2^61-1
+     * @throws IOException IOException
+     */
+    public void add(CharSequence key, long id) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("writer is finished");
+        }
+        if (null == key) {
+            throw new NullPointerException();
+        }
+
+        // common prefix with the previous key, which is the current path
+        int lcp = 0;
+        int max = Math.min(lastKeyLength, key.length());
+        while (lcp < max && lastKey[lcp] == key.charAt(lcp)) {
+            lcp++;
+        }
+        if (-1 < lastKeyLength && (lcp == key.length() || (lcp < lastKeyLength && key.charAt(lcp) < lastKey[lcp]))) {
+            throw new IllegalArgumentException("keys should be sorted and unique, got " + key + " after " + new String(lastKey, 0, lastKeyLength));
+        }
+
+        while (lcp < depth) {
+            leave();
+        }
+        for (int i = lcp; i < key.length(); i++) {
+            enter(key.charAt(i));
+        }
+        setValue(true, id);
+
+        if (lastKey.length < key.length()) {
+            char[] tmp = new char[Math.max(key.length(), 2 * lastKey.length)];
+            System.arraycopy(lastKey, 0, tmp, 0, lcp);
+            lastKey = tmp;
+        }
+        for (int i = lcp; i < key.length(); i++) {
+            lastKey[i] = key.charAt(i);
+        }
+        lastKeyLength = key.length();
+    }
+
+    /**
+     * Writes the remaining nodes and the root offset. Does not close the underlying stream.
+     *
+     * @return offset of the root node
+     * @throws IOException IOException
+     */
+    public long finish() throws IOException {
+        if (finished) {
+            throw new IllegalStateException("writer is finished");
+        }
+        while (0 < depth) {
+            leave();
+        }
+        if (null != pending) {
+            place(frames[0]);
+            pending = null;
+            offset = position;
+        }
+        if (!deferred.isEmpty()) {
+            writeDeferred();
+            resolve(frames[0]);
+        }
+        long rootOffset = offset;
+        writeNode(frames[0], rootOffset);
+        long idTableOffset = offset;
+        if (0 != (flags & FLAG_ID_TABLE)) {
+            writeIdTable();
+        }
+        long idIndexOffset = offset;
+        if (0 != (flags & FLAG_ID_INDEX)) {
+            writeIdIndex();
+        }
+        long tailOffset = rootOffset;
+        if (0 != (flags & (FLAG_ID_TABLE | FLAG_ID_INDEX | FLAG_ROOT_TABLE))) {
+            tailOffset = offset;
+            nodeStream.reset();
+            if (0 != (flags & FLAG_ID_TABLE)) {
+                writeVarLenLong01(nodeStream, idTableOffset);
+            }
+            if (0 != (flags & FLAG_ID_INDEX)) {
+                writeVarLenLong01(nodeStream, idIndexOffset);
+            }
+            writeVarLenLong01(nodeStream, rootOffset);
+            if (0 != (flags & FLAG_ROOT_TABLE)) {
+                Frame root = frames[0];
+                writeVarLenLong01(nodeStream, root.isWord ? words + 1 : words);
+                writeVarLenLong01(nodeStream, root.size);
+                for (int i = 0; i < root.size; i++) {
+                    writeVarLenLong01(nodeStream, code(root.chars[i]));
+                    writeVarLenLong01(nodeStream, root.offsets[i]);
+                    writeVarLenLong01(nodeStream, root.values[i]);
+                }
+            }
+            nodeStream.writeTo(out);
+            offset = offset + nodeStream.size();
+        }
+        if (0 != flags) {
+            // root offset is read backwards until an MSB0 byte, but the root node might end with an MSB1 one
+            out.write(0);
+        }
+        writeVarLenLong1(tailOffset, out);
+        finished = true;
+        return rootOffset;
+    }
+
+    /**
+     * Writes the id table: the ids of the words by rank, which is how they came.
+     */
+    private void writeIdTable() throws IOException {
+        // negative ids take 8 bytes
+        long max = 0;
+        for (int i = 0; i < idCount && 0 <= max; i++) {
+            max = ids[i] < 0 ? -1 : Math.max(max, ids[i]);
+        }
+        int idWidth = 0 == max ? 0 : getWidth(max);
+        nodeStream.reset();
+        nodeStream.write(idWidth);
+        for (int i = 0; i < idCount; i++) {
+            writeFixed(ids[i], idWidth);
+            if (64 * 1024 < nodeStream.size()) {
+                nodeStream.writeTo(out);
+                offset = offset + nodeStream.size();
+                nodeStream.reset();
+            }
+        }
+        nodeStream.writeTo(out);
+        offset = offset + nodeStream.size();
+    }
+
+    /**
+     * Writes the id index: the ids, sorted, with the ranks of their words in key order, the same ids by rank.
+     */
+    private void writeIdIndex() throws IOException {
+        long[] sorted = Arrays.copyOf(ids, idCount);
+        Arrays.sort(sorted);
+        // ranks come in order, so each goes to the next free place among the same ids
+        long[] ranks = new long[idCount];
+        int[] used = new int[idCount];
+        for (int rank = 0; rank < idCount; rank++) {
+            int first = lowerBound(sorted, ids[rank]);
+            ranks[first + used[first]] = rank;
+            used[first]++;
+        }
+
+        int idWidth = 0 == idCount ? 1 : getWidth(sorted[0] < 0 ? -1 : sorted[idCount - 1]);
+        int rankWidth = getWidth(idCount);
+        nodeStream.reset();
+        writeVarLenLong01(nodeStream, idCount);
+        nodeStream.write(idWidth);
+        nodeStream.write(rankWidth);
+        for (int i = 0; i < idCount; i++) {
+            writeFixed(sorted[i], idWidth);
+            writeFixed(ranks[i], rankWidth);
+            if (64 * 1024 < nodeStream.size()) {
+                nodeStream.writeTo(out);
+                offset = offset + nodeStream.size();
+                nodeStream.reset();
+            }
+        }
+        nodeStream.writeTo(out);
+        offset = offset + nodeStream.size();
+    }
+
+    /**
+     * Writes the {@code value} to the node stream in {@code width} bytes, big-endian.
+     */
+    private void writeFixed(long value, int width) {
+        for (int shift = (width - 1) << 3; 0 <= shift; shift = shift - 8) {
+            nodeStream.write((int) (value >>> shift) & 0xFF);
+        }
+    }
+
+    /**
+     * Returns the position of the first {@code value} in the sorted {@code values}, which has it.
+     */
+    private static int lowerBound(long[] values, long value) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the number of bytes for the {@code value}, big-endian, at least 1, 8 for negative ones.
+     */
+    private static int getWidth(long value) {
+        return Math.max(1, (64 - Long.numberOfLeadingZeros(value) + 7) >>> 3);
+    }
+
+    /**
+     * Opens a child node of the current node. Children should be opened in the order of their chars.
+     *
+     * @param c char of the child
+     */
+    void enter(char c) {
+        if (null != codes && (codes.length <= c || codes[c] < 0)) {
+            throw new IllegalArgumentException("char " + c + " is not in the alphabet");
+        }
+        depth++;
+        if (frames.length == depth) {
+            Frame[] tmp = new Frame[2 * frames.length];
+            System.arraycopy(frames, 0, tmp, 0, frames.length);
+            frames = tmp;
+        }
+        if (null == frames[depth]) {
+            frames[depth] = new Frame();
+        }
+        frames[depth].reset(c);
+        frames[depth].start = offset;
+    }
+
+    /**
+     * Sets the value of the current node.
+     *
+     * @param isWord whether the current node ends a word
+     * @param id     word id, max 2^61-1
+     */
+    void setValue(boolean isWord, long id) {
+        // bounds check -> max id 2^61-1 - need two bits for flags
+        if ((0x3FFFFFFFFFFFFFFFL - 1) < id) {
+            throw new IndexOutOfBoundsException();
+        }
+        frames[depth].isWord = isWord;
+        frames[depth].id = id;
+        if (isWord && null != ids) {
+            addId(id);
+        }
+    }
+
+    private void addId(long id) {
+        if (ids.length == idCount) {
+            ids = Arrays.copyOf(ids, 2 * idCount);
+        }
+        ids[idCount] = id;
+        idCount++;
+    }
+
+    /**
+     * Writes the current node and makes its parent current. With page clustering, a node whose subtree does not
+     * fit in a page is put off to the cluster before the root instead, see {@link #getDeferredOffsets()}, and
+     * the subtrees that fit may move, see {@link #getOffset(long)}.
+     *
+     * @return offset of the node written, negative if the node is put off
+     * @throws IOException IOException
+     */
+    long leave() throws IOException {
+        Frame f = frames[depth];
+        long nodeOffset;
+        long nodeValue = 0;
+        if (f.isWord) {
+            words++;
+        }
+        if (null != pending && !f.hasDeferred) {
+            // the subtree fits in a page with the node itself, or the node is put off after all
+            nodeOffset = offset;
+            nodeValue = writeNode(f, nodeOffset);
+            if (pageSize < offset - f.start) {
+                pending.truncate(pending.size() - (int) (offset - nodeOffset));
+                offset = nodeOffset;
+                nodeOffset = defer(f);
+                nodeValue = 0;
+            } else {
+                keep(f, frames[depth - 1].size);
+            }
+        } else if (0 < pageSize && (f.hasDeferred || pageSize < offset - f.start)) {
+            nodeOffset = defer(f);
+        } else if (null != nodes) {
+            // children are shared already, so the same subtrees have the same nodes
+            NodeKey key = new NodeKey(f);
+            Long written = nodes.get(key);
+            if (null == written) {
+                nodeOffset = offset;
+                nodeValue = writeNode(f, nodeOffset);
+                nodes.put(key, nodeOffset);
+            } else {
+                nodeOffset = written;
+                nodeValue = getNodeValue(f, nodeOffset);
+            }
+        } else {
+            nodeOffset = offset;
+            nodeValue = writeNode(f, nodeOffset);
+        }
+        depth--;
+        frames[depth].addChild(f.c, nodeOffset, nodeValue);
+        if (0 != (flags & FLAG_COUNTS)) {
+            frames[depth].addCounts(f.isWord ? 1 : 0, f.counts, f.height, 1);
+        }
+        if (0 != (flags & FLAG_DEPTHS)) {
+            frames[depth].addDepths(f.isWord, f.minDepth, f.maxDepth, 1);
+        }
+        return nodeOffset;
+    }
+
+    /**
+     * Puts off the current node to the cluster before the root.
+     *
+     * @return reference to the node put off, negative
+     */
+    private long defer(Frame f) throws IOException {
+        // parents of the nodes put off go after them
+        long result = -1 - deferred.size();
+        f.depth = depth;
+        deferred.add(f);
+        frames[depth] = null;
+        frames[depth - 1].hasDeferred = true;
+        if (null != pending) {
+            place(f);
+        }
+        return result;
+    }
+
+    /**
+     * Appends a subtree packed by another writer as the next child of the current node.
+     * Packed subtrees can be moved around as is, because nodes refer to their children by relative offsets.
+     * With page clustering, the subtree writer keeps what it packs and the subtrees go out from here instead,
+     * where they would go if this writer packed them.
+     *
+     * @param c          char of the subtree root
+     * @param packed     packed subtree
+     * @param nodeOffset offset of the subtree root in {@code packed}
+     * @param subtree    writer of the subtree, see {@link #newSubtreeWriter(OutputStream)}
+     * @return offset in this writer where the subtree starts, see {@link #getOffset(long)}
+     * @throws IOException IOException
+     */
+    long append(char c, ByteArrayOutputStream packed, long nodeOffset, PackedTrieWriter subtree) throws IOException {
+        long base = offset;
+        if (null == pending) {
+            packed.writeTo(out);
+            offset = offset + packed.size();
+        } else {
+            offset = offset + subtree.offset;
+        }
+        // the nodes the subtree put off join these, after them
+        int shift = deferred.size();
+        for (Frame f : subtree.deferred) {
+            for (int i = 0; i < f.size; i++) {
+                f.offsets[i] = f.offsets[i] < 0 ? f.offsets[i] - shift : base + f.offsets[i];
+            }
+            deferred.add(f);
+        }
+        if (null != pending) {
+            // the subtrees the subtree writer held go out as they would have if it were this one,
+            // and the one it kept, if any, is kept here
+            for (List<Chunk> children : subtree.held) {
+                write(children, subtree.pending, base);
+            }
+            for (Chunk chunk : subtree.kept) {
+                chunk.start = base + chunk.start;
+                chunk.child = frames[depth].size;
+                int start = pending.size();
+                pending.write(subtree.pending, chunk.bytesStart, chunk.length);
+                chunk.bytesStart = start;
+                kept.add(chunk);
+            }
+        }
+        // the subtree root was a child of the subtree writer root
+        long nodeValue = subtree.frames[0].values[subtree.frames[0].size - 1];
+        if (nodeOffset < 0) {
+            frames[depth].addChild(c, nodeOffset - shift, nodeValue);
+            frames[depth].hasDeferred = true;
+        } else {
+            frames[depth].addChild(c, base + nodeOffset, nodeValue);
+        }
+        words = words + subtree.words;
+        if (null != ids) {
+            for (int i = 0; i < subtree.idCount; i++) {
+                addId(subtree.ids[i]);
+            }
+        }
+        if (0 != (flags & FLAG_COUNTS)) {
+            Frame f = subtree.frames[0];
+            frames[depth].addCounts(0, f.counts, f.height, 0);
+        }
+        if (0 != (flags & FLAG_DEPTHS)) {
+            Frame f = subtree.frames[0];
+            frames[depth].addDepths(false, f.minDepth, f.maxDepth, 0);
+        }
+        return base;
+    }
+
+    /**
+     * Returns where the node {@link #leave()} or {@link #append(char, ByteArrayOutputStream, long, PackedTrieWriter)}
+     * put at the {@code offset} is, as the subtrees that fit in a page move to start one. Known after {@link #finish()}.
+     *
+     * @param offset offset returned before, not negative
+     * @return offset of the node
+     */
+    long getOffset(long offset) {
+        Map.Entry<Long, Long> move = moves.floorEntry(offset);
+        return null == move ? offset : offset + move.getValue();
+    }
+
+    /**
+     * Keeps the subtree of the node just written, in place of the subtrees of its children, which are part of it.
+     *
+     * @param node  node
+     * @param child which child of its parent the node is
+     */
+    private void keep(Frame node, int child) {
+        while (!kept.isEmpty() && node.start <= kept.get(kept.size() - 1).start) {
+            kept.remove(kept.size() - 1);
+        }
+        Chunk chunk = new Chunk();
+        chunk.start = node.start;
+        chunk.length = (int) (offset - node.start);
+        chunk.bytesStart = pending.size() - chunk.length;
+        chunk.child = child;
+        kept.add(chunk);
+    }
+
+    /**
+     * Writes the subtrees of the children of the {@code parent}, which is put off or the root, or holds them
+     * for the writer this one is appended to.
+     */
+    private void place(Frame parent) throws IOException {
+        int first = kept.size();
+        while (0 < first && parent.start <= kept.get(first - 1).start) {
+            first--;
+        }
+        if (first == kept.size()) {
+            return;
+        }
+        List<Chunk> children = new ArrayList<>(kept.subList(first, kept.size()));
+        for (Chunk chunk : children) {
+            chunk.parent = parent;
+        }
+        if (null == held) {
+            write(children, pending, 0);
+            pending.truncate(children.get(0).bytesStart);
+        } else {
+            held.add(children);
+        }
+        kept.subList(first, kept.size()).clear();
+    }
+
+    /**
+     * Writes the subtrees of the children of a node from the {@code bytes} kept. Each one that fits in a page
+     * goes in the rest of the current page, or starts a new one if none of the rest fit there, so that less
+     * goes to padding.
+     *
+     * @param children subtrees, in the order kept
+     * @param bytes    bytes kept
+     * @param base     offset of the writer that kept them
+     */
+    private void write(List<Chunk> children, PendingStream bytes, long base) throws IOException {
+        List<Chunk> rest = new ArrayList<>(children);
+        while (!rest.isEmpty()) {
+            long room = pageSize - position % pageSize;
+            int next = 0;
+            while (next < rest.size() && room < rest.get(next).length) {
+                next++;
+            }
+            if (next == rest.size()) {
+                next = 0;
+                Chunk chunk = rest.get(next);
+                if (chunk.length <= pageSize) {
+                    if (null == padding) {
+                        padding = new byte[pageSize];
+                    }
+                    out.write(padding, 0, (int) room);
+                    position = position + room;
+                }
+            }
+            write(rest.remove(next), bytes, base);
+        }
+    }
+
+    /**
+     * Writes the subtree from the {@code bytes} kept and points its parent there.
+     */
+    private void write(Chunk chunk, PendingStream bytes, long base) throws IOException {
+        long start = base + chunk.start;
+        moves.put(start, position - start);
+        chunk.parent.offsets[chunk.child] = position + (chunk.parent.offsets[chunk.child] - start);
+        bytes.writeTo(out, chunk.bytesStart, chunk.length);
+        position = position + chunk.length;
+    }
+
+    /**
+     * Returns the offsets of the nodes put off to the cluster before the root, in the order they were put off,
+     * which is post-order. Known after {@link #finish()}.
+     *
+     * @return offsets of the nodes put off
+     */
+    long[] getDeferredOffsets() {
+        return deferredOffsets;
+    }
+
+    /**
+     * Writes the nodes put off level by level, the deepest first, so that children still come before parents,
+     * in key order within a level.
+     */
+    private void writeDeferred() throws IOException {
+        deferredOffsets = new long[deferred.size()];
+        deferredValues = new long[deferred.size()];
+        int maxDepth = 0;
+        for (Frame f : deferred) {
+            maxDepth = Math.max(maxDepth, f.depth);
+        }
+        for (int d = maxDepth; 0 < d; d--) {
+            for (int i = 0; i < deferred.size(); i++) {
+                Frame f = deferred.get(i);
+                if (d == f.depth) {
+                    resolve(f);
+                    deferredOffsets[i] = offset;
+                    deferredValues[i] = writeNode(f, offset);
+                }
+            }
+        }
+        deferred.clear();
+    }
+
+    /**
+     * Replaces the references to the nodes put off among the children of the {@code node} by their offsets
+     * and values.
+     */
+    private void resolve(Frame node) {
+        for (int i = 0; i < node.size; i++) {
+            if (node.offsets[i] < 0) {
+                int index = (int) (-1 - node.offsets[i]);
+                node.offsets[i] = deferredOffsets[index];
+                node.values[i] = deferredValues[index];
+            }
+        }
+    }
+
+    /**
+     * Writes the node and advances the offset by the number of bytes written.
+     *
+     * @return the node value written
+     */
+    private long writeNode(Frame node, long nodeOffset) throws IOException {
+//        0  13 offset of root node                             // save root offset at the end in MSB 1 bytes (root should have children and the last has offset in MSB 0 bytes
+//    ____
+//        1  10 node value of ‘aa’                               // word id, variable length long, MSB 01 bytes + 2 LSB bits=hasChildren+isWord flags. max id 2^61-1
+//        2  0 size of index to child nodes of ‘aa’ in bytes     // index size, variable length long, MSB 01 bytes, absent if !hasChildren
+//    ____
+//        3  3 node value of ‘ab’
+//        4  0 size of index to child nodes of ‘ab’ in bytes
+//    ____
+//        5  13 node value of ‘a’
+//        6  4 size of index to child nodes of ‘a’ in bytes
+//        7  a index key for ‘aa’ coming from ‘a’                // char -> variable length long, MSB 1 bytes. ASCII wins, for the rest the alphabet codes fit up to 128 chars in 0-127, see PackOptions#setAlphabet.
+//        8  4 relative offset of node ‘aa’ (5 − 4 = 1)         // long -> variable length long, MSB 0 bytes
+//        9  b index key for ‘ab’ coming from ‘a’
+//        10 2 relative offset of node ‘ab’ (5 − 2 = 3)
+//    ____
+//        11 7 node value of ‘b’
+//        12 0 size of index to child nodes of ‘b’ in bytes
+//    ____
+//        13 20 root node value
+//        14 4 size of index to child nodes of root in bytes
+//        15 a index key for ‘a’ coming from root
+//        16 8 relative offset of node ‘a’ (13 − 8 = 5)
+//        17 b index key for ‘b’ coming from root
+//        18 2 relative offset of node ‘b’ (13 − 2 = 11)
+
+        long nodeValue = getNodeValue(node, nodeOffset);
+        nodeStream.reset();
+        writeVarLenLong01(nodeStream, nodeValue);
+
+        if (isChain(node)) {
+            // a link of a chain: child char in place of the index
+            writeVarLenLong01(nodeStream, code(node.chars[0]));
+        } else if (0 < node.size) {
+            ByteArrayOutputStream cStream = childrenStream;
+            if (MAX_CHILDREN < node.size) {
+                cStream = new ByteArrayOutputStream(20 * node.size);
+            } else {
+                cStream.reset();
+            }
+            // children are sorted
+            for (int i = 0; i < node.size; i++) {
+                // index key
+                writeVarLenLong1(code(node.chars[i]), cStream);
+                // relative offset
+                writeVarLenLong0(nodeOffset - node.offsets[i], cStream);
+            }
+
+            if (0 == (flags & FLAG_TABLES)) {
+                writeVarLenLong01(nodeStream, cStream.size());
+                cStream.writeTo(nodeStream);
+            } else {
+                int span = code(node.chars[node.size - 1]) - code(node.chars[0]) + 1;
+                boolean table = childTables <= node.size && span <= TABLE_SPREAD * node.size;
+                writeVarLenLong01(nodeStream, (((long) cStream.size()) << 1) | (table ? 1 : 0));
+                cStream.writeTo(nodeStream);
+                if (table) {
+                    writeTable(node, nodeOffset, span);
+                }
+            }
+
+            if (0 != (flags & FLAG_DEPTHS)) {
+                // the nearest word is at least 1 level below, the farthest is not nearer
+                int minDepth = Math.max(node.minDepth, 1);
+                writeVarLenLong01(nodeStream, minDepth - 1);
+                writeVarLenLong01(nodeStream, Math.max(node.maxDepth, minDepth) - minDepth);
+            }
+
+            if (0 != (flags & FLAG_COUNTS)) {
+                // all the words below and how deep they go, then words 1, 2, ... levels below but the deepest,
+                // the node itself is a word or not
+                long total = 0;
+                for (int i = 1; i < node.height; i++) {
+                    total = total + node.counts[i];
+                }
+                // as below the nodes of a single word tail, no counts but the total
+                boolean deepest = total == node.counts[node.height - 1];
+                writeVarLenLong01(nodeStream, total);
+                writeVarLenLong01(nodeStream, ((long) (node.height - 1) << 1) | (deepest ? 1 : 0));
+                for (int i = 1; i < node.height - 1 && !deepest; i++) {
+                    writeVarLenLong01(nodeStream, node.counts[i]);
+                }
+                if (0 != (flags & FLAG_ID_TABLE)) {
+                    // ranks of the children below the node, so that lookups do not read the children before
+                    int width = (64 - Long.numberOfLeadingZeros(total) + 7) >>> 3;
+                    long before = 0;
+                    for (int i = 1; i < node.size; i++) {
+                        before = before + node.words[i - 1];
+                        for (int shift = (width - 1) << 3; 0 <= shift; shift = shift - 8) {
+                            nodeStream.write((int) (before >>> shift) & 0xFF);
+                        }
+                    }
+                }
+            }
+        }
+
+        nodeStream.writeTo(null == pending ? out : pending);
+        offset = offset + nodeStream.size();
+        return nodeValue;
+    }
+
+    /**
+     * Returns whether the node is a link of a chain: not a word, with one child, and not the root.
+     */
+    private boolean isChain(Frame node) {
+        return 0 != (flags & FLAG_CHAINS) && !node.isWord && 1 == node.size && node != frames[0];
+    }
+
+    /**
+     * Returns the value of the node at the offset: word id + flags, or the child relative offset + flags for
+     * a link of a chain.
+     */
+    private long getNodeValue(Frame node, long nodeOffset) {
+        if (isChain(node)) {
+            return ((nodeOffset - node.offsets[0]) << 2) | 0x2L;
+        }
+        // 2 LSB bits=hasChildren+isWord flags, ids of the nodes that are not words are 0 with chains,
+        // all are 0 with the id table
+        long nodeValue = 0 == (flags & FLAG_ID_TABLE) && (0 == (flags & FLAG_CHAINS) || node.isWord) ? node.id << 2 : 0;
+        if (0 < node.size) {
+            nodeValue = nodeValue | 0x2L;
+        }
+        if (node.isWord) {
+            nodeValue = nodeValue | 0x1L;
+        }
+        return nodeValue;
+    }
+
+    /**
+     * Writes the table of the child offsets of the node: the first char, the number of chars, the offset width
+     * in bytes and then the relative offsets of the children by char, big-endian, 0 where there is no child.
+     */
+    private void writeTable(Frame node, long nodeOffset, int span) throws IOException {
+        long maxOffset = 0;
+        for (int i = 0; i < node.size; i++) {
+            maxOffset = Math.max(maxOffset, nodeOffset - node.offsets[i]);
+        }
+        int width = (64 - Long.numberOfLeadingZeros(maxOffset) + 7) >>> 3;
+        int first = code(node.chars[0]);
+        writeVarLenLong01(nodeStream, first);
+        writeVarLenLong01(nodeStream, span);
+        nodeStream.write(width);
+        int next = 0;
+        for (int c = first; c < first + span; c++) {
+            long relOffset = 0;
+            if (c == code(node.chars[next])) {
+                relOffset = nodeOffset - node.offsets[next];
+                next++;
+            }
+            for (int shift = (width - 1) << 3; 0 <= shift; shift = shift - 8) {
+                nodeStream.write((int) (relOffset >>> shift) & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Returns the code of the char, which is the char itself without an alphabet.
+     */
+    private int code(char c) {
+        return null == codes ? c : codes[c];
+    }
+
+    /**
+     * Encodes 64-bit integer as series of MSB0 bytes with last MSB1 byte.
+     *
+     * @param value 64-bit integer to encode
+     * @throws IOException
+     */
+    static void writeVarLenLong01(OutputStream out, long value) throws IOException {
+        while (true) {
+            if ((value & ~0x7FL) == 0) {
+                out.write(((int) value & 0x7F) | 0x80);
+                return;
+            } else {
+                out.write((int) value & 0x7F);
+                value = value >>> 7;
+            }
+        }
+    }
+
+    /**
+     * Writes 64-bit integer encoded as series of MSB1 bytes.
+     *
+     * @param out stream to write to
+     * @throws IOException IOException
+     */
+    static void writeVarLenLong1(long value, OutputStream out) throws IOException {
+        while (true) {
+            if ((value & ~0x7FL) == 0) {
+                out.write(((int) value & 0x7F) | 0x80);
+                return;
+            } else {
+                out.write(((int) value & 0x7F) | 0x80);
+                value = value >>> 7;
+            }
+        }
+    }
+
+    /**
+     * Writes 64-bit integer encoded as a series of MSB0 bytes.
+     *
+     * @param out stream to write to
+     * @throws IOException IOException
+     */
+    static void writeVarLenLong0(long value, OutputStream out) throws IOException {
+        while (true) {
+            if ((value & ~0x7FL) == 0) {
+                out.write((int) value & 0x7F);
+                return;
+            } else {
+                out.write((int) value & 0x7F);
+                value = value >>> 7;
+            }
+        }
+    }
+
+    /**
+     * A node as written: whether it is a word, its id is in the id table, and its children, by char and offset.
+     */
+    private static final class NodeKey {
+        private final long[] data;
+        private final int hash;
+
+        private NodeKey(Frame node) {
+            data = new long[1 + 2 * node.size];
+            data[0] = node.isWord ? 1 : 0;
+            for (int i = 0; i < node.size; i++) {
+                data[1 + 2 * i] = node.chars[i];
+                data[2 + 2 * i] = node.offsets[i];
+            }
+            hash = Arrays.hashCode(data);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || (o instanceof NodeKey && hash == ((NodeKey) o).hash && Arrays.equals(data, ((NodeKey) o).data));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Bytes kept, which can be dropped from the end and written in parts.
+     */
+    private static final class PendingStream extends ByteArrayOutputStream {
+
+        private void truncate(int size) {
+            count = size;
+        }
+
+        private void write(PendingStream from, int start, int length) {
+            write(from.buf, start, length);
+        }
+
+        private void writeTo(OutputStream out, int start, int length) throws IOException {
+            out.write(buf, start, length);
+        }
+    }
+
+    /**
+     * A subtree kept: where it starts, by the offset and among the bytes kept, its length, and its parent, once
+     * known, and which child of it the subtree is.
+     */
+    private static final class Chunk {
+        private long start;
+        private int bytesStart;
+        private int length;
+        private Frame parent;
+        private int child;
+    }
+
+    /**
+     * A node on the current path: its value and the children written so far.
+     */
+    private static final class Frame {
+        private char c;
+        private boolean isWord;
+        private long id;
+
+        private char[] chars = new char[4];
+        private long[] offsets = new long[4];
+        // node values of the children, 0 for the ones put off until they are written
+        private long[] values = new long[4];
+        // words in the subtrees of the children, with word counts
+        private long[] words = new long[4];
+        private int size;
+
+        // words by depth below the node, counts[0] unused, 0 up to height
+        private long[] counts = new long[4];
+        private int height;
+
+        // depths of the nearest and the farthest words below the node, 0 if none
+        private int minDepth;
+        private int maxDepth;
+
+        // where the subtree starts, the depth and whether any children are put off, for page clustering
+        private long start;
+        private int depth;
+        private boolean hasDeferred;
+
+        private void reset(char c) {
+            this.c = c;
+            this.isWord = false;
+            this.id = 0;
+            this.size = 0;
+            for (int i = 0; i < height; i++) {
+                counts[i] = 0;
+            }
+            this.height = 0;
+            this.minDepth = 0;
+            this.maxDepth = 0;
+            this.hasDeferred = false;
+        }
+
+        /**
+         * Adds the depths of a node {@code shift} levels below, which is a word or not.
+         */
+        private void addDepths(boolean word, int belowMin, int belowMax, int shift) {
+            if (word) {
+                addDepth(shift);
+            }
+            if (0 < belowMin) {
+                addDepth(belowMin + shift);
+                addDepth(belowMax + shift);
+            }
+        }
+
+        private void addDepth(int depth) {
+            if (0 == minDepth || depth < minDepth) {
+                minDepth = depth;
+            }
+            if (maxDepth < depth) {
+                maxDepth = depth;
+            }
+        }
+
+        /**
+         * Adds the counts of a node {@code shift} levels below, which is a word or not.
+         */
+        private void addCounts(long word, long[] below, int belowHeight, int shift) {
+            int newHeight = Math.max(height, Math.max(belowHeight, 1) + shift);
+            if (counts.length < newHeight) {
+                long[] tmp = new long[Math.max(newHeight, 2 * counts.length)];
+                System.arraycopy(counts, 0, tmp, 0, height);
+                counts = tmp;
+            }
+            height = newHeight;
+            counts[shift] = counts[shift] + word;
+            long total = word;
+            for (int i = 1; i < belowHeight; i++) {
+                counts[i + shift] = counts[i + shift] + below[i];
+                total = total + below[i];
+            }
+            // of the child just added
+            words[size - 1] = total;
+        }
+
+        private void addChild(char c, long offset, long value) {
+            if (chars.length == size) {
+                char[] tmpChars = new char[2 * size];
+                System.arraycopy(chars, 0, tmpChars, 0, size);
+                chars = tmpChars;
+                long[] tmpOffsets = new long[2 * size];
+                System.arraycopy(offsets, 0, tmpOffsets, 0, size);
+                offsets = tmpOffsets;
+                long[] tmpValues = new long[2 * size];
+                System.arraycopy(values, 0, tmpValues, 0, size);
+                values = tmpValues;
+                long[] tmpWords = new long[2 * size];
+                System.arraycopy(words, 0, tmpWords, 0, size);
+                words = tmpWords;
+            }
+            chars[size] = c;
+            offsets[size] = offset;
+            values[size] = value;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.entitypedia.games.common.tries;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Base64;
+
+/**
+ * Position in a pattern iteration over a {@link PackedTrie}: the pattern, the number of keys iterated over and
+ * the last of them. An iterator resumed from a cursor continues right after that key, going down its path once,
+ * instead of iterating over all the keys before, see {@link PackedTrie#iteratePatterns(PatternCursor, long)}.
+ * <p>
+ * The cursor does not refer to the packed trie bytes, so it stays valid for a repacked trie as well.
+ * The pattern is either a mask, see {@link PackedTrie#iteratePatterns(String)}, or a {@link TriePattern}.
+ * It converts to a URL-safe token and back, to be handed out as a "next page" link.
+ *
+ * @author <a href="http://autayeu.com/">Aliaksandr Autayeu</a>
+ */
+public final class PatternCursor implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // masks go in version 1 tokens, other patterns in version 2 ones, in the TriePattern syntax
+    private static final int TOKEN_VERSION = 1;
+    private static final int TOKEN_VERSION_COMPILED = 2;
+
+    private final TriePattern pattern;
+    private final String key;
+    private final long count;
+
+    /**
+     * Creates a cursor.
+     *
+     * @param pattern pattern, a mask
+     * @param key     last key iterated over, null if not known, then {@code count} keys are skipped from the start
+     * @param count   the number of keys iterated over
+     */
+    public PatternCursor(String pattern, String key, long count) {
+        this(TriePattern.mask(pattern), key, count);
+    }
+
+    /**
+     * Creates a cursor.
+     *
+     * @param pattern pattern
+     * @param key     last key iterated over, null if not known, then {@code count} keys are skipped from the start
+     * @param count   the number of keys iterated over
+     */
+    public PatternCursor(TriePattern pattern, String key, long count) {
+        if (null == pattern) {
+            throw new IllegalArgumentException("pattern should not be null");
+        }
+        if (null != key && !pattern.matches(key)) {
+            throw new IllegalArgumentException("key " + key + " does not fit the pattern " + pattern);
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("count should not be negative");
+        }
+        this.pattern = pattern;
+        this.key = key;
+        this.count = count;
+    }
+
+    /**
+     * Returns the pattern as a mask or, if it is not one, in the syntax of {@link TriePattern#compile(String)}.
+     *
+     * @return the pattern
+     */
+    public String getPattern() {
+        return pattern.toText();
+    }
+
+    public TriePattern getTriePattern() {
+        return pattern;
+    }
+
+    /**
+     * Returns the last key iterated over, or null if it is not known.
+     *
+     * @return the last key iterated over
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the number of keys iterated over.
+     *
+     * @return the number of keys iterated over
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the cursor as a URL-safe string.
+     *
+     * @return token
+     */
+    public String toToken() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 2 * pattern.length());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            boolean mask = pattern.isMask();
+            out.writeByte(mask ? TOKEN_VERSION : TOKEN_VERSION_COMPILED);
+            out.writeUTF(mask ? pattern.toText() : pattern.toString());
+            out.writeLong(count);
+            out.writeBoolean(null != key);
+            if (null != key) {
+                out.writeUTF(key);
+            }
+        } catch (IOException e) {
+            // does not happen with a byte array
+            throw new IllegalStateException(e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * Returns the cursor from the {@code token}.
+     *
+     * @param token token, see {@link #toToken()}
+     * @return cursor
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public static PatternCursor fromToken(String token) {
+        if (null == token) {
+            throw new NullPointerException();
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)))) {
+            int version = in.readUnsignedByte();
+            if (TOKEN_VERSION != version && TOKEN_VERSION_COMPILED != version) {
+                throw new IllegalArgumentException("Unsupported cursor version " + version);
+            }
+            String text = in.readUTF();
+            TriePattern pattern = TOKEN_VERSION == version ? TriePattern.mask(text) : TriePattern.compile(text);
+            long count = in.readLong();
+            String key = in.readBoolean() ? in.readUTF() : null;
+            if (-1 != in.read()) {
+                throw new IllegalArgumentException("Malformed cursor");
+            }
+            return new PatternCursor(pattern, key, count);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed cursor", e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PatternCursor)) {
+            return false;
+        }
+        PatternCursor that = (PatternCursor) o;
+        return count == that.count && pattern.equals(that.pattern) && (null == key ? null == that.key : key.equals(that.key));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = pattern.hashCode();
+        result = 31 * result + (null == key ? 0 : key.hashCode());
+        result = 31 * result + (int) (count ^ (count >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "PatternCursor{pattern=" + pattern.toText() + ", key=" + key + ", count=" + count + '}';
+    }
+}
@@ -0,0 +1,596 @@
+package org.entitypedia.games.common.tries;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Compiled pattern for {@link PackedTrie} queries: a set of allowed chars per key position.
+ * <p>
+ * A pattern is compiled from a string, where each position is one of:
+ * <ul>
+ * <li><code>_</code> (underscore) - any char;</li>
+ * <li><code>[aeiou]</code> - one of the chars, ranges like <code>[a-f]</code> are allowed;</li>
+ * <li><code>[^st]</code> - any char except these;</li>
+ * <li><code>*</code> - any run of chars, including none;</li>
+ * <li><code>\x</code> - the char x as is, to match <code>_</code>, <code>*</code>, <code>[</code>, <code>{</code> or <code>\</code>;</li>
+ * <li>any other char - the char itself.</li>
+ * </ul>
+ * Thus "[aeiou]_[^st]__" fits five-letter keys starting with a vowel and without s or t in the third position,
+ * and "c*t" fits the keys starting with c and ending with t.
+ * <p>
+ * The pattern may end with length bounds: <code>{5,9}</code>, <code>{5,}</code>, <code>{,9}</code> or
+ * <code>{5}</code>, as in "cat*{5,9}" for the keys of 5 to 9 chars starting with cat.
+ * Patterns with <code>*</code> or bounds are matched in one traversal, which follows all the ways the key
+ * prefix can fit the pattern and gives up on a subtree as soon as none is left or its keys get too long.
+ * A pattern of this kind can have at most {@value #MAX_VARIABLE_LENGTH} positions.
+ * <p>
+ * During traversal the chars of a position are intersected with the child index of a node: small sets are
+ * searched for char by char, large and negated ones are matched against the index in one scan.
+ *
+ * @author <a href="http://autayeu.com/">Aliaksandr Autayeu</a>
+ */
+public final class TriePattern implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The most positions in a pattern with * or length bounds: a bit per position and one to accept.
+     */
+    public static final int MAX_VARIABLE_LENGTH = 63;
+
+    // sorted distinct chars per position, null for any char
+    private final char[][] chars;
+    // whether the chars of a position are excluded instead
+    private final boolean[] negated;
+    // whether a position is *, which also has no chars
+    private final boolean[] stars;
+    // length bounds, inclusive, Integer.MAX_VALUE for no upper bound
+    private final int minLength;
+    private final int maxLength;
+
+    // the chars of a position as a bitset, up to the highest of them
+    private final long[][] bits;
+    // for variable patterns, matched as a set of positions, a bit each:
+    // positions which are *, positions from where the rest is *, positions with a * ahead before the rest is *,
+    // and the number of chars the rest needs
+    private final long starMask;
+    private final long tailMask;
+    private final long runMask;
+    private final int[] needs;
+
+    private TriePattern(char[][] chars, boolean[] negated, boolean[] stars, int minLength, int maxLength) {
+        this.chars = chars;
+        this.negated = negated;
+        this.stars = stars;
+        this.bits = new long[chars.length][];
+        for (int i = 0; i < chars.length; i++) {
+            if (null != chars[i]) {
+                bits[i] = new long[(chars[i][chars[i].length - 1] >> 6) + 1];
+                for (char c : chars[i]) {
+                    bits[i][c >> 6] |= 1L << c;
+                }
+            }
+        }
+
+        int fixedLength = 0;
+        boolean variable = false;
+        for (boolean star : stars) {
+            if (star) {
+                variable = true;
+            } else {
+                fixedLength++;
+            }
+        }
+        this.minLength = Math.max(minLength, fixedLength);
+        this.maxLength = variable ? maxLength : Math.min(maxLength, fixedLength);
+
+        if (isFixed()) {
+            this.starMask = 0;
+            this.tailMask = 0;
+            this.runMask = 0;
+            this.needs = null;
+        } else {
+            if (MAX_VARIABLE_LENGTH < chars.length) {
+                throw new IllegalArgumentException("Pattern with * or length bounds is longer than " + MAX_VARIABLE_LENGTH);
+            }
+            long star = 0;
+            long tail = 0;
+            long run = 0;
+            int[] rest = new int[chars.length + 1];
+            boolean allStars = true;
+            boolean starAhead = false;
+            for (int i = chars.length - 1; 0 <= i; i--) {
+                if (stars[i]) {
+                    star = star | (1L << i);
+                    rest[i] = rest[i + 1];
+                    starAhead = starAhead || !allStars;
+                } else {
+                    allStars = false;
+                    rest[i] = rest[i + 1] + 1;
+                }
+                if (allStars) {
+                    tail = tail | (1L << i);
+                }
+                if (starAhead) {
+                    run = run | (1L << i);
+                }
+            }
+            this.starMask = star;
+            this.tailMask = tail;
+            this.runMask = run;
+            this.needs = rest;
+        }
+    }
+
+    /**
+     * Compiles the {@code pattern}, see the class description for the syntax.
+     *
+     * @param pattern pattern
+     * @return compiled pattern
+     * @throws IllegalArgumentException if the pattern is malformed
+     */
+    public static TriePattern compile(String pattern) {
+        if (null == pattern) {
+            throw new IllegalArgumentException("pattern should not be null");
+        }
+        char[][] chars = new char[pattern.length()][];
+        boolean[] negated = new boolean[pattern.length()];
+        boolean[] stars = new boolean[pattern.length()];
+        int minLength = 0;
+        int maxLength = Integer.MAX_VALUE;
+        int length = 0;
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            i++;
+            if ('_' == c) {
+                chars[length] = null;
+            } else if ('*' == c) {
+                chars[length] = null;
+                stars[length] = true;
+            } else if ('{' == c) {
+                int close = pattern.indexOf('}', i);
+                if (close != pattern.length() - 1) {
+                    throw new IllegalArgumentException("Length bounds should end the pattern " + pattern);
+                }
+                String bounds = pattern.substring(i, close);
+                int comma = bounds.indexOf(',');
+                try {
+                    if (comma < 0) {
+                        minLength = Integer.parseInt(bounds);
+                        maxLength = minLength;
+                    } else {
+                        minLength = 0 == comma ? 0 : Integer.parseInt(bounds.substring(0, comma));
+                        maxLength = bounds.length() - 1 == comma ? Integer.MAX_VALUE : Integer.parseInt(bounds.substring(comma + 1));
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Malformed length bounds in the pattern " + pattern, e);
+                }
+                if (minLength < 0 || maxLength < minLength) {
+                    throw new IllegalArgumentException("Malformed length bounds in the pattern " + pattern);
+                }
+                // the bounds end the pattern
+                i = pattern.length();
+                continue;
+            } else if ('\\' == c) {
+                if (pattern.length() <= i) {
+                    throw new IllegalArgumentException("Dangling escape at the end of the pattern " + pattern);
+                }
+                chars[length] = new char[]{pattern.charAt(i)};
+                i++;
+            } else if ('[' == c) {
+                if (i < pattern.length() && '^' == pattern.charAt(i)) {
+                    negated[length] = true;
+                    i++;
+                }
+                StringBuilder set = new StringBuilder();
+                boolean closed = false;
+                while (i < pattern.length() && !closed) {
+                    char from = pattern.charAt(i);
+                    i++;
+                    if (']' == from) {
+                        closed = true;
+                    } else {
+                        if ('\\' == from && i < pattern.length()) {
+                            from = pattern.charAt(i);
+                            i++;
+                        }
+                        char to = from;
+                        if (i + 1 < pattern.length() && '-' == pattern.charAt(i) && ']' != pattern.charAt(i + 1)) {
+                            to = pattern.charAt(i + 1);
+                            i = i + 2;
+                            if ('\\' == to && i < pattern.length()) {
+                                to = pattern.charAt(i);
+                                i++;
+                            }
+                            if (to < from) {
+                                throw new IllegalArgumentException("Reversed range " + from + "-" + to + " in the pattern " + pattern);
+                            }
+                        }
+                        for (int x = from; x <= to; x++) {
+                            set.append((char) x);
+                        }
+                    }
+                }
+                if (!closed) {
+                    throw new IllegalArgumentException("Unclosed [ in the pattern " + pattern);
+                }
+                if (0 == set.length()) {
+                    throw new IllegalArgumentException("Empty [] in the pattern " + pattern);
+                }
+                chars[length] = distinct(set.toString().toCharArray());
+            } else {
+                chars[length] = new char[]{c};
+            }
+            length++;
+        }
+        return new TriePattern(Arrays.copyOf(chars, length), Arrays.copyOf(negated, length), Arrays.copyOf(stars, length),
+                minLength, maxLength);
+    }
+
+    /**
+     * Returns a pattern where _ (underscore) is any char and any other char is the char itself,
+     * as in {@link PackedTrie#iteratePatterns(String)}.
+     *
+     * @param pattern pattern
+     * @return compiled pattern
+     */
+    public static TriePattern mask(String pattern) {
+        if (null == pattern) {
+            throw new IllegalArgumentException("pattern should not be null");
+        }
+        char[][] chars = new char[pattern.length()][];
+        for (int i = 0; i < pattern.length(); i++) {
+            if ('_' != pattern.charAt(i)) {
+                chars[i] = new char[]{pattern.charAt(i)};
+            }
+        }
+        return new TriePattern(chars, new boolean[pattern.length()], new boolean[pattern.length()], 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the pattern restricted to the keys from {@code minLength} to {@code maxLength} chars long.
+     *
+     * @param minLength the least key length, inclusive
+     * @param maxLength the most key length, inclusive, Integer.MAX_VALUE for no bound
+     * @return restricted pattern
+     */
+    public TriePattern withLength(int minLength, int maxLength) {
+        if (minLength < 0 || maxLength < minLength) {
+            throw new IllegalArgumentException("Malformed length bounds " + minLength + ", " + maxLength);
+        }
+        return new TriePattern(chars, negated, stars, Math.max(minLength, this.minLength), Math.min(maxLength, this.maxLength));
+    }
+
+    private static char[] distinct(char[] set) {
+        Arrays.sort(set);
+        int length = 0;
+        for (int i = 0; i < set.length; i++) {
+            if (0 == i || set[i] != set[length - 1]) {
+                set[length] = set[i];
+                length++;
+            }
+        }
+        return Arrays.copyOf(set, length);
+    }
+
+    /**
+     * Returns the number of positions in the pattern, which is the length of the keys fitting it, unless
+     * the pattern has * or length bounds.
+     *
+     * @return the pattern length
+     */
+    public int length() {
+        return chars.length;
+    }
+
+    /**
+     * Returns the least length of the keys fitting the pattern.
+     *
+     * @return the least key length
+     */
+    public int getMinLength() {
+        return minLength;
+    }
+
+    /**
+     * Returns the most length of the keys fitting the pattern, Integer.MAX_VALUE if there is no bound.
+     *
+     * @return the most key length
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Returns whether the keys fitting the pattern have one char per position: the pattern has no *
+     * and no length bounds, which would exclude that length.
+     *
+     * @return whether the pattern is fixed length
+     */
+    public boolean isFixed() {
+        return minLength == chars.length && maxLength == chars.length;
+    }
+
+    /**
+     * Returns whether the char {@code c} fits the pattern at the {@code position}.
+     *
+     * @param position position
+     * @param c        char
+     * @return whether the char fits
+     */
+    public boolean matches(int position, char c) {
+        long[] b = bits[position];
+        if (null == b) {
+            return true;
+        }
+        return negated[position] != ((c >> 6) < b.length && 0 != (b[c >> 6] & (1L << c)));
+    }
+
+    /**
+     * Returns whether the {@code key} fits the pattern.
+     *
+     * @param key key
+     * @return whether the key fits
+     */
+    public boolean matches(CharSequence key) {
+        if (isFixed()) {
+            if (key.length() != chars.length) {
+                return false;
+            }
+            for (int i = 0; i < chars.length; i++) {
+                if (!matches(i, key.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long states = start();
+        for (int i = 0; i < key.length() && 0 != states; i++) {
+            states = step(states, key.charAt(i), i + 1);
+        }
+        return accepts(states, key.length());
+    }
+
+    /**
+     * Returns whether the {@code position} is *.
+     */
+    boolean isStar(int position) {
+        return stars[position];
+    }
+
+    /**
+     * Returns the positions where a variable pattern can be before the first char of a key, a bit each.
+     */
+    long start() {
+        return closure(1L);
+    }
+
+    /**
+     * Returns the positions where a variable pattern can be after the char {@code c}, the {@code length}-th
+     * of the key, given the positions where it could be before. Leaves out the positions from where the rest
+     * of the pattern does not fit in the most key length.
+     */
+    long step(long states, char c, int length) {
+        long result = 0;
+        // nothing goes after the last position
+        long s = states & ~(1L << chars.length);
+        while (0 != s) {
+            int i = Long.numberOfTrailingZeros(s);
+            s = s & (s - 1);
+            if (stars[i]) {
+                result = result | (1L << i);
+            } else if (matches(i, c)) {
+                result = result | (1L << (i + 1));
+            }
+        }
+        result = closure(result);
+
+        s = result;
+        while (0 != s) {
+            int i = Long.numberOfTrailingZeros(s);
+            s = s & (s - 1);
+            if (maxLength - length < needs[i]) {
+                result = result & ~(1L << i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the positions after * to the positions, as * fits an empty run too.
+     */
+    private long closure(long states) {
+        long result = states | ((states & starMask) << 1);
+        while (result != states) {
+            states = result;
+            result = states | ((states & starMask) << 1);
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether a key {@code length} chars long, after which a variable pattern is at the {@code states},
+     * fits the pattern.
+     */
+    boolean accepts(long states, int length) {
+        return 0 != (states & (1L << chars.length)) && minLength <= length && length <= maxLength;
+    }
+
+    /**
+     * Returns whether a variable pattern at the {@code states} can take more chars.
+     */
+    boolean continues(long states) {
+        return 0 != (states & ~(1L << chars.length));
+    }
+
+    /**
+     * Returns whether a variable pattern at the {@code states} fits any continuation within the length bounds.
+     */
+    boolean acceptsAll(long states) {
+        return 0 != (states & tailMask);
+    }
+
+    /**
+     * Returns whether the keys that fit a variable pattern at the {@code states} are counted within the pattern
+     * length: no * but the ones at the end is ahead, so a count goes down to where the rest is * and word counts
+     * take over, rather than over the whole subtree.
+     */
+    boolean isCountable(long states) {
+        return 0 == (states & runMask);
+    }
+
+    /**
+     * Returns whether any char fits the {@code position}.
+     */
+    boolean isAny(int position) {
+        return null == chars[position];
+    }
+
+    /**
+     * Returns the chars allowed at the {@code position}, sorted, or null if they are not listed: any char or
+     * all chars except some fit there.
+     */
+    char[] getChars(int position) {
+        return negated[position] ? null : chars[position];
+    }
+
+    /**
+     * Returns where the masked end of the pattern starts: any char fits all the positions from there on.
+     */
+    int getMaskedFrom() {
+        int result = chars.length;
+        while (0 < result && null == chars[result - 1]) {
+            result--;
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the pattern is a mask, see {@link #mask(String)}.
+     */
+    boolean isMask() {
+        if (!isFixed()) {
+            return false;
+        }
+        for (int i = 0; i < chars.length; i++) {
+            if (null != chars[i] && (negated[i] || 1 < chars[i].length || '_' == chars[i][0])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the pattern as a mask, if it is one, or in the syntax of {@link #compile(String)} otherwise.
+     */
+    String toText() {
+        if (isMask()) {
+            char[] result = new char[chars.length];
+            for (int i = 0; i < chars.length; i++) {
+                result[i] = null == chars[i] ? '_' : chars[i][0];
+            }
+            return new String(result);
+        }
+        return toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TriePattern)) {
+            return false;
+        }
+        TriePattern that = (TriePattern) o;
+        return minLength == that.minLength && maxLength == that.maxLength
+                && Arrays.equals(negated, that.negated) && Arrays.equals(stars, that.stars) && Arrays.deepEquals(chars, that.chars);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Arrays.deepHashCode(chars);
+        result = 31 * result + Arrays.hashCode(negated);
+        result = 31 * result + Arrays.hashCode(stars);
+        result = 31 * result + minLength;
+        result = 31 * result + maxLength;
+        return result;
+    }
+
+    /**
+     * Returns the pattern in the syntax of {@link #compile(String)}.
+     *
+     * @return the pattern
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder(chars.length);
+        for (int i = 0; i < chars.length; i++) {
+            char[] set = chars[i];
+            if (stars[i]) {
+                result.append('*');
+            } else if (null == set) {
+                result.append('_');
+            } else if (!negated[i] && 1 == set.length) {
+                if ('_' == set[0] || '*' == set[0] || '[' == set[0] || '{' == set[0] || '\\' == set[0]) {
+                    result.append('\\');
+                }
+                result.append(set[0]);
+            } else {
+                result.append('[');
+                if (negated[i]) {
+                    result.append('^');
+                }
+                int j = 0;
+                while (j < set.length) {
+                    // runs of three and more go as ranges
+                    int k = j;
+                    while (k + 1 < set.length && set[k] + 1 == set[k + 1]) {
+                        k++;
+                    }
+                    appendSetChar(result, set[j]);
+                    if (2 <= k - j) {
+                        result.append('-');
+                        appendSetChar(result, set[k]);
+                        j = k + 1;
+                    } else {
+                        j++;
+                    }
+                }
+                result.append(']');
+            }
+        }
+
+        // bounds, unless they follow from the pattern
+        TriePattern unbounded = new TriePattern(chars, negated, stars, 0, Integer.MAX_VALUE);
+        if (minLength != unbounded.minLength || maxLength != unbounded.maxLength) {
+            result.append('{');
+            if (maxLength < minLength && minLength == unbounded.minLength) {
+                // no length fits, as the most length, below the pattern length, tells
+                result.append(',').append(maxLength);
+            } else if (maxLength <= minLength) {
+                // a single length, or none at all for a pattern without *, which the least length tells as well
+                result.append(minLength);
+            } else {
+                if (0 < minLength) {
+                    result.append(minLength);
+                }
+                result.append(',');
+                if (Integer.MAX_VALUE != maxLength) {
+                    result.append(maxLength);
+                }
+            }
+            result.append('}');
+        }
+        return result.toString();
+    }
+
+    private static void appendSetChar(StringBuilder result, char c) {
+        if (']' == c || '\\' == c || '-' == c || '^' == c) {
+            result.append('\\');
+        }
+        result.append(c);
+    }
+}
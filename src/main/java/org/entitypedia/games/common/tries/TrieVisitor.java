@@ -0,0 +1,50 @@
+package org.entitypedia.games.common.tries;
+
+/**
+ * Visitor of the keys that fit a pattern, see {@link PackedTrie#visitPatterns(String, TrieVisitor)}.
+ * <p>
+ * Keys and prefixes come as a view of the traversal buffer: it is valid only during the call and changes afterwards.
+ * Call {@code toString()} to keep one.
+ *
+ * @author <a href="http://autayeu.com/">Aliaksandr Autayeu</a>
+ */
+public interface TrieVisitor {
+
+    /**
+     * What to do after a visit.
+     */
+    enum Action {
+        /**
+         * Go on.
+         */
+        CONTINUE,
+        /**
+         * Do not go into the subtree of the prefix. Same as {@link #CONTINUE} for keys.
+         */
+        SKIP_SUBTREE,
+        /**
+         * Stop the traversal.
+         */
+        STOP
+    }
+
+    /**
+     * Called before going into the subtree of a prefix that fits the pattern, shorter than the pattern.
+     * Goes into all of them by default.
+     *
+     * @param prefix prefix, a view valid during the call
+     * @return what to do: continue, skip the subtree or stop
+     */
+    default Action enter(CharSequence prefix) {
+        return Action.CONTINUE;
+    }
+
+    /**
+     * Called for each key that fits the pattern, in key order.
+     *
+     * @param key   key, a view valid during the call
+     * @param value value
+     * @return what to do: continue or stop
+     */
+    Action visit(CharSequence key, long value);
+}
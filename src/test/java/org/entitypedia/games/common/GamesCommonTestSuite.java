@@ -3,7 +3,12 @@ package org.entitypedia.games.common;
 import org.entitypedia.games.common.repository.hibernateimpl.filter.TestFilterCriteriaParser;
 import org.entitypedia.games.common.tries.TestBasicTrie;
 import org.entitypedia.games.common.tries.TestBasicTrieNode;
+import org.entitypedia.games.common.tries.TestCompactTrieBuilder;
 import org.entitypedia.games.common.tries.TestPackedTrie;
+import org.entitypedia.games.common.tries.TestPackedTrieWriter;
+import org.entitypedia.games.common.tries.TestPatternCursor;
+import org.entitypedia.games.common.tries.TestTriePattern;
+import org.entitypedia.games.common.tries.TestTrieVisitor;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
@@ -15,7 +20,12 @@ import org.junit.runners.Suite;
         TestFilterCriteriaParser.class,
         TestBasicTrie.class,
         TestBasicTrieNode.class,
-        TestPackedTrie.class
+        TestCompactTrieBuilder.class,
+        TestPackedTrie.class,
+        TestPackedTrieWriter.class,
+        TestPatternCursor.class,
+        TestTrieVisitor.class,
+        TestTriePattern.class
 })
 public class GamesCommonTestSuite {
 }
@@ -0,0 +1,176 @@
+package org.entitypedia.games.common.tries;
+
+import org.entitypedia.games.common.buffer.BufferFacade;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Buffer that counts the reads from another one and the pages they touch, to check how much of a packed trie
+ * a query reads.
+ *
+ * @author <a href="http://autayeu.com/">Aliaksandr Autayeu</a>
+ */
+class CountingBuffer implements BufferFacade {
+
+    private final BufferFacade buffer;
+    private final int pageSize;
+
+    private long reads = 0;
+    private final Set<Long> pages = new HashSet<>();
+
+    CountingBuffer(BufferFacade buffer, int pageSize) {
+        this.buffer = buffer;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Returns the number of reads since the last reset.
+     *
+     * @return the number of reads
+     */
+    long getReads() {
+        return reads;
+    }
+
+    /**
+     * Returns the number of different pages read since the last reset.
+     *
+     * @return the number of pages
+     */
+    int getPages() {
+        return pages.size();
+    }
+
+    /**
+     * Returns the number of different pages read since the last reset, among the pages before the {@code page}.
+     *
+     * @param page page number
+     * @return the number of pages
+     */
+    int getPagesBefore(long page) {
+        int result = 0;
+        for (Long p : pages) {
+            if (p < page) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    void reset() {
+        reads = 0;
+        pages.clear();
+    }
+
+    private void read(long index, int length) {
+        reads++;
+        for (long page = index / pageSize; page <= (index + length - 1) / pageSize; page++) {
+            pages.add(page);
+        }
+    }
+
+    @Override
+    public byte get(long index) {
+        read(index, 1);
+        return buffer.get(index);
+    }
+
+    @Override
+    public void put(long index, byte value) {
+        buffer.put(index, value);
+    }
+
+    @Override
+    public short getShort(long index) {
+        read(index, 2);
+        return buffer.getShort(index);
+    }
+
+    @Override
+    public void putShort(long index, short value) {
+        buffer.putShort(index, value);
+    }
+
+    @Override
+    public int getInt(long index) {
+        read(index, 4);
+        return buffer.getInt(index);
+    }
+
+    @Override
+    public void putInt(long index, int value) {
+        buffer.putInt(index, value);
+    }
+
+    @Override
+    public long getLong(long index) {
+        read(index, 8);
+        return buffer.getLong(index);
+    }
+
+    @Override
+    public void putLong(long index, long value) {
+        buffer.putLong(index, value);
+    }
+
+    @Override
+    public float getFloat(long index) {
+        read(index, 4);
+        return buffer.getFloat(index);
+    }
+
+    @Override
+    public void putFloat(long index, float value) {
+        buffer.putFloat(index, value);
+    }
+
+    @Override
+    public double getDouble(long index) {
+        read(index, 8);
+        return buffer.getDouble(index);
+    }
+
+    @Override
+    public void putDouble(long index, double value) {
+        buffer.putDouble(index, value);
+    }
+
+    @Override
+    public char getChar(long index) {
+        read(index, 2);
+        return buffer.getChar(index);
+    }
+
+    @Override
+    public void putChar(long index, char value) {
+        buffer.putChar(index, value);
+    }
+
+    @Override
+    public byte[] getBytes(long index, int len) {
+        read(index, len);
+        return buffer.getBytes(index, len);
+    }
+
+    @Override
+    public void putBytes(long index, byte[] value) {
+        buffer.putBytes(index, value);
+    }
+
+    @Override
+    public ByteBuffer slice(long index) {
+        return buffer.slice(index);
+    }
+
+    @Override
+    public long capacity() {
+        return buffer.capacity();
+    }
+
+    @Override
+    public long limit() {
+        return buffer.limit();
+    }
+}
@@ -0,0 +1,121 @@
+package org.entitypedia.games.common.tries;
+
+import org.entitypedia.games.common.repository.util.UIDGenerator;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class TestCompactTrieBuilder {
+
+    @Test
+    public void testConstructor() {
+        CompactTrieBuilder t = new CompactTrieBuilder();
+        assertEquals(1, t.size());
+        assertEquals(0, t.wordCount());
+        assertFalse(t.isWord(CompactTrieBuilder.ROOT));
+    }
+
+    @Test
+    public void testAddWord() {
+        CompactTrieBuilder t = new CompactTrieBuilder();
+        int ab = t.addWord("ab", 10);
+        assertEquals(3, t.size());
+        assertEquals(1, t.wordCount());
+        int a = t.getChild(CompactTrieBuilder.ROOT, 'a');
+        assertEquals('a', t.getChar(a));
+        assertFalse(t.isWord(a));
+        assertEquals(ab, t.getChild(a, 'b'));
+        assertEquals('b', t.getChar(ab));
+        assertTrue(t.isWord(ab));
+        assertEquals(10, t.getId(ab));
+        assertEquals(-1, t.getChild(a, 'c'));
+
+        assertEquals(ab, t.addWord("ab"));
+        assertEquals(1, t.wordCount());
+    }
+
+    @Test
+    public void testContains() {
+        CompactTrieBuilder t = new CompactTrieBuilder();
+        t.addWord("ab");
+        t.addWord("abc");
+        t.addWord("bc");
+        assertTrue(t.containsPrefix("a"));
+        assertTrue(t.containsPrefix("abc"));
+        assertFalse(t.containsPrefix("c"));
+        assertFalse(t.containsWord("a"));
+        assertTrue(t.containsWord("ab"));
+        assertTrue(t.containsWord("bc"));
+        assertFalse(t.containsWord("abcd"));
+        assertEquals(-1, t.getNode("bcd"));
+    }
+
+    @Test
+    public void testSortedChildren() throws IOException {
+        CompactTrieBuilder t = new CompactTrieBuilder(1);
+        t.addWord("c", 3);
+        t.addWord("a", 1);
+        t.addWord("b", 2);
+        t.addWord("ba", 4);
+
+        BasicTrie b = new BasicTrie();
+        b.addWord("a").setId(1);
+        b.addWord("b").setId(2);
+        b.addWord("c").setId(3);
+        b.addWord("ba").setId(4);
+
+        assertArrayEquals(pack(b), pack(t));
+    }
+
+    @Test
+    public void testRandom() throws IOException {
+        TreeMap<String, Long> source = new TreeMap<>();
+        Random r = new Random();
+        for (int i = 0; i < 1000; i++) {
+            source.put(UIDGenerator.getUID(r.nextInt(50) + 1), (long) r.nextInt(Integer.MAX_VALUE));
+        }
+
+        BasicTrie b = new BasicTrie();
+        CompactTrieBuilder t = new CompactTrieBuilder(16);
+        // insertion order should not matter
+        for (Map.Entry<String, Long> e : source.descendingMap().entrySet()) {
+            b.addWord(e.getKey()).setId(e.getValue());
+            t.addWord(e.getKey(), e.getValue());
+        }
+        assertEquals(source.size(), t.wordCount());
+
+        byte[] expected = pack(b);
+        assertArrayEquals(expected, pack(t));
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+            PackedTrie.pack(t, out, new PackOptions().setPool(pool));
+            assertArrayEquals(expected, out.toByteArray());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static byte[] pack(BasicTrie t) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        PackedTrie.pack(t, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] pack(CompactTrieBuilder t) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        PackedTrie.pack(t, out);
+        return out.toByteArray();
+    }
+}
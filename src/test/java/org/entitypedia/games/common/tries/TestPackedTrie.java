@@ -9,10 +9,24 @@ import org.junit.runners.JUnit4;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 
@@ -142,6 +156,105 @@ public class TestPackedTrie {
         assertNull(p.get("abcd"));
     }
 
+    @Test
+    public void testGetLong() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        PackedTrie.pack(createSample(), out);
+        PackedTrie p = new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(out.toByteArray())));
+        assertEquals(100, p.getLong("a", -1));
+        assertEquals(200, p.getLong(new StringBuilder("abc"), -1));
+        assertEquals(300, p.getLong("abé", -1));
+        assertEquals(400, p.getLong("bc", -1));
+        assertEquals(-1, p.getLong("c", -1));
+        assertEquals(-1, p.getLong("ab", -1));
+        assertEquals(-2, p.getLong("abcd", -2));
+
+        assertTrue(p.contains("a"));
+        assertTrue(p.contains(new StringBuilder("abé")));
+        assertFalse(p.contains("ab"));
+        assertFalse(p.contains("b"));
+        assertFalse(p.contains("bcd"));
+    }
+
+    @Test
+    public void testGetLongCharArray() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        PackedTrie.pack(createSample(), out);
+        PackedTrie p = new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(out.toByteArray())));
+        char[] buf = "xabcbcx".toCharArray();
+        assertEquals(100, p.getLong(buf, 1, 1, -1));
+        assertEquals(200, p.getLong(buf, 1, 3, -1));
+        assertEquals(400, p.getLong(buf, 4, 2, -1));
+        assertEquals(-1, p.getLong(buf, 1, 2, -1));
+        assertEquals(-1, p.getLong(buf, 0, 3, -1));
+        assertTrue(p.contains(buf, 1, 3));
+        assertTrue(p.contains(buf, 4, 2));
+        assertFalse(p.contains(buf, 4, 3));
+    }
+
+    @Test
+    public void testGetAll() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        PackedTrie.pack(createSample(), out);
+        PackedTrie p = new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(out.toByteArray())));
+        String[] keys = {"a", "ab", "abc", "abcd", "abé", "abé", "b", "bc", "c", "a", "bc"};
+        long[] expected = {100, -1, 200, -1, 300, 300, -1, 400, -1, 100, 400};
+        assertArrayEquals(expected, p.getAll(keys, -1));
+        assertEquals(0, p.getAll(new String[0], -1).length);
+
+        TreeMap<String, Long> source = createDense(new Random(), 2000);
+        BasicTrie t = new BasicTrie();
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            t.addWord(e.getKey()).setId(e.getValue());
+        }
+        p = load(pack(t, new PackOptions()));
+        Random r = new Random();
+        List<String> candidates = new ArrayList<>(source.keySet());
+        for (int i = 0; i < 1000; i++) {
+            char[] word = new char[1 + r.nextInt(12)];
+            for (int j = 0; j < word.length; j++) {
+                word[j] = (char) ('a' + r.nextInt(5));
+            }
+            candidates.add(new String(word));
+        }
+        for (int pass = 0; pass < 2; pass++) {
+            if (0 == pass) {
+                Collections.sort(candidates);
+            } else {
+                Collections.shuffle(candidates, r);
+            }
+            CharSequence[] batch = candidates.toArray(new CharSequence[candidates.size()]);
+            long[] values = p.getAll(batch, -1);
+            for (int i = 0; i < batch.length; i++) {
+                assertEquals(batch[i].toString(), p.getLong(batch[i], -1), values[i]);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetAllIAE() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        PackedTrie.pack(createSample(), out);
+        PackedTrie p = new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(out.toByteArray())));
+        p.getAll(new String[]{"a", ""}, -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetLongIAE() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        PackedTrie.pack(createSample(), out);
+        PackedTrie p = new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(out.toByteArray())));
+        p.getLong("", -1);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testGetLongIOOBE() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        PackedTrie.pack(createSample(), out);
+        PackedTrie p = new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(out.toByteArray())));
+        p.getLong(new char[2], 1, 2, -1);
+    }
+
     @Test
     public void testEmptyPatternIterator() throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
@@ -268,6 +381,90 @@ public class TestPackedTrie {
 
             l = p.get(e.getKey() + "_");
             assertNull(l);
+
+            assertEquals((long) e.getValue(), p.getLong(e.getKey(), -1));
+            assertTrue(p.contains(e.getKey()));
+        }
+    }
+
+    @Test
+    public void testByteOrder() throws IOException {
+        // ids and chars of all encoded lengths, including 10-byte negative ids
+        TreeMap<String, Long> source = new TreeMap<>();
+        Random r = new Random();
+        char[] key = new char[6];
+        while (source.size() < 2000) {
+            for (int i = 0; i < key.length; i++) {
+                key[i] = (char) (r.nextBoolean() ? 'a' + r.nextInt(5) : (1 << r.nextInt(16)) + r.nextInt(3));
+            }
+            long id = r.nextLong() >> (2 + r.nextInt(62));
+            source.put(new String(key), 0 == r.nextInt(20) ? -id : Math.abs(id));
+        }
+
+        BasicTrie t = new BasicTrie();
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            t.addWord(e.getKey()).setId(e.getValue());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+        PackedTrie.pack(t, out);
+        byte[] pack = out.toByteArray();
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(pack.length).order(ByteOrder.LITTLE_ENDIAN);
+        direct.put(pack);
+        direct.clear();
+        ByteBuffer[] buffers = {
+                ByteBuffer.wrap(pack),
+                ByteBuffer.wrap(pack).order(ByteOrder.LITTLE_ENDIAN),
+                direct
+        };
+        for (ByteBuffer b : buffers) {
+            PackedTrie p = new PackedTrie(BufferFacadeFactory.create(b));
+            for (Map.Entry<String, Long> e : source.entrySet()) {
+                assertEquals((long) e.getValue(), p.getLong(e.getKey(), -1));
+            }
+
+            PackedTrie.PatternIterator pi = p.iteratePatterns("______");
+            for (Map.Entry<String, Long> e : source.entrySet()) {
+                assertTrue(pi.hasNext());
+                Map.Entry<String, Long> pe = pi.next();
+                assertEquals(e.getKey(), pe.getKey());
+                assertEquals(e.getValue(), pe.getValue());
+            }
+            assertFalse(pi.hasNext());
+        }
+    }
+
+    @Test
+    public void testPackParallel() throws IOException {
+        TreeMap<String, Long> source = new TreeMap<>();
+        Random r = new Random();
+        for (int i = 0; i < 1000; i++) {
+            source.put(UIDGenerator.getUID(r.nextInt(50) + 1), (long) r.nextInt(Integer.MAX_VALUE));
+        }
+
+        BasicTrie t = new BasicTrie();
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            BasicTrieNode n = t.addWord(e.getKey());
+            n.setId(e.getValue());
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+        PackedTrie.pack(t, out);
+        Map<String, Long> offsets = new TreeMap<>();
+        for (String k : source.keySet()) {
+            offsets.put(k, t.getWord(k).getOffset());
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ByteArrayOutputStream parallelOut = new ByteArrayOutputStream(1024 * 1024);
+            PackedTrie.pack(t, parallelOut, new PackOptions().setPool(pool));
+            assertArrayEquals(out.toByteArray(), parallelOut.toByteArray());
+            for (String k : source.keySet()) {
+                assertEquals(offsets.get(k), (Long) t.getWord(k).getOffset());
+            }
+        } finally {
+            pool.shutdown();
         }
     }
 
@@ -317,4 +514,1263 @@ public class TestPackedTrie {
         assertEquals(pageNo, (cnt / pageSize) + 1);
         assertEquals(count, cnt);
     }
+
+    private static TreeMap<String, Long> createDense(Random r, int size) {
+        // few letters, so that patterns have plenty of matches
+        TreeMap<String, Long> source = new TreeMap<>();
+        char[] key = new char[6];
+        while (source.size() < size) {
+            int length = 1 + r.nextInt(key.length);
+            for (int i = 0; i < length; i++) {
+                key[i] = (char) ('a' + r.nextInt(4));
+            }
+            source.put(new String(key, 0, length), (long) r.nextInt(Integer.MAX_VALUE));
+        }
+        return source;
+    }
+
+    private static boolean fits(String key, String pattern) {
+        if (key.length() != pattern.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if ('_' != pattern.charAt(i) && key.charAt(i) != pattern.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void testWordCounts() throws IOException {
+        TreeMap<String, Long> source = createDense(new Random(), 1000);
+        BasicTrie t = new BasicTrie();
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            t.addWord(e.getKey()).setId(e.getValue());
+        }
+
+        PackOptions options = new PackOptions().setWordCounts(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+        PackedTrie.pack(t, out, options);
+        byte[] pack = out.toByteArray();
+        assertEquals((byte) 0xFE, pack[0]);
+
+        // the same from all the packers
+        out = new ByteArrayOutputStream(1024 * 1024);
+        PackedTrie.pack(source.entrySet().iterator(), out, options);
+        assertArrayEquals(pack, out.toByteArray());
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            out = new ByteArrayOutputStream(1024 * 1024);
+            PackedTrie.pack(t, out, new PackOptions().setWordCounts(true).setPool(pool));
+            assertArrayEquals(pack, out.toByteArray());
+        } finally {
+            pool.shutdown();
+        }
+
+        PackedTrie legacy = load(pack(t, new PackOptions()));
+        PackedTrie p = new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(pack)));
+        String[] patterns = {"_", "a", "e", "__", "_b", "a_", "___", "b_c", "____", "_a__", "__d_", "_____", "a_b_c", "______", "c_____", "_____d", "_______"};
+        for (String pattern : patterns) {
+            long expected = 0;
+            for (String k : source.keySet()) {
+                if (fits(k, pattern)) {
+                    expected++;
+                }
+            }
+            assertEquals(pattern, expected, p.countPatterns(pattern));
+            assertEquals(pattern, expected, legacy.countPatterns(pattern));
+        }
+        assertEquals(0, p.countPatterns(""));
+
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            assertEquals((long) e.getValue(), p.getLong(e.getKey(), -1));
+        }
+    }
+
+    @Test
+    public void testPagedIteratorWordCounts() throws IOException {
+        TreeMap<String, Long> source = createDense(new Random(), 500);
+        BasicTrie t = new BasicTrie();
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            t.addWord(e.getKey()).setId(e.getValue());
+        }
+        PackedTrie p = load(pack(t, new PackOptions().setWordCounts(true)));
+
+        String[] patterns = {"_", "____", "a___", "_b__", "___c", "_____", "b__a_c", "______"};
+        for (String pattern : patterns) {
+            List<String> expected = new ArrayList<>();
+            for (String k : source.keySet()) {
+                if (fits(k, pattern)) {
+                    expected.add(k);
+                }
+            }
+
+            for (int pageSize = 1; pageSize < 12; pageSize = pageSize + 5) {
+                for (int pageNo = 0; pageNo * pageSize <= expected.size() + pageSize; pageNo++) {
+                    PackedTrie.PatternIterator pi = p.iteratePatterns(pattern, pageNo, pageSize);
+                    int from = Math.min(pageNo * pageSize, expected.size());
+                    for (String k : expected.subList(from, Math.min(from + pageSize, expected.size()))) {
+                        assertTrue(pi.hasNext());
+                        Map.Entry<String, Long> e = pi.next();
+                        assertEquals(k, e.getKey());
+                        assertEquals(source.get(k), e.getValue());
+                    }
+                    assertFalse(pi.hasNext());
+                    assertEquals(Math.min((pageNo + 1) * pageSize, expected.size()), pi.count());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCursor() throws IOException {
+        TreeMap<String, Long> source = createDense(new Random(), 500);
+        BasicTrie t = new BasicTrie();
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            t.addWord(e.getKey()).setId(e.getValue());
+        }
+        byte[] packed = pack(t, new PackOptions());
+        byte[] counts = pack(t, new PackOptions().setWordCounts(true));
+        PackedTrie[] tries = {
+                load(packed),
+                load(counts)
+        };
+
+        String[] patterns = {"_", "____", "a___", "_b__", "___c", "b__a_c", "______", "z_"};
+        for (PackedTrie p : tries) {
+            for (String pattern : patterns) {
+                List<String> expected = new ArrayList<>();
+                for (String k : source.keySet()) {
+                    if (fits(k, pattern)) {
+                        expected.add(k);
+                    }
+                }
+
+                // page by page through tokens
+                List<String> actual = new ArrayList<>();
+                PatternCursor cursor = new PatternCursor(pattern, null, 0);
+                while (true) {
+                    PackedTrie.PatternIterator pi = p.iteratePatterns(PatternCursor.fromToken(cursor.toToken()), 7);
+                    int size = 0;
+                    while (pi.hasNext()) {
+                        Map.Entry<String, Long> e = pi.next();
+                        assertEquals(source.get(e.getKey()), e.getValue());
+                        actual.add(e.getKey());
+                        size++;
+                    }
+                    cursor = pi.cursor();
+                    assertEquals(actual.size(), cursor.getCount());
+                    if (0 == size) {
+                        break;
+                    }
+                }
+                assertEquals(expected, actual);
+
+                // cursor of a paged iterator, before and after reading ahead
+                PackedTrie.LongIterator li = p.iterateValues(pattern, 1, 3);
+                assertEquals(Math.min(3, expected.size()), li.cursor().getCount());
+                if (4 < expected.size()) {
+                    li.next();
+                    assertTrue(li.hasNext());
+                    cursor = li.cursor();
+                    assertEquals(expected.get(3), cursor.getKey());
+                    assertEquals(4, cursor.getCount());
+                    li = p.iterateValues(cursor, 0);
+                    for (String k : expected.subList(4, expected.size())) {
+                        assertEquals(source.get(k), li.next());
+                    }
+                    assertFalse(li.hasNext());
+                }
+            }
+
+            // resume after a key which is not there
+            List<String> expected = new ArrayList<>();
+            for (String k : source.keySet()) {
+                if (4 == k.length() && 0 < k.compareTo("bbbe")) {
+                    expected.add(k);
+                }
+            }
+            List<String> actual = new ArrayList<>();
+            PackedTrie.PatternIterator pi = p.iteratePatterns(new PatternCursor("____", "bbbe", 10), 0);
+            while (pi.hasNext()) {
+                actual.add(pi.next().getKey());
+            }
+            assertEquals(expected, actual);
+            assertEquals(10 + expected.size(), pi.count());
+        }
+    }
+
+    @Test
+    public void testStream() throws IOException {
+        TreeMap<String, Long> source = createDense(new Random(), 2000);
+        BasicTrie t = new BasicTrie();
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            t.addWord(e.getKey()).setId(e.getValue());
+        }
+        byte[] packed = pack(t, new PackOptions());
+        byte[] counts = pack(t, new PackOptions().setWordCounts(true));
+        PackedTrie[] tries = {
+                new PackedTrie(BufferFacadeFactory.createThreadsafe(ByteBuffer.wrap(packed))),
+                new PackedTrie(BufferFacadeFactory.createThreadsafe(ByteBuffer.wrap(counts)))
+        };
+
+        String[] patterns = {"_", "a", "____", "a_____", "_b__", "___c", "b__a_c", "______", "z_"};
+        for (PackedTrie p : tries) {
+            for (String pattern : patterns) {
+                List<String> expected = new ArrayList<>();
+                long sum = 0;
+                for (Map.Entry<String, Long> e : source.entrySet()) {
+                    if (fits(e.getKey(), pattern)) {
+                        expected.add(e.getKey());
+                        sum = sum + e.getValue();
+                    }
+                }
+
+                List<String> keys = new ArrayList<>();
+                for (Map.Entry<String, Long> e : p.streamPatterns(pattern).collect(Collectors.<Map.Entry<String, Long>>toList())) {
+                    assertEquals(source.get(e.getKey()), e.getValue());
+                    keys.add(e.getKey());
+                }
+                assertEquals(pattern, expected, keys);
+
+                List<String> parallelKeys = new ArrayList<>();
+                for (Map.Entry<String, Long> e : p.streamPatterns(pattern).parallel().collect(Collectors.<Map.Entry<String, Long>>toList())) {
+                    parallelKeys.add(e.getKey());
+                }
+                assertEquals(pattern, expected, parallelKeys);
+
+                assertEquals(pattern, expected.size(), p.streamPatterns(pattern).parallel().count());
+                assertEquals(pattern, sum, p.streamValues(pattern).parallel().sum());
+                assertEquals(pattern, sum, p.streamValues(pattern).sum());
+            }
+        }
+    }
+
+    @Test
+    public void testSpliterator() throws IOException {
+        TreeMap<String, Long> source = createDense(new Random(), 1000);
+        BasicTrie t = new BasicTrie();
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            t.addWord(e.getKey()).setId(e.getValue());
+        }
+        PackedTrie p = load(pack(t, new PackOptions().setWordCounts(true)));
+
+        long expected = 0;
+        for (String k : source.keySet()) {
+            if (fits(k, "a_____")) {
+                expected++;
+            }
+        }
+
+        // a single root subtree splits into its children
+        Spliterator<Map.Entry<String, Long>> right = p.streamPatterns("a_____").spliterator();
+        assertTrue(right.hasCharacteristics(Spliterator.SIZED));
+        assertEquals(expected, right.getExactSizeIfKnown());
+        Spliterator<Map.Entry<String, Long>> left = right.trySplit();
+        assertNotNull(left);
+        assertEquals(expected, left.estimateSize() + right.estimateSize());
+
+        // in the middle of a subtree
+        final List<String> keys = new ArrayList<>();
+        Consumer<Map.Entry<String, Long>> add = new Consumer<Map.Entry<String, Long>>() {
+            @Override
+            public void accept(Map.Entry<String, Long> e) {
+                keys.add(e.getKey());
+            }
+        };
+        assertTrue(left.tryAdvance(add));
+        Spliterator<Map.Entry<String, Long>> leftLeft = left.trySplit();
+        if (null != leftLeft) {
+            assertEquals(expected - 1, leftLeft.estimateSize() + left.estimateSize() + right.estimateSize());
+            leftLeft.forEachRemaining(add);
+        }
+        left.forEachRemaining(add);
+        right.forEachRemaining(add);
+        assertEquals(expected, keys.size());
+        for (int i = 1; i < keys.size(); i++) {
+            assertTrue(keys.get(i - 1).compareTo(keys.get(i)) < 0);
+        }
+        assertEquals(0, right.estimateSize());
+    }
+
+    @Test
+    public void testNextLong() throws IOException {
+        TreeMap<String, Long> source = createDense(new Random(), 1000);
+        BasicTrie t = new BasicTrie();
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            t.addWord(e.getKey()).setId(e.getValue());
+        }
+        PackedTrie p = load(pack(t, new PackOptions()));
+
+        for (String pattern : new String[]{"_", "___", "_a_", "______"}) {
+            PackedTrie.LongIterator li = p.iterateValues(pattern);
+            PackedTrie.PatternIterator pi = p.iteratePatterns(pattern);
+            while (pi.hasNext()) {
+                Map.Entry<String, Long> e = pi.next();
+                assertTrue(li.hasNext());
+                assertEquals((long) e.getValue(), li.nextLong());
+                assertEquals(e.getKey(), li.cursor().getKey());
+            }
+            assertFalse(li.hasNext());
+            try {
+                li.nextLong();
+                fail();
+            } catch (NoSuchElementException e) {
+                // expected
+            }
+        }
+
+        final long[] sum = new long[1];
+        p.iterateValues("____").forEachRemaining(new LongConsumer() {
+            @Override
+            public void accept(long value) {
+                sum[0] = sum[0] + value;
+            }
+        });
+        long expected = 0;
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            if (4 == e.getKey().length()) {
+                expected = expected + e.getValue();
+            }
+        }
+        assertEquals(expected, sum[0]);
+    }
+
+    @Test
+    public void testTriePattern() throws IOException {
+        // all letters, so that indexes are large enough to be searched as well as scanned
+        TreeMap<String, Long> source = new TreeMap<>();
+        Random r = new Random();
+        char[] key = new char[5];
+        while (source.size() < 5000) {
+            int length = 1 + r.nextInt(key.length);
+            for (int i = 0; i < length; i++) {
+                key[i] = (char) ('a' + r.nextInt(26));
+            }
+            source.put(new String(key, 0, length), (long) r.nextInt(Integer.MAX_VALUE));
+        }
+        BasicTrie t = new BasicTrie();
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            t.addWord(e.getKey()).setId(e.getValue());
+        }
+        byte[] packed = pack(t, new PackOptions());
+        byte[] counts = pack(t, new PackOptions().setWordCounts(true));
+        PackedTrie[] tries = {
+                load(packed),
+                load(counts)
+        };
+
+        String[] patterns = {"[aeiou]_[^st]__", "[ab]_", "[a-m][^a-y]_", "_[^e]", "[xyz][xyz][xyz]", "a[bcd]_[e]", "[^a-z]__", "____"};
+        for (PackedTrie p : tries) {
+            for (String text : patterns) {
+                TriePattern pattern = TriePattern.compile(text);
+                List<String> expected = new ArrayList<>();
+                for (String k : source.keySet()) {
+                    if (pattern.matches(k)) {
+                        expected.add(k);
+                    }
+                }
+
+                List<String> actual = new ArrayList<>();
+                PackedTrie.PatternIterator pi = p.iteratePatterns(pattern);
+                while (pi.hasNext()) {
+                    Map.Entry<String, Long> e = pi.next();
+                    assertEquals(source.get(e.getKey()), e.getValue());
+                    actual.add(e.getKey());
+                }
+                assertEquals(text, expected, actual);
+                assertEquals(expected.size(), p.countPatterns(pattern));
+                assertEquals(expected.size(), p.streamValues(pattern).parallel().count());
+
+                final List<String> visited = new ArrayList<>();
+                p.visitPatterns(pattern, new TrieVisitor() {
+                    @Override
+                    public Action visit(CharSequence key, long value) {
+                        visited.add(key.toString());
+                        return Action.CONTINUE;
+                    }
+                });
+                assertEquals(expected, visited);
+
+                // pages and cursors
+                if (10 < expected.size()) {
+                    pi = p.iteratePatterns(pattern, 1, 4);
+                    assertEquals(expected.get(4), pi.next().getKey());
+                    PatternCursor cursor = PatternCursor.fromToken(pi.cursor().toToken());
+                    assertEquals(pattern, cursor.getTriePattern());
+                    pi = p.iteratePatterns(cursor, 0);
+                    actual.clear();
+                    while (pi.hasNext()) {
+                        actual.add(pi.next().getKey());
+                    }
+                    assertEquals(expected.subList(5, expected.size()), actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testVariablePattern() throws IOException {
+        TreeMap<String, Long> source = createDense(new Random(), 2000);
+        BasicTrie t = new BasicTrie();
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            t.addWord(e.getKey()).setId(e.getValue());
+        }
+        byte[] packed = pack(t, new PackOptions());
+        byte[] counts = pack(t, new PackOptions().setWordCounts(true));
+        PackedTrie[] tries = {
+                load(packed),
+                load(counts),
+                new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(counts)), 1024)
+        };
+
+        String[] patterns = {"*", "a*", "a*d", "*b", "b*c*a", "*{2,3}", "ab*{4,5}", "[ab]_*[^c]", "a**b", "__{3}", "____{2,3}", "c*{7,}", "abc*"};
+        for (PackedTrie p : tries) {
+            for (String text : patterns) {
+                TriePattern pattern = TriePattern.compile(text);
+                List<String> expected = new ArrayList<>();
+                for (String k : source.keySet()) {
+                    if (pattern.matches(k)) {
+                        expected.add(k);
+                    }
+                }
+
+                List<String> actual = new ArrayList<>();
+                PackedTrie.PatternIterator pi = p.iteratePatterns(pattern);
+                while (pi.hasNext()) {
+                    Map.Entry<String, Long> e = pi.next();
+                    assertEquals(source.get(e.getKey()), e.getValue());
+                    actual.add(e.getKey());
+                }
+                assertEquals(text, expected, actual);
+                assertEquals(text, expected.size(), p.countPatterns(pattern));
+
+                List<String> streamed = new ArrayList<>();
+                for (Map.Entry<String, Long> e : p.streamPatterns(pattern).parallel().collect(java.util.stream.Collectors.<Map.Entry<String, Long>>toList())) {
+                    streamed.add(e.getKey());
+                }
+                assertEquals(text, expected, streamed);
+
+                final List<String> visited = new ArrayList<>();
+                p.visitPatterns(pattern, new TrieVisitor() {
+                    @Override
+                    public Action visit(CharSequence key, long value) {
+                        visited.add(key.toString());
+                        return Action.CONTINUE;
+                    }
+                });
+                assertEquals(text, expected, visited);
+
+                // pages and cursors
+                if (10 < expected.size()) {
+                    pi = p.iteratePatterns(pattern, 2, 3);
+                    assertEquals(expected.get(6), pi.next().getKey());
+                    PatternCursor cursor = PatternCursor.fromToken(pi.cursor().toToken());
+                    assertEquals(pattern, cursor.getTriePattern());
+                    assertEquals(7, cursor.getCount());
+                    pi = p.iteratePatterns(cursor, 0);
+                    actual.clear();
+                    while (pi.hasNext()) {
+                        actual.add(pi.next().getKey());
+                    }
+                    assertEquals(text, expected.subList(7, expected.size()), actual);
+                    assertEquals(expected.size(), pi.count());
+                }
+
+                // every page, by number and by cursor
+                PatternCursor cursor = new PatternCursor(pattern, null, 0);
+                for (int page = 0; page * 7 <= expected.size(); page++) {
+                    List<String> expectedPage = expected.subList(page * 7, Math.min(expected.size(), (page + 1) * 7));
+                    assertEquals(text, expectedPage, collect(p.iteratePatterns(pattern, page, 7)));
+                    pi = p.iteratePatterns(PatternCursor.fromToken(cursor.toToken()), 7);
+                    assertEquals(text, expectedPage, collect(pi));
+                    cursor = pi.cursor();
+                    assertEquals(text, Math.min(expected.size(), (page + 1) * 7), cursor.getCount());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testVariablePatternResume() throws IOException {
+        TreeMap<String, Long> source = createDense(new Random(), 3000);
+        BasicTrie t = new BasicTrie();
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            t.addWord(e.getKey()).setId(e.getValue());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+        PackedTrie.pack(t, out, new PackOptions().setWordCounts(true));
+        CountingBuffer buffer = new CountingBuffer(BufferFacadeFactory.create(ByteBuffer.wrap(out.toByteArray())), 4096);
+        PackedTrie p = new PackedTrie(buffer);
+
+        String[] patterns = {"*", "*{3,5}", "[ab]*", "ab*{4,}", "*d"};
+        for (int i = 0; i < patterns.length; i++) {
+            String text = patterns[i];
+            TriePattern pattern = TriePattern.compile(text);
+            buffer.reset();
+            List<String> all = collect(p.iteratePatterns(pattern));
+            long allReads = buffer.getReads();
+            int last = all.size() - 3;
+
+            // right after a key near the end, reading a fraction of what going over the keys before does
+            buffer.reset();
+            List<String> rest = collect(p.iteratePatterns(new PatternCursor(pattern, all.get(last - 1), last), 0));
+            assertEquals(text, all.subList(last, all.size()), rest);
+            assertTrue(text + ": " + buffer.getReads() + " of " + allReads, buffer.getReads() * 4 < allReads);
+
+            // the last page, skipping subtrees by their word counts, but for *d, which every key of a subtree
+            // would have to be checked against to count it, so its keys are skipped one by one
+            buffer.reset();
+            assertEquals(text, all.subList(last, all.size()), collect(p.iteratePatterns(pattern, 1, last)));
+            if (i < patterns.length - 1) {
+                assertTrue(text + ": " + buffer.getReads() + " of " + allReads, buffer.getReads() * 4 < allReads);
+            } else {
+                assertTrue(text + ": " + buffer.getReads() + " of " + allReads, buffer.getReads() <= allReads);
+            }
+        }
+    }
+
+    @Test
+    public void testCountLetters() throws IOException {
+        TreeMap<String, Long> source = createDense(new Random(), 1000);
+        source.put("\u0101bc", 1L);
+        BasicTrie t = new BasicTrie();
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            t.addWord(e.getKey()).setId(e.getValue());
+        }
+        PackedTrie p = load(pack(t, new PackOptions()));
+
+        for (String text : new String[]{"_", "___", "_a__", "b_c_d", "[^a]_[ab]", "______", "e__"}) {
+            TriePattern pattern = TriePattern.compile(text);
+            int[][] expected = new int[pattern.length()][Character.MAX_VALUE + 1];
+            int keys = 0;
+            for (String k : source.keySet()) {
+                if (pattern.matches(k)) {
+                    keys++;
+                    for (int i = 0; i < k.length(); i++) {
+                        expected[i][k.charAt(i)]++;
+                    }
+                }
+            }
+
+            LetterHistogram h = p.countLetters(pattern);
+            assertEquals(pattern.length(), h.length());
+            assertEquals(keys, h.getKeyCount());
+            for (int i = 0; i < pattern.length(); i++) {
+                int letters = 0;
+                for (int c = 0; c < expected[i].length; c++) {
+                    assertEquals(expected[i][c], h.getCount(i, (char) c));
+                    if (0 < expected[i][c]) {
+                        assertEquals((char) c, h.getLetter(i, letters));
+                        assertEquals(expected[i][c], h.getLetterCount(i, letters));
+                        letters++;
+                    }
+                }
+                assertEquals(letters, h.size(i));
+                assertEquals(letters, h.getLetters(i).length);
+            }
+        }
+        assertEquals(p.countLetters("_a__").toString(), p.countLetters(TriePattern.mask("_a__")).toString());
+
+        try {
+            p.countLetters(TriePattern.compile("a*"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testWordDepths() throws IOException {
+        TreeMap<String, Long> source = createDense(new Random(), 2000);
+        source.put("abcdabcdab", 1L);
+        source.put("bbbbbbb", 2L);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertSameAsPlain(source, new String[]{"abcdabcda", "bbbbbbbb", "e"},
+                    new String[]{"_", "__", "___", "a__", "_b_c", "______", "_______", "b______", "__________",
+                            "[ab]_[^c]__", "*", "a*", "*{6,}", "*{2,3}", "b*{7}", "a*b{9,10}", "[ab]_*[^c]"},
+                    new PackOptions().setWordDepths(true),
+                    new PackOptions().setWordDepths(true).setWordCounts(true),
+                    new PackOptions().setWordDepths(true).setWordCounts(true).setPool(pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testFindPatterns() throws IOException {
+        TreeMap<String, Long> source = createDense(new Random(), 2000);
+        BasicTrie t = createTrie(source);
+        PackedTrie[] tries = {
+                load(pack(t, new PackOptions())),
+                load(pack(t, new PackOptions().setWordDepths(true)))
+        };
+
+        String[] masks = {"___", "a__", "_b_", "___", "____", "a_c_", "", "_____", "______", "e____"};
+        TriePattern[] patterns = new TriePattern[masks.length + 5];
+        for (int i = 0; i < masks.length; i++) {
+            patterns[i] = TriePattern.mask(masks[i]);
+        }
+        patterns[masks.length] = TriePattern.compile("[ab]_[^c]");
+        patterns[masks.length + 1] = TriePattern.compile("a*");
+        patterns[masks.length + 2] = TriePattern.compile("*b{2,4}");
+        patterns[masks.length + 3] = TriePattern.compile("*");
+        patterns[masks.length + 4] = TriePattern.compile("_a*d");
+
+        for (PackedTrie p : tries) {
+            List<List<Map.Entry<String, Long>>> found = p.findPatterns(patterns);
+            assertEquals(patterns.length, found.size());
+            for (int i = 0; i < patterns.length; i++) {
+                List<String> expected = collect(p.iteratePatterns(patterns[i]));
+                List<String> actual = new ArrayList<>();
+                for (Map.Entry<String, Long> e : found.get(i)) {
+                    assertEquals(source.get(e.getKey()), e.getValue());
+                    actual.add(e.getKey());
+                }
+                assertEquals(patterns[i].toString(), expected, actual);
+            }
+
+            found = p.findPatterns(masks);
+            for (int i = 0; i < masks.length; i++) {
+                assertEquals(masks[i], collect(p.iteratePatterns(masks[i])).size(), found.get(i).size());
+            }
+            assertTrue(p.findPatterns(new TriePattern[0]).isEmpty());
+        }
+
+        try {
+            tries[0].findPatterns("a_", null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testChildTables() throws IOException {
+        TreeMap<String, Long> source = createDense(new Random(), 3000);
+        // children spread too far for a table
+        source.put("a\u4e00", 1L);
+        source.put("b\u00e9a", 2L);
+        source.put("b\u00e8a", 3L);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertSameAsPlain(source, new String[]{"a\u4e01", "b\u00e9", "zz", "abcabcabcabc", "e", "\u00e9"},
+                    new String[]{"_", "__", "a__", "_b_c", "______", "b_a", "[ab]_[^c]__", "a*", "*{6,}", "_a*d"},
+                    new PackOptions().setChildTables(1),
+                    new PackOptions().setChildTables(4).setWordCounts(true).setWordDepths(true),
+                    new PackOptions().setChildTables(2).setWordCounts(true).setPool(pool),
+                    new PackOptions().setChildTables(3).setWordDepths(true));
+        } finally {
+            pool.shutdown();
+        }
+
+        // a table where there are enough children close enough together, the lowest bit of the index size
+        BasicTrie t = createTrie(source);
+        byte[] packed = pack(t, new PackOptions().setChildTables(4));
+        BasicTrieNode c = t.getRoot().getChild('c');
+        assertEquals(4, c.getChildren().size());
+        assertEquals(1, readVarLenLongs01(packed, c.getOffset(), 2)[1] & 1);
+        assertEquals(0, readVarLenLongs01(packed, t.getRoot().getChild('a').getOffset(), 2)[1] & 1);
+        assertEquals(0, readVarLenLongs01(packed, t.getRoot().getChild('b').getOffset(), 2)[1] & 1);
+        packed = pack(t, new PackOptions().setChildTables(5));
+        assertEquals(0, readVarLenLongs01(packed, c.getOffset(), 2)[1] & 1);
+
+        try {
+            new PackOptions().setChildTables(-1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPageClustering() throws IOException {
+        TreeMap<String, Long> source = createDense(new Random(), 3000);
+        BasicTrie t = createTrie(source);
+        CompactTrieBuilder c = new CompactTrieBuilder(16);
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            c.addWord(e.getKey(), e.getValue());
+        }
+        PackOptions[] options = {
+                new PackOptions().setPageClustering(256),
+                new PackOptions().setPageClustering(4096).setWordCounts(true).setWordDepths(true),
+                new PackOptions().setPageClustering(64).setChildTables(4).setWordCounts(true)};
+        List<byte[]> packed = assertSameAsPlain(source, new String[]{"e", "abcdabc"},
+                new String[]{"_", "___", "a__", "_b_c", "______", "a*", "*{6,}", "_a*d"}, options);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int i = 0; i < options.length; i++) {
+                assertArrayEquals(packed.get(i), pack(t, options[i]));
+                Map<String, Long> offsets = new TreeMap<>();
+                for (String k : source.keySet()) {
+                    long offset = t.getWord(k).getOffset();
+                    offsets.put(k, offset);
+                    // the node value is there
+                    assertEquals(k, (long) source.get(k), readVarLenLongs01(packed.get(i), offset, 1)[0] >> 2);
+                }
+
+                // the same layout whichever way it is packed
+                assertArrayEquals(packed.get(i), pack(t, options[i].setPool(pool)));
+                for (String k : source.keySet()) {
+                    assertEquals(offsets.get(k), (Long) t.getWord(k).getOffset());
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+                PackedTrie.pack(c, out, options[i].setPool(null));
+                assertArrayEquals(packed.get(i), out.toByteArray());
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        // the top nodes are nearer to the root
+        pack(t, new PackOptions().setPageClustering(4096));
+        long root = t.getRoot().getOffset();
+        for (BasicTrieNode child : t.getRoot().getChildren()) {
+            assertTrue(root - child.getOffset() < 4096);
+        }
+
+        try {
+            new PackOptions().setPageClustering(-1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPageClusteringPages() throws IOException {
+        TreeMap<String, Long> source = new TreeMap<>();
+        Random r = new Random();
+        for (int i = 0; i < 20000; i++) {
+            source.put(UIDGenerator.getUID(r.nextInt(12) + 1), (long) i);
+        }
+        byte[] plain = pack(source, new PackOptions());
+        for (int pageSize : new int[]{64, 256, 4096}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+            PackedTrieWriter w = new PackedTrieWriter(out, new PackOptions().setPageClustering(pageSize));
+            for (Map.Entry<String, Long> e : source.entrySet()) {
+                w.add(e.getKey(), e.getValue());
+            }
+            w.finish();
+            byte[] clustered = out.toByteArray();
+            // the top levels put off before the root, which stay in memory once read
+            long top = clustered.length;
+            for (long offset : w.getDeferredOffsets()) {
+                top = Math.min(top, offset);
+            }
+
+            // below the top, a lookup reads one page, and the next one at most, as the words read run over
+            long[] pages = countPages(clustered, pageSize, top / pageSize, source.keySet());
+            assertTrue(pageSize + ": " + pages[1], pages[1] <= 2);
+            // and much fewer pages than in post-order below the same number of bytes at the top
+            long[] plainPages = countPages(plain, pageSize, (plain.length - clustered.length + top) / pageSize, source.keySet());
+            assertTrue(pageSize + ": " + pages[0] + " " + plainPages[0], 4 * pages[0] < 3 * plainPages[0]);
+        }
+    }
+
+    /**
+     * Returns the pages below the {@code top} page the lookups of the {@code keys} read, in total and at most
+     * in one lookup.
+     */
+    private static long[] countPages(byte[] packed, int pageSize, long top, Collection<String> keys) throws IOException {
+        CountingBuffer buffer = new CountingBuffer(BufferFacadeFactory.create(ByteBuffer.wrap(packed)), pageSize);
+        PackedTrie p = new PackedTrie(buffer);
+        long[] result = new long[2];
+        for (String k : keys) {
+            buffer.reset();
+            assertNotNull(k, p.get(k));
+            result[0] = result[0] + buffer.getPagesBefore(top);
+            result[1] = Math.max(result[1], buffer.getPagesBefore(top));
+        }
+        return result;
+    }
+
+    /**
+     * Reads {@code count} variable length longs in a row, MSB 01 bytes, as node values and index sizes are.
+     */
+    private static long[] readVarLenLongs01(byte[] packed, long offset, int count) {
+        long[] result = new long[count];
+        for (int i = 0; i < count; i++) {
+            int shift = 0;
+            int b;
+            do {
+                b = packed[(int) offset++] & 0xFF;
+                result[i] = result[i] | ((long) (b & 0x7F) << shift);
+                shift = shift + 7;
+            } while (0 == (b & 0x80));
+        }
+        return result;
+    }
+
+    @Test
+    public void testCachedLevels() throws IOException {
+        TreeMap<String, Long> source = createDense(new Random(), 3000);
+        source.put("ab", 1L);
+        BasicTrie t = createTrie(source);
+        byte[] packed = pack(t, new PackOptions());
+        byte[] counts = pack(t, new PackOptions().setWordCounts(true).setChildTables(4));
+        PackedTrie plain = load(packed);
+
+        PackedTrie[] tries = {
+                new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(packed)), 0),
+                new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(packed)), 1024),
+                new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(packed)), 1024 * 1024),
+                new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(counts)), 16 * 1024)
+        };
+
+        List<String> keys = new ArrayList<>(source.keySet());
+        Collections.addAll(keys, "a", "abcabcabcabcabc", "z", "az", "eeeeee", "\u00e9");
+        String[] patterns = {"_", "a_", "ab", "ab__", "abc___", "a_c__", "ee[ab]__", "abcd_", "zz__",
+                "a*", "ab*", "abc*{4,6}", "ab*c", "abcdabcdabcd*"};
+        for (PackedTrie p : tries) {
+            for (String k : keys) {
+                assertEquals(k, plain.get(k), p.get(k));
+                assertEquals(k, plain.contains(k), p.contains(k.toCharArray(), 0, k.length()));
+            }
+            for (String text : patterns) {
+                TriePattern pattern = TriePattern.compile(text);
+                List<String> expected = collect(plain.iteratePatterns(pattern));
+                assertEquals(text, expected, collect(p.iteratePatterns(pattern)));
+                if (5 < expected.size()) {
+                    assertEquals(text, expected.subList(2, 4), collect(p.iteratePatterns(pattern, 1, 2)));
+                    PackedTrie.PatternIterator i = p.iteratePatterns(pattern, 0, 3);
+                    collect(i);
+                    assertEquals(text, expected.subList(3, expected.size()), collect(p.iteratePatterns(i.cursor(), 0)));
+                }
+            }
+        }
+
+        try {
+            new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(packed)), -1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSuffixSharing() throws IOException {
+        // ids of their own, which node values do not keep, so the endings are still the same
+        TreeMap<String, Long> source = createDense(new Random(), 3000);
+        PackOptions[] options = {
+                new PackOptions().setSuffixSharing(true).setWordCounts(true),
+                new PackOptions().setSuffixSharing(true).setWordCounts(true).setWordDepths(true).setChildTables(4)
+                        .setRootTable(true),
+                new PackOptions().setSuffixSharing(true).setWordCounts(true).setPageClustering(256),
+                new PackOptions().setSuffixSharing(true).setWordCounts(true).setPathCompression(true)
+                        .setAlphabet("abcd").setIdIndex(true)};
+        ForkJoinPool pool = new ForkJoinPool(4);
+        List<byte[]> packed;
+        try {
+            options[2].setPool(pool);
+            packed = assertSameAsPlain(source, new String[]{"abcabcabcabcabc", "e"},
+                    new String[]{"_", "___", "a__", "_b_c", "______", "a*", "*{6,}", "_a*d"}, options);
+        } finally {
+            pool.shutdown();
+        }
+
+        BasicTrie t = createTrie(source);
+        for (int i = 0; i < options.length; i++) {
+            pack(t, options[i]);
+            for (String k : source.keySet()) {
+                assertEquals(k, 0, readVarLenLongs01(packed.get(i), t.getWord(k).getOffset(), 1)[0] >> 2);
+            }
+            // smaller than the tree, though the ids take as much room as before, in the id table
+            byte[] tree = pack(t, options[i].setSuffixSharing(false));
+            options[i].setSuffixSharing(true);
+            assertTrue(packed.get(i).length + " of " + tree.length, packed.get(i).length * 10 < tree.length * 9);
+        }
+        PackedTrie p = load(packed.get(3));
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            assertEquals(e.getKey(), p.getKey(e.getValue()));
+        }
+
+        // the root is the first word
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PackedTrieWriter w = new PackedTrieWriter(out, new PackOptions().setSuffixSharing(true).setWordCounts(true));
+        w.add("", 5);
+        w.add("ab", 7);
+        w.add("b", 9);
+        w.finish();
+        p = load(out.toByteArray());
+        assertEquals(7L, (long) p.get("ab"));
+        assertEquals(9L, (long) p.get("b"));
+        assertNull(p.get("a"));
+
+        // no ids, as in word lists, take no room in the id table
+        ByteArrayOutputStream none = new ByteArrayOutputStream();
+        w = new PackedTrieWriter(none, new PackOptions().setSuffixSharing(true).setWordCounts(true));
+        w.add("", 0);
+        w.add("ab", 0);
+        w.add("b", 0);
+        w.finish();
+        p = load(none.toByteArray());
+        assertEquals(0L, (long) p.get("ab"));
+        assertEquals(0L, (long) p.get("b"));
+        assertEquals(out.size() - 3, none.size());
+
+        try {
+            new PackedTrieWriter(new ByteArrayOutputStream(), new PackOptions().setSuffixSharing(true));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPathCompression() throws IOException {
+        Random r = new Random();
+        TreeMap<String, Long> source = createDense(r, 2000);
+        // long endings, one longer than a node value byte takes, and chains of chars above 127
+        char[] key = new char[40];
+        for (int i = 0; i < 200; i++) {
+            int length = 7 + r.nextInt(key.length - 7);
+            for (int j = 0; j < length; j++) {
+                key[j] = (char) ('a' + r.nextInt(4));
+            }
+            source.put(new String(key, 0, length), (long) r.nextInt(Integer.MAX_VALUE));
+        }
+        source.put("bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb", 1L);
+        source.put("a\u4e00\u4e01\u4e02\u4e03", 2L);
+        source.put("c\u00e9\u00e8\u00ea", 3L);
+        PackOptions[] options = {
+                new PackOptions().setPathCompression(true),
+                new PackOptions().setPathCompression(true).setWordCounts(true).setWordDepths(true).setChildTables(2),
+                new PackOptions().setPathCompression(true).setWordCounts(true).setPageClustering(512),
+                new PackOptions().setPathCompression(true).setWordDepths(true).setSuffixSharing(true).setWordCounts(true)};
+        ForkJoinPool pool = new ForkJoinPool(4);
+        List<byte[]> packed;
+        try {
+            options[2].setPool(pool);
+            packed = assertSameAsPlain(source,
+                    new String[]{"bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb", "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbba",
+                            "a\u4e00\u4e01", "a\u4e00\u4e01\u4e03", "c\u00e9\u00e8\u00ea\u00eb", "zz", "e"},
+                    new String[]{"_", "___", "a__", "_b_c", "______", "_________", "b______________", "a____", "c___",
+                            "[ab]_[^c]__", "a*", "*{6,}", "*{20,30}", "b*b{40,}", "_a*d", "a\u4e00*"}, options);
+        } finally {
+            pool.shutdown();
+        }
+        byte[] tree = pack(source, new PackOptions());
+        for (int i = 0; i < options.length; i++) {
+            assertTrue(packed.get(i).length + " of " + tree.length, packed.get(i).length < tree.length || options[i].isWordCounts());
+        }
+
+        // a link of a chain: the offset of the child in place of the id, and the char of the child
+        // in place of the index
+        BasicTrie t = createTrie(source);
+        byte[] chains = pack(t, options[0]);
+        BasicTrieNode node = t.getRoot();
+        for (int i = 0; i < 45; i++) {
+            node = node.getChild('b');
+        }
+        long child = node.getChild('b').getOffset();
+        assertArrayEquals(new long[]{((node.getOffset() - child) << 2) | 0x2L, 'b'},
+                readVarLenLongs01(chains, node.getOffset(), 2));
+    }
+
+    @Test
+    public void testAlphabet() throws IOException {
+        // Cyrillic, with a few chars far apart
+        StringBuilder letters = new StringBuilder("\u0451-0");
+        for (char c = '\u0430'; c <= '\u044f'; c++) {
+            letters.append(c);
+        }
+        String alphabet = letters.toString();
+        Random r = new Random();
+        TreeMap<String, Long> source = new TreeMap<>();
+        char[] key = new char[8];
+        while (source.size() < 3000) {
+            int length = 1 + r.nextInt(key.length);
+            for (int i = 0; i < length; i++) {
+                // the first letters more often, for plenty of matches
+                key[i] = alphabet.charAt(r.nextInt(1 + r.nextInt(alphabet.length())));
+            }
+            source.put(new String(key, 0, length), (long) r.nextInt(Integer.MAX_VALUE));
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertSameAsPlain(source,
+                    new String[]{"z", "\u0430z", "\u044f\u4e00", "\uffff", "\u0430\u0430\u0430\u0430\u0430\u0430\u0430\u0430\u0430"},
+                    new String[]{"_", "__", "\u0430__", "_\u0431_", "____", "[\u0430z\u0451]_", "[^\u0430]__", "_[z\u4e00]",
+                            "\u0430*", "*{6,}", "_\u0430*\u0432", "*z*"},
+                    new PackOptions().setAlphabet(alphabet),
+                    new PackOptions().setAlphabet(alphabet + "z\u4e00\u0430").setWordCounts(true).setWordDepths(true).setChildTables(2),
+                    new PackOptions().setAlphabet(alphabet).setPathCompression(true).setPageClustering(512).setPool(pool),
+                    new PackOptions().setAlphabet(alphabet).setSuffixSharing(true).setWordCounts(true));
+        } finally {
+            pool.shutdown();
+        }
+
+        // the header has the alphabet after the flags: the number of chars and the gaps between them, in order
+        byte[] packed = pack(source, new PackOptions().setAlphabet(alphabet));
+        char[] chars = alphabet.toCharArray();
+        Arrays.sort(chars);
+        long[] header = readVarLenLongs01(packed, PackedTrieWriter.MAGIC.length + 1, 2 + chars.length);
+        assertEquals(PackedTrieWriter.FLAG_ALPHABET, header[0]);
+        assertEquals(chars.length, header[1]);
+        for (int i = 0; i < chars.length; i++) {
+            assertEquals(chars[i] - (0 == i ? 0 : chars[i - 1]), header[2 + i]);
+        }
+        // and a byte less per child with a char above 127 pays for it
+        byte[] tree = pack(source, new PackOptions());
+        Set<String> prefixes = new HashSet<>();
+        for (String k : source.keySet()) {
+            for (int i = 1; i <= k.length(); i++) {
+                if (127 < k.charAt(i - 1)) {
+                    prefixes.add(k.substring(0, i));
+                }
+            }
+        }
+        assertTrue(packed.length + " of " + tree.length, packed.length <= tree.length - prefixes.size() + alphabet.length() + 8);
+
+        PackedTrieWriter w = new PackedTrieWriter(new ByteArrayOutputStream(), new PackOptions().setAlphabet("ab"));
+        w.add("ab", 1);
+        try {
+            w.add("ac", 2);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new PackOptions().setAlphabet("");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRootTable() throws IOException {
+        TreeMap<String, Long> source = createDense(new Random(), 2000);
+        source.put("abcdabcdabcdabcd", 1L);
+        source.put("e", 2L);
+        source.put("\u00e9\u00e9", 3L);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        List<byte[]> packed;
+        try {
+            packed = assertSameAsPlain(source, new String[]{"f", "\u00e9", "\u00e9\u00e9\u00e9", "abcdabcdabcdabc"},
+                    new String[]{"_", "__", "a__", "_b_c", "______", "[ae\u00e9]_", "a*", "*{6,}", "_a*d"},
+                    new PackOptions().setRootTable(true),
+                    new PackOptions().setRootTable(true).setWordCounts(true).setWordDepths(true).setChildTables(2),
+                    new PackOptions().setRootTable(true).setPathCompression(true).setAlphabet("abcde\u00e9")
+                            .setPageClustering(256).setPool(pool),
+                    new PackOptions().setRootTable(true).setPathCompression(true).setSuffixSharing(true).setWordCounts(true),
+                    new PackOptions().setWordCounts(true));
+        } finally {
+            pool.shutdown();
+        }
+
+        // the footer has the number of words
+        assertEquals(-1, load(pack(source, new PackOptions())).wordCount());
+        for (byte[] p : packed) {
+            assertEquals(source.size(), load(p).wordCount());
+        }
+
+        PackedTrie empty = load(pack(new BasicTrie(), new PackOptions().setRootTable(true)));
+        assertEquals(0, empty.wordCount());
+        assertNull(empty.get("a"));
+        assertFalse(empty.iteratePatterns("_").hasNext());
+    }
+
+    @Test
+    public void testIdIndex() throws IOException {
+        Random r = new Random();
+        TreeMap<String, Long> source = createDense(r, 3000);
+        source.put("abcdabcdabcdabcd", 7L);
+        source.put("\u00e9\u00e9", 1L << 40);
+        // some ids repeat, the first key in key order has them
+        TreeMap<Long, String> keys = new TreeMap<>();
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            if (0 == r.nextInt(4)) {
+                e.setValue((long) r.nextInt(100));
+            }
+            if (!keys.containsKey(e.getValue())) {
+                keys.put(e.getValue(), e.getKey());
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        List<byte[]> packed;
+        try {
+            packed = assertSameAsPlain(source, new String[]{"e", "\u00e9"}, new String[]{"a__", "*{6,}"},
+                    new PackOptions().setIdIndex(true).setWordCounts(true),
+                    new PackOptions().setIdIndex(true).setWordCounts(true).setWordDepths(true).setChildTables(2)
+                            .setRootTable(true),
+                    new PackOptions().setIdIndex(true).setWordCounts(true).setPathCompression(true)
+                            .setAlphabet("abcde\u00e9").setPageClustering(256).setPool(pool),
+                    new PackOptions().setIdIndex(true).setWordCounts(true).setPathCompression(true)
+                            .setSuffixSharing(true).setRootTable(true));
+        } finally {
+            pool.shutdown();
+        }
+
+        for (byte[] bytes : packed) {
+            for (PackedTrie p : new PackedTrie[]{load(bytes), new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(bytes)), 16 * 1024)}) {
+                assertEquals(source.size(), p.wordCount());
+                for (Map.Entry<Long, String> e : keys.entrySet()) {
+                    assertEquals(e.getValue(), p.getKey(e.getKey()));
+                }
+                assertNull(p.getKey(-1));
+                assertNull(p.getKey(Integer.MAX_VALUE + 1L));
+                assertNull(p.getKey(1L << 41));
+            }
+        }
+
+        // the root is the first word
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PackedTrieWriter w = new PackedTrieWriter(out, new PackOptions().setIdIndex(true).setWordCounts(true));
+        w.add("", 5);
+        w.add("a", 3);
+        w.add("ab", 5);
+        w.finish();
+        PackedTrie p = load(out.toByteArray());
+        assertEquals("", p.getKey(5));
+        assertEquals("a", p.getKey(3));
+        assertNull(p.getKey(4));
+
+        assertNull(load(pack(new BasicTrie(), new PackOptions().setIdIndex(true).setWordCounts(true))).getKey(0));
+        try {
+            load(pack(source, new PackOptions())).getKey(7);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // no id index
+        }
+        try {
+            new PackedTrieWriter(new ByteArrayOutputStream(), new PackOptions().setIdIndex(true));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // no word counts
+        }
+    }
+
+    /**
+     * Packs the {@code source} with each of the {@code options}, from a trie, in parallel if the options have
+     * a pool, and key by key, which should give the same bytes. Checks that the packed trie, with and without
+     * the top levels cached, finds what the trie packed with the default options finds: the keys, their
+     * prefixes and none of the {@code misses}, and the {@code patterns} whichever way they are matched, with
+     * the values of the keys.
+     *
+     * @return packed tries, in the order of the options
+     */
+    private static List<byte[]> assertSameAsPlain(final TreeMap<String, Long> source, String[] misses, String[] patterns,
+                                                  PackOptions... options) throws IOException {
+        BasicTrie t = createTrie(source);
+        PackedTrie plain = load(pack(t, new PackOptions()));
+        String[] keys = source.keySet().toArray(new String[source.size()]);
+        TriePattern[] compiled = new TriePattern[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            compiled[i] = TriePattern.compile(patterns[i]);
+        }
+
+        List<byte[]> result = new ArrayList<>();
+        for (PackOptions o : options) {
+            byte[] packed = pack(t, o);
+            assertArrayEquals(packed, pack(source, o.setPool(null)));
+            result.add(packed);
+
+            for (PackedTrie p : new PackedTrie[]{load(packed), new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(packed)), 16 * 1024)}) {
+                assertArrayEquals(plain.getAll(keys, -1), p.getAll(keys, -1));
+                for (String k : keys) {
+                    assertEquals(k, source.get(k), p.get(k));
+                    assertEquals(k, (long) source.get(k), p.getLong(k.toCharArray(), 0, k.length(), -1));
+                    String prefix = k.substring(0, k.length() - 1);
+                    if (0 < prefix.length()) {
+                        assertEquals(prefix, plain.get(prefix), p.get(prefix));
+                    }
+                }
+                for (String k : misses) {
+                    assertNull(k, p.get(k));
+                    assertFalse(k, p.contains(k.toCharArray(), 0, k.length()));
+                }
+
+                List<List<Map.Entry<String, Long>>> found = p.findPatterns(compiled);
+                for (int i = 0; i < patterns.length; i++) {
+                    String text = patterns[i];
+                    TriePattern pattern = compiled[i];
+                    List<String> expected = collect(plain.iteratePatterns(pattern));
+                    List<Long> values = new ArrayList<>();
+                    for (String k : expected) {
+                        values.add(source.get(k));
+                    }
+                    assertEquals(text, expected, collect(p.iteratePatterns(pattern)));
+                    assertEquals(text, expected.size(), p.countPatterns(pattern));
+                    assertEquals(text, values, collectValues(p.iterateValues(pattern)));
+
+                    final List<String> visited = new ArrayList<>();
+                    p.visitPatterns(pattern, new TrieVisitor() {
+                        @Override
+                        public Action visit(CharSequence key, long value) {
+                            assertEquals(key.toString(), (long) source.get(key.toString()), value);
+                            visited.add(key.toString());
+                            return Action.CONTINUE;
+                        }
+                    });
+                    assertEquals(text, expected, visited);
+
+                    List<String> entries = new ArrayList<>();
+                    for (Map.Entry<String, Long> e : found.get(i)) {
+                        assertEquals(text, source.get(e.getKey()), e.getValue());
+                        entries.add(e.getKey());
+                    }
+                    assertEquals(text, expected, entries);
+                    assertEquals(text, expected, p.streamPatterns(pattern).parallel().map(new Function<Map.Entry<String, Long>, String>() {
+                        @Override
+                        public String apply(Map.Entry<String, Long> e) {
+                            return e.getKey();
+                        }
+                    }).collect(Collectors.toList()));
+
+                    if (pattern.isFixed()) {
+                        assertEquals(text, plain.countLetters(pattern).toString(), p.countLetters(pattern).toString());
+                    }
+                    if (10 < expected.size()) {
+                        assertEquals(text, expected.subList(6, 9), collect(p.iteratePatterns(pattern, 2, 3)));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static BasicTrie createTrie(Map<String, Long> source) {
+        BasicTrie result = new BasicTrie();
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            result.addWord(e.getKey()).setId(e.getValue());
+        }
+        return result;
+    }
+
+    private static byte[] pack(BasicTrie t, PackOptions options) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+        PackedTrie.pack(t, out, options);
+        return out.toByteArray();
+    }
+
+    private static byte[] pack(TreeMap<String, Long> source, PackOptions options) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+        PackedTrie.pack(source.entrySet().iterator(), out, options);
+        return out.toByteArray();
+    }
+
+    private static PackedTrie load(byte[] packed) throws IOException {
+        return new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(packed)));
+    }
+
+    private static List<Long> collectValues(PackedTrie.LongIterator i) {
+        List<Long> result = new ArrayList<>();
+        while (i.hasNext()) {
+            result.add(i.nextLong());
+        }
+        return result;
+    }
+
+    private static List<String> collect(PackedTrie.PatternIterator i) {
+        List<String> result = new ArrayList<>();
+        while (i.hasNext()) {
+            result.add(i.next().getKey());
+        }
+        return result;
+    }
 }
@@ -0,0 +1,127 @@
+package org.entitypedia.games.common.tries;
+
+import org.entitypedia.games.common.buffer.BufferFacadeFactory;
+import org.entitypedia.games.common.repository.util.UIDGenerator;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class TestPackedTrieWriter {
+
+    private static byte[] pack(TreeMap<String, Long> source) throws IOException {
+        BasicTrie t = new BasicTrie();
+        for (Map.Entry<String, Long> e : source.entrySet()) {
+            BasicTrieNode n = t.addWord(e.getKey());
+            n.setId(e.getValue());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        PackedTrie.pack(t, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] write(TreeMap<String, Long> source) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        PackedTrie.pack(source.entrySet().iterator(), out);
+        return out.toByteArray();
+    }
+
+    private static TreeMap<String, Long> createSample() {
+        TreeMap<String, Long> source = new TreeMap<>();
+        source.put("a", 100L);
+        source.put("abc", 200L);
+        source.put("abé", 300L);
+        source.put("bc", 400L);
+        return source;
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        TreeMap<String, Long> source = new TreeMap<>();
+        assertArrayEquals(pack(source), write(source));
+    }
+
+    @Test
+    public void testSample() throws IOException {
+        TreeMap<String, Long> source = createSample();
+        assertArrayEquals(pack(source), write(source));
+    }
+
+    @Test
+    public void testRootWord() throws IOException {
+        TreeMap<String, Long> source = createSample();
+        source.put("", 500L);
+        assertArrayEquals(pack(source), write(source));
+    }
+
+    @Test
+    public void testAdd() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        PackedTrieWriter w = new PackedTrieWriter(out);
+        for (Map.Entry<String, Long> e : createSample().entrySet()) {
+            w.add(e.getKey(), e.getValue());
+        }
+        w.finish();
+
+        PackedTrie p = new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(out.toByteArray())));
+        assertEquals(100, (long) p.get("a"));
+        assertEquals(200, (long) p.get("abc"));
+        assertEquals(300, (long) p.get("abé"));
+        assertEquals(400, (long) p.get("bc"));
+        assertNull(p.get("ab"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsorted() throws IOException {
+        PackedTrieWriter w = new PackedTrieWriter(new ByteArrayOutputStream());
+        w.add("b", 1);
+        w.add("a", 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPrefixAfterWord() throws IOException {
+        PackedTrieWriter w = new PackedTrieWriter(new ByteArrayOutputStream());
+        w.add("ab", 1);
+        w.add("a", 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicate() throws IOException {
+        PackedTrieWriter w = new PackedTrieWriter(new ByteArrayOutputStream());
+        w.add("a", 1);
+        w.add("a", 2);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testHugeId() throws IOException {
+        PackedTrieWriter w = new PackedTrieWriter(new ByteArrayOutputStream());
+        w.add("a", Long.MAX_VALUE);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddAfterFinish() throws IOException {
+        PackedTrieWriter w = new PackedTrieWriter(new ByteArrayOutputStream());
+        w.add("a", 1);
+        w.finish();
+        w.add("b", 2);
+    }
+
+    @Test
+    public void testRandom() throws IOException {
+        TreeMap<String, Long> source = new TreeMap<>();
+        Random r = new Random();
+        for (int i = 0; i < 1000; i++) {
+            source.put(UIDGenerator.getUID(r.nextInt(50) + 1), (long) r.nextInt(Integer.MAX_VALUE));
+        }
+        assertArrayEquals(pack(source), write(source));
+    }
+}
@@ -0,0 +1,51 @@
+package org.entitypedia.games.common.tries;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class TestPatternCursor {
+
+    @Test
+    public void testToken() {
+        PatternCursor c = new PatternCursor("a_é_", "abéd", 42);
+        String token = c.toToken();
+        assertTrue(token.matches("[A-Za-z0-9_-]+"));
+        PatternCursor r = PatternCursor.fromToken(token);
+        assertEquals(c, r);
+        assertEquals("a_é_", r.getPattern());
+        assertEquals("abéd", r.getKey());
+        assertEquals(42, r.getCount());
+    }
+
+    @Test
+    public void testTokenNoKey() {
+        PatternCursor c = new PatternCursor("___", null, 10);
+        PatternCursor r = PatternCursor.fromToken(c.toToken());
+        assertEquals(c, r);
+        assertNull(r.getKey());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeyDoesNotFit() {
+        new PatternCursor("a__", "bcd", 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeyLength() {
+        new PatternCursor("___", "ab", 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedToken() {
+        PatternCursor.fromToken("AQ");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTrailingBytes() {
+        PatternCursor.fromToken(new PatternCursor("_", null, 0).toToken() + "AA");
+    }
+}
@@ -0,0 +1,167 @@
+package org.entitypedia.games.common.tries;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class TestTriePattern {
+
+    @Test
+    public void testCompile() {
+        TriePattern p = TriePattern.compile("[aeiou]_[^st]\\_x");
+        assertEquals(5, p.length());
+        assertTrue(p.matches("azb_x"));
+        assertTrue(p.matches("u_a_x"));
+        assertFalse(p.matches("bzb_x"));
+        assertFalse(p.matches("azs_x"));
+        assertFalse(p.matches("azbzx"));
+        assertFalse(p.matches("azb_"));
+    }
+
+    @Test
+    public void testRanges() {
+        TriePattern p = TriePattern.compile("[a-cx-z-][^0-9]");
+        assertTrue(p.matches("b!"));
+        assertTrue(p.matches("-a"));
+        assertFalse(p.matches("d!"));
+        assertFalse(p.matches("a5"));
+    }
+
+    @Test
+    public void testMask() {
+        TriePattern p = TriePattern.mask("a_[");
+        assertTrue(p.isMask());
+        assertEquals("a_[", p.toText());
+        assertEquals("a_\\[", p.toString());
+        assertTrue(p.matches("ab["));
+        assertEquals(TriePattern.compile("a_\\["), p);
+        assertEquals(TriePattern.compile("a[aa]_"), TriePattern.compile("a[a]_"));
+        assertFalse(TriePattern.compile("[ab]").isMask());
+        assertFalse(TriePattern.compile("\\_").isMask());
+    }
+
+    @Test
+    public void testToString() {
+        String[] patterns = {"_", "ab_", "[a-e]", "[^st]_", "[ab][\\-\\]\\^]", "\\[\\\\", "[^a-ckz]"};
+        for (String text : patterns) {
+            TriePattern p = TriePattern.compile(text);
+            assertEquals(text, p.toString());
+            assertEquals(p, TriePattern.compile(p.toString()));
+            assertEquals(p.hashCode(), TriePattern.compile(p.toString()).hashCode());
+        }
+    }
+
+    @Test
+    public void testCursor() {
+        PatternCursor c = new PatternCursor(TriePattern.compile("[ab]_"), "bc", 3);
+        PatternCursor r = PatternCursor.fromToken(c.toToken());
+        assertEquals(c, r);
+        assertEquals("[ab]_", r.getPattern());
+        assertEquals(new PatternCursor("a_", null, 1), PatternCursor.fromToken(new PatternCursor(TriePattern.compile("a_"), null, 1).toToken()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnclosed() {
+        TriePattern.compile("a[bc");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptySet() {
+        TriePattern.compile("a[]");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReversedRange() {
+        TriePattern.compile("[z-a]");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDanglingEscape() {
+        TriePattern.compile("ab\\");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNull() {
+        TriePattern.compile(null);
+    }
+
+    @Test
+    public void testStar() {
+        TriePattern p = TriePattern.compile("c*t");
+        assertFalse(p.isFixed());
+        assertEquals(2, p.getMinLength());
+        assertEquals(Integer.MAX_VALUE, p.getMaxLength());
+        assertTrue(p.matches("ct"));
+        assertTrue(p.matches("cat"));
+        assertTrue(p.matches("cattt"));
+        assertTrue(p.matches("ctct"));
+        assertFalse(p.matches("cats"));
+        assertFalse(p.matches("act"));
+        assertTrue(TriePattern.compile("*").matches(""));
+        assertTrue(TriePattern.compile("a*\\*").matches("ab*"));
+        assertFalse(TriePattern.compile("a*\\*").matches("ab"));
+    }
+
+    @Test
+    public void testLengthBounds() {
+        TriePattern p = TriePattern.compile("cat*{5,9}");
+        assertEquals(5, p.getMinLength());
+        assertEquals(9, p.getMaxLength());
+        assertFalse(p.matches("cats"));
+        assertTrue(p.matches("catch"));
+        assertTrue(p.matches("catamaran"));
+        assertFalse(p.matches("catamarans"));
+        assertEquals(p, TriePattern.compile("cat*").withLength(5, 9));
+        assertEquals(TriePattern.compile("cat*{6,9}"), p.withLength(6, 20));
+
+        assertTrue(TriePattern.compile("__{2}").isFixed());
+        assertEquals("__", TriePattern.compile("__{2}").toString());
+        assertFalse(TriePattern.compile("__{3}").isFixed());
+        assertFalse(TriePattern.compile("__{3}").matches("ab"));
+        assertEquals(3, TriePattern.compile("*{,3}").getMaxLength());
+        assertEquals(0, TriePattern.compile("*{,3}").getMinLength());
+    }
+
+    @Test
+    public void testVariableToString() {
+        String[] patterns = {"*", "c*t", "cat*{5,9}", "*{3}", "*{2,}", "*{,4}", "[ab]*\\{_", "___{5}"};
+        for (String text : patterns) {
+            TriePattern p = TriePattern.compile(text);
+            assertEquals(text, p.toString());
+            assertEquals(p, TriePattern.compile(p.toString()));
+        }
+
+        // no length fits
+        TriePattern none = TriePattern.compile("____{2,3}");
+        assertEquals("____{,3}", none.toString());
+        assertEquals(none, TriePattern.compile(none.toString()));
+        assertFalse(none.matches("abcd"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBoundsNotAtEnd() {
+        TriePattern.compile("a{1,2}b");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedBounds() {
+        TriePattern.compile("a*{x}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReversedBounds() {
+        TriePattern.compile("a*{3,2}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLong() {
+        StringBuilder pattern = new StringBuilder("*");
+        for (int i = 0; i < TriePattern.MAX_VARIABLE_LENGTH; i++) {
+            pattern.append('a');
+        }
+        TriePattern.compile(pattern.toString());
+    }
+}
@@ -0,0 +1,138 @@
+package org.entitypedia.games.common.tries;
+
+import org.entitypedia.games.common.buffer.BufferFacadeFactory;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class TestTrieVisitor {
+
+    private static PackedTrie pack(TreeMap<String, Long> source) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+        PackedTrie.pack(source.entrySet().iterator(), out);
+        return new PackedTrie(BufferFacadeFactory.create(ByteBuffer.wrap(out.toByteArray())));
+    }
+
+    private static TreeMap<String, Long> createSource() {
+        TreeMap<String, Long> source = new TreeMap<>();
+        Random r = new Random();
+        char[] key = new char[5];
+        while (source.size() < 500) {
+            int length = 1 + r.nextInt(key.length);
+            for (int i = 0; i < length; i++) {
+                key[i] = (char) ('a' + r.nextInt(4));
+            }
+            source.put(new String(key, 0, length), (long) r.nextInt(Integer.MAX_VALUE));
+        }
+        return source;
+    }
+
+    /**
+     * Collects keys and values, copying the keys.
+     */
+    private static class Collector implements TrieVisitor {
+        private final List<String> keys = new ArrayList<>();
+        private final List<Long> values = new ArrayList<>();
+
+        @Override
+        public Action visit(CharSequence key, long value) {
+            keys.add(key.toString());
+            values.add(value);
+            return Action.CONTINUE;
+        }
+    }
+
+    @Test
+    public void testVisit() throws IOException {
+        TreeMap<String, Long> source = createSource();
+        PackedTrie p = pack(source);
+        for (String pattern : new String[]{"_", "a", "___", "_b_", "a__c", "_____", "e__"}) {
+            Collector c = new Collector();
+            assertTrue(p.visitPatterns(pattern, c));
+
+            List<String> expected = new ArrayList<>();
+            PackedTrie.PatternIterator pi = p.iteratePatterns(pattern);
+            while (pi.hasNext()) {
+                Map.Entry<String, Long> e = pi.next();
+                expected.add(e.getKey());
+                assertEquals(e.getValue(), c.values.get(expected.size() - 1));
+            }
+            assertEquals(expected, c.keys);
+        }
+    }
+
+    @Test
+    public void testStop() throws IOException {
+        PackedTrie p = pack(createSource());
+        final List<String> keys = new ArrayList<>();
+        assertFalse(p.visitPatterns("____", new TrieVisitor() {
+            @Override
+            public Action visit(CharSequence key, long value) {
+                keys.add(key.toString());
+                return 3 == keys.size() ? Action.STOP : Action.CONTINUE;
+            }
+        }));
+        assertEquals(3, keys.size());
+
+        assertFalse(p.visitPatterns("____", new TrieVisitor() {
+            @Override
+            public Action enter(CharSequence prefix) {
+                return Action.STOP;
+            }
+
+            @Override
+            public Action visit(CharSequence key, long value) {
+                fail();
+                return Action.CONTINUE;
+            }
+        }));
+    }
+
+    @Test
+    public void testSkipSubtree() throws IOException {
+        TreeMap<String, Long> source = createSource();
+        PackedTrie p = pack(source);
+        final List<String> prefixes = new ArrayList<>();
+        Collector c = new Collector() {
+            @Override
+            public Action enter(CharSequence prefix) {
+                assertTrue(prefix.length() < 4);
+                prefixes.add(prefix.toString());
+                // prune everything with b in the second position
+                return 2 == prefix.length() && 'b' == prefix.charAt(1) ? Action.SKIP_SUBTREE : Action.CONTINUE;
+            }
+        };
+        assertTrue(p.visitPatterns("____", c));
+
+        List<String> expected = new ArrayList<>();
+        for (String k : source.keySet()) {
+            if (4 == k.length() && 'b' != k.charAt(1)) {
+                expected.add(k);
+            }
+        }
+        assertEquals(expected, c.keys);
+        assertTrue(prefixes.contains("ab"));
+        assertFalse(prefixes.contains("abc"));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        PackedTrie p = pack(new TreeMap<String, Long>());
+        Collector c = new Collector();
+        assertTrue(p.visitPatterns("__", c));
+        assertTrue(p.visitPatterns("", c));
+        assertTrue(c.keys.isEmpty());
+    }
+}